@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.permissions.PermissibleBase;
+import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.permissions.ServerOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of applying permissions to an attachment of a stub permissible,
+ * alternating between two permission sets that differ in a given number of
+ * nodes. The setPermission benchmark is the naive approach for comparison,
+ * recalculating the permissible once per changed node.
+ *
+ * @author Connor Monahan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttachmentBenchmark {
+
+    @Param({"100", "1000"})
+    public int nodes;
+
+    @Param({"1", "10", "100"})
+    public int changes;
+
+    private PermissionAttachment attachment;
+    private Map<String, Boolean> first;
+    private Map<String, Boolean> second;
+    private Map<String, Boolean> firstToSecond;
+    private Map<String, Boolean> secondToFirst;
+    private Map<String, Boolean> applied;
+
+    @Setup
+    public void setup() {
+        PermissibleBase permissible = new PermissibleBase(new ServerOperator() {
+            @Override
+            public boolean isOp() {
+                return false;
+            }
+
+            @Override
+            public void setOp(boolean value) {
+            }
+        });
+        attachment = permissible.addAttachment(BenchmarkServer.enabledPlugin());
+        first = new HashMap<>();
+        second = new HashMap<>();
+        for (int i = 0; i < nodes; i++) {
+            first.put("plugin.node" + i, true);
+            second.put("plugin.node" + i, i >= Math.min(changes, nodes));
+        }
+        firstToSecond = AttachmentWriter.diff(first, second);
+        secondToFirst = AttachmentWriter.diff(second, first);
+        AttachmentWriter.apply(attachment, new HashMap<String, Boolean>(), first);
+        applied = first;
+    }
+
+    @Benchmark
+    public int apply() {
+        Map<String, Boolean> target = applied == first ? second : first;
+        int written = AttachmentWriter.apply(attachment, applied, target);
+        applied = target;
+        return written;
+    }
+
+    @Benchmark
+    public int applyChanges() {
+        boolean toSecond = applied == first;
+        applied = toSecond ? second : first;
+        return AttachmentWriter.applyChanges(attachment, toSecond ? firstToSecond : secondToFirst);
+    }
+
+    @Benchmark
+    public void setPermission() {
+        boolean toSecond = applied == first;
+        applied = toSecond ? second : first;
+        for (Map.Entry<String, Boolean> entry : (toSecond ? firstToSecond : secondToFirst).entrySet()) {
+            attachment.setPermission(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server environment for running plugin code in benchmarks: the
+ * {@link SimulatedServer} shared with the tests, and the group
+ * configurations the benchmarks use.
+ *
+ * @author Connor Monahan
+ */
+final class BenchmarkServer {
+
+    private static SimulatedServer server;
+
+    private BenchmarkServer() {
+    }
+
+    /**
+     * Get the benchmark server, installing it as the Bukkit server the first
+     * time.
+     *
+     * @return server.
+     */
+    static synchronized SimulatedServer get() {
+        if (server == null) {
+            server = new SimulatedServer("world", "world_nether");
+        }
+        return server;
+    }
+
+    /**
+     * Create the plugin with a data folder containing the given
+     * configuration. Groups are compiled, but the plugin is not enabled.
+     *
+     * @param dataFolder Data folder for the plugin.
+     * @param config Plugin configuration.
+     * @return plugin.
+     * @throws IOException Error writing the configuration.
+     */
+    static Permissions createPlugin(File dataFolder, YamlConfiguration config) throws IOException {
+        return get().createPlugin(dataFolder, config);
+    }
+
+    /**
+     * Create a plugin that reports itself as enabled, for creating
+     * attachments.
+     *
+     * @return plugin.
+     */
+    static Plugin enabledPlugin() {
+        get();
+        return SimulatedServer.proxy(Plugin.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "isEnabled":
+                        return true;
+                    case "getName":
+                        return "cPermissions";
+                    case "getServer":
+                        return server.getServer();
+                    default:
+                        return SimulatedServer.defaultValue(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    /**
+     * Build a configuration with a chain of groups, each inheriting the
+     * previous one. Group i has the given number of nodes under plugin{i},
+     * every tenth of them negated, one wildcard plugin{i}.admin.* and one
+     * node specific to the world "world_nether".
+     *
+     * @param depth Number of groups in the chain.
+     * @param nodes Number of nodes per group.
+     * @return configuration.
+     */
+    static YamlConfiguration groups(int depth, int nodes) {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("autoperms", new ArrayList<String>());
+        for (int i = 0; i < depth; i++) {
+            String path = "groups.group" + i + ".";
+            config.set(path + "default", i == 0);
+            config.set(path + "info.prefix", "&7");
+            config.set(path + "info.suffix", "&f");
+            config.set(path + "info.build", true);
+            List<String> inheritance = new ArrayList<>();
+            if (i > 0) {
+                inheritance.add("group" + (i - 1));
+            }
+            config.set(path + "inheritance", inheritance);
+            List<String> permissions = new ArrayList<>(nodes + 1);
+            for (int j = 0; j < nodes; j++) {
+                permissions.add((j % 10 == 9 ? "-" : "") + "plugin" + i + ".node" + j);
+            }
+            permissions.add("plugin" + i + ".admin.*");
+            config.set(path + "permissions", permissions);
+            List<String> nether = new ArrayList<>();
+            nether.add("plugin" + i + ".nether");
+            config.set(path + "worlds.world_nether", nether);
+        }
+        return config;
+    }
+
+    /**
+     * Get the names of permissions that plugins would register for a
+     * configuration built by {@link #groups}, including nodes matched only by
+     * the wildcards.
+     *
+     * @param depth Number of groups in the chain.
+     * @param nodes Number of nodes per group.
+     * @return permission names.
+     */
+    static List<String> registeredPermissions(int depth, int nodes) {
+        List<String> registered = new ArrayList<>();
+        for (int i = 0; i < depth; i++) {
+            for (int j = 0; j < nodes; j++) {
+                registered.add("plugin" + i + ".node" + j);
+                registered.add("plugin" + i + ".admin.node" + j);
+            }
+        }
+        return registered;
+    }
+}
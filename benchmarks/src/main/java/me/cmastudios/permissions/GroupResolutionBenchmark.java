@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resolving group permissions across inheritance depths and node
+ * counts: compiling the configuration, looking up the compiled permissions of
+ * a group and expanding its wildcards against registered permissions.
+ *
+ * @author Connor Monahan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupResolutionBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int depth;
+
+    @Param({"10", "100", "1000"})
+    public int nodes;
+
+    private YamlConfiguration config;
+    private Group group;
+    private List<String> registered;
+
+    @Setup
+    public void setup() {
+        BenchmarkServer.get();
+        config = BenchmarkServer.groups(depth, nodes);
+        group = GroupRegistry.compile(config).getGroup("group" + (depth - 1));
+        registered = BenchmarkServer.registeredPermissions(depth, nodes);
+    }
+
+    @Benchmark
+    public GroupRegistry compile() {
+        return GroupRegistry.compile(config);
+    }
+
+    @Benchmark
+    public Map<String, Boolean> getPermissions() {
+        return group.getPermissions("world");
+    }
+
+    @Benchmark
+    public Map<String, Boolean> getWorldPermissions() {
+        return group.getPermissions("world_nether");
+    }
+
+    @Benchmark
+    public Map<String, Boolean> expandWildcards() {
+        return WildcardExpander.expand(group.getPermissions("world"), group.getWildcards("world"), registered);
+    }
+}
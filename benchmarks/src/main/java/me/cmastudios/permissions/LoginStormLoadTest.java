@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.PluginManager;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test that boots the plugin in a {@link SimulatedServer} with a SQLite
+ * database in a temporary directory. Many simulated clients log in at once,
+ * then change worlds a few times while the console moves some of them to
+ * other groups with /setgroup. Reports main thread time per tick, join
+ * latency, the main thread cost of each action and the plugin's database
+ * query counts.
+ * <p>
+ * Options are given as key=value arguments:
+ * <ul>
+ * <li>players: number of players logging in (default 500)
+ * <li>concurrency: number of clients logging in at the same time (default 50)
+ * <li>world-changes: world changes per player (default 3)
+ * <li>setgroups: number of /setgroup commands (default 100)
+ * <li>depth, nodes: group inheritance depth and nodes per group (default 4, 100)
+ * <li>seed: random seed (default 1)
+ * </ul>
+ *
+ * @author Connor Monahan
+ */
+public final class LoginStormLoadTest {
+
+    private final Map<String, Integer> options = new HashMap<>();
+    private final List<Long> joinNanos = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> worldChangeNanos = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> setGroupNanos = Collections.synchronizedList(new ArrayList<Long>());
+    private SimulatedServer server;
+    private PluginManager pluginManager;
+
+    private LoginStormLoadTest(String[] args) {
+        options.put("players", 500);
+        options.put("concurrency", 50);
+        options.put("world-changes", 3);
+        options.put("setgroups", 100);
+        options.put("depth", 4);
+        options.put("nodes", 100);
+        options.put("seed", 1);
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2 || !options.containsKey(option[0])) {
+                throw new IllegalArgumentException("Unknown option " + arg + ", expected one of " + options.keySet());
+            }
+            options.put(option[0], Integer.parseInt(option[1]));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoginStormLoadTest(args).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        final int players = options.get("players");
+        final int depth = options.get("depth");
+        File directory = Files.createTempDirectory("cpermissions-loadtest").toFile();
+        server = new SimulatedServer("world", "world_nether", "world_the_end");
+        pluginManager = server.getServer().getPluginManager();
+        YamlConfiguration config = BenchmarkServer.groups(depth, options.get("nodes"));
+        config.set("stats.dump-interval", 0);
+        final Permissions plugin = server.createPlugin(directory, config);
+        server.start();
+        server.runOnMainThreadAndWait(new Runnable() {
+            @Override
+            public void run() {
+                server.setEnabled(plugin, true);
+            }
+        });
+
+        long start = System.nanoTime();
+        final List<Player> joined = Collections.synchronizedList(new ArrayList<Player>());
+        final CountDownLatch finished = new CountDownLatch(players);
+        ExecutorService clients = Executors.newFixedThreadPool(options.get("concurrency"));
+        final int setGroupEvery = Math.max(1, players / Math.max(1, options.get("setgroups")));
+        for (int i = 0; i < players; i++) {
+            final int index = i;
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Player player = login(index);
+                        if (player != null) {
+                            joined.add(player);
+                            play(player, new Random(options.get("seed") + index),
+                                    options.get("setgroups") > 0 && index % setGroupEvery == 0
+                                            ? "group" + (index % depth) : null);
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+        finished.await();
+        clients.shutdown();
+        long elapsed = System.nanoTime() - start;
+
+        final ConfigurationSection[] stats = new ConfigurationSection[1];
+        server.runOnMainThreadAndWait(new Runnable() {
+            @Override
+            public void run() {
+                stats[0] = plugin.getStats();
+                for (Player player : joined) {
+                    pluginManager.callEvent(new PlayerQuitEvent(player, null));
+                    server.setOnline(player, false);
+                }
+                server.setEnabled(plugin, false);
+            }
+        });
+        server.stop();
+        this.report(elapsed, joined.size(), stats[0]);
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Log a player in as the server does: the asynchronous pre-login event on
+     * the client's thread, then the login and join events on the main thread.
+     *
+     * @return the player, or null if the login was denied.
+     */
+    private Player login(int index) throws InterruptedException {
+        final long start = System.nanoTime();
+        final UUID id = UUID.randomUUID();
+        final String name = "Player" + index;
+        final InetAddress address = InetAddress.getLoopbackAddress();
+        AsyncPlayerPreLoginEvent preLogin = new AsyncPlayerPreLoginEvent(name, address, id);
+        pluginManager.callEvent(preLogin);
+        if (preLogin.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return null;
+        }
+        final Player[] result = new Player[1];
+        server.runOnMainThreadAndWait(new Runnable() {
+            @Override
+            public void run() {
+                Player player = server.createPlayer(id, name, server.getWorld("world"));
+                PlayerLoginEvent login = new PlayerLoginEvent(player, "localhost", address);
+                pluginManager.callEvent(login);
+                if (login.getResult() == PlayerLoginEvent.Result.ALLOWED) {
+                    server.setOnline(player, true);
+                    pluginManager.callEvent(new PlayerJoinEvent(player, null));
+                    result[0] = player;
+                }
+                joinNanos.add(System.nanoTime() - start);
+            }
+        });
+        return result[0];
+    }
+
+    /**
+     * Move a player between worlds with random pauses, optionally changing
+     * their group with /setgroup part way through.
+     */
+    private void play(final Player player, Random random, final String newGroup) throws InterruptedException {
+        final List<World> worlds = server.getWorlds();
+        int changes = options.get("world-changes");
+        for (int i = 0; i < changes; i++) {
+            Thread.sleep(random.nextInt(500));
+            final World to = worlds.get(random.nextInt(worlds.size()));
+            server.runOnMainThreadAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    World from = player.getWorld();
+                    if (from == to) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    server.setWorld(player, to);
+                    pluginManager.callEvent(new PlayerChangedWorldEvent(player, from));
+                    worldChangeNanos.add(System.nanoTime() - start);
+                }
+            });
+            if (newGroup != null && i == changes / 2) {
+                server.runOnMainThreadAndWait(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = System.nanoTime();
+                        server.dispatch("setgroup", player.getName(), newGroup);
+                        setGroupNanos.add(System.nanoTime() - start);
+                    }
+                });
+            }
+        }
+    }
+
+    private void report(long elapsedNanos, int joined, ConfigurationSection stats) {
+        List<Long> ticks = server.getTickNanos();
+        int slowTicks = 0;
+        for (long tick : ticks) {
+            if (tick > TimeUnit.MILLISECONDS.toNanos(50)) {
+                slowTicks++;
+            }
+        }
+        System.out.println("cPermissions login storm load test");
+        System.out.println("options: " + options);
+        System.out.printf("players joined: %d in %.1fs%n", joined, elapsedNanos / 1e9);
+        System.out.printf("ticks: %d, %d over 50ms%n", ticks.size(), slowTicks);
+        printPercentiles("main thread per tick", ticks);
+        printPercentiles("join latency (pre-login to join)", joinNanos);
+        printPercentiles("world change (main thread)", worldChangeNanos);
+        printPercentiles("/setgroup (main thread)", setGroupNanos);
+        long loads = stats.getLong("timers.database-load.count");
+        System.out.printf("database: %d loads (%.2f per join), %d saves, %d scans, %d errors%n",
+                loads, joined == 0 ? 0.0 : (double) loads / joined, stats.getLong("timers.database-save.count"),
+                stats.getLong("timers.database-scan.count"), stats.getLong("counters.database-errors"));
+        System.out.println();
+        System.out.println("# plugin stats");
+        YamlConfiguration dump = new YamlConfiguration();
+        for (Map.Entry<String, Object> entry : stats.getValues(true).entrySet()) {
+            if (!(entry.getValue() instanceof ConfigurationSection)) {
+                dump.set(entry.getKey(), entry.getValue());
+            }
+        }
+        System.out.print(dump.saveToString());
+    }
+
+    private static void printPercentiles(String name, List<Long> samples) {
+        List<Long> sorted;
+        synchronized (samples) {
+            sorted = new ArrayList<>(samples);
+        }
+        if (sorted.isEmpty()) {
+            System.out.printf("%s: no samples%n", name);
+            return;
+        }
+        Collections.sort(sorted);
+        System.out.printf("%s: n=%d p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms%n", name, sorted.size(),
+                percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99),
+                sorted.get(sorted.size() - 1) / 1e6);
+    }
+
+    private static double percentile(List<Long> sorted, double fraction) {
+        int index = (int) Math.ceil(sorted.size() * fraction) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
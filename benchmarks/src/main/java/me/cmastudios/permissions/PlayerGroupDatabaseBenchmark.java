@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading and writing player groups in a SQLite database or a
+ * memory-mapped player file stored in a temporary directory, already holding
+ * the given number of rows.
+ *
+ * @author Connor Monahan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerGroupDatabaseBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"sqlite", "mapped"})
+    public String storage;
+
+    private File directory;
+    private PlayerGroupStore database;
+    private Group group;
+    private UUID[] players;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("cpermissions-benchmark").toFile();
+        Permissions plugin = BenchmarkServer.createPlugin(directory, BenchmarkServer.groups(2, 10));
+        if (storage.equals("mapped")) {
+            database = new MappedPlayerGroupStore(plugin, new File(directory, "players.dat"));
+        } else {
+            database = this.openDatabase(plugin);
+        }
+        group = plugin.getGroup("group1");
+        players = new UUID[rows];
+        Map<UUID, PlayerGroupRecord> records = new LinkedHashMap<>();
+        for (int i = 0; i < rows; i++) {
+            players[i] = UUID.randomUUID();
+            records.put(players[i], new PlayerGroupRecord(plugin.getGroup("group" + (i % 2)), null));
+            if (records.size() == 1000) {
+                database.saveAll(records);
+                records.clear();
+            }
+        }
+        if (!records.isEmpty()) {
+            database.saveAll(records);
+        }
+    }
+
+    private PlayerGroupDatabase openDatabase(Permissions plugin) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + new File(directory, "userdb.sl3").getPath(), null, null, 1,
+                TimeUnit.MINUTES.toMillis(10), TimeUnit.MINUTES.toMillis(30), TimeUnit.SECONDS.toMillis(30),
+                plugin.getLogger());
+        try (PooledConnection connection = pool.borrow();
+             Statement statement = connection.getConnection().createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `playergroups` (`player` VARCHAR(36) PRIMARY KEY, `group_name` TEXT, `expiration_date` DATETIME NULL)");
+            statement.executeUpdate(SqlDialect.SQLITE.getGroupIndex());
+        }
+        return new PlayerGroupDatabase(plugin, pool, SqlDialect.SQLITE, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private UUID nextPlayer() {
+        next = next + 1 == players.length ? 0 : next + 1;
+        return players[next];
+    }
+
+    @Benchmark
+    public PlayerGroupRecord load() throws SQLException {
+        return database.load(this.nextPlayer(), "player");
+    }
+
+    @Benchmark
+    public void save() throws SQLException {
+        database.save(this.nextPlayer(), group, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void saveAll() throws SQLException {
+        Map<UUID, PlayerGroupRecord> records = new LinkedHashMap<>();
+        PlayerGroupRecord record = new PlayerGroupRecord(group, null);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            records.put(this.nextPlayer(), record);
+        }
+        database.saveAll(records);
+    }
+}
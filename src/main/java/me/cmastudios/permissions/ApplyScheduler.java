@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Spreads permission updates for many players over several ticks. Updates
+ * are queued per player, with a newer update for the same player replacing a
+ * queued one, and a repeating task applies queued updates until the time
+ * budget for the tick is used up. At least one update is applied every tick,
+ * so the queue always drains.
+ * <p>
+ * Players who just joined or changed worlds should not wait behind everyone
+ * else, so their queued update can be run immediately with {@link #runNow}.
+ * <p>
+ * This class must only be used from the main thread.
+ *
+ * @author Connor Monahan
+ */
+final class ApplyScheduler {
+
+    private final Permissions plugin;
+    private final long budgetNanos;
+    private final Metrics metrics;
+    private final Map<UUID, Runnable> pending = new LinkedHashMap<>();
+    private final List<Runnable> drainCallbacks = new ArrayList<>();
+    private BukkitTask task;
+    private int batchSize;
+    private int batchTicks;
+
+    /**
+     * @param plugin Plugin scheduling the repeating task.
+     * @param budgetMillis Time to spend applying updates each tick.
+     * @param metrics Metrics recording the time spent each tick.
+     */
+    ApplyScheduler(Permissions plugin, long budgetMillis, Metrics metrics) {
+        this.plugin = plugin;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, budgetMillis));
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queue an update for a player, replacing any update already queued for
+     * them. The update keeps the position of the one it replaces.
+     *
+     * @param player Player's unique id.
+     * @param update Update to apply. It should check that the player is
+     * still online.
+     */
+    void schedule(UUID player, Runnable update) {
+        if (pending.put(player, update) == null) {
+            batchSize++;
+        }
+        if (task == null) {
+            task = plugin.getServer().getScheduler().runTaskTimer(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, 1, 1);
+        }
+    }
+
+    /**
+     * Apply a player's queued update immediately.
+     *
+     * @param player Player's unique id.
+     * @return true if the player had a queued update.
+     */
+    boolean runNow(UUID player) {
+        Runnable update = pending.remove(player);
+        if (update == null) {
+            return false;
+        }
+        update.run();
+        if (pending.isEmpty()) {
+            this.finishBatch();
+        }
+        return true;
+    }
+
+    /**
+     * Drop a player's queued update, for example because they logged out.
+     *
+     * @param player Player's unique id.
+     */
+    void cancel(UUID player) {
+        if (pending.remove(player) != null && pending.isEmpty()) {
+            this.finishBatch();
+        }
+    }
+
+    /**
+     * Run a callback once every queued update has been applied. The callback
+     * runs immediately if nothing is queued.
+     *
+     * @param callback Callback to run on the main thread.
+     */
+    void whenDrained(Runnable callback) {
+        if (pending.isEmpty()) {
+            callback.run();
+        } else {
+            drainCallbacks.add(callback);
+        }
+    }
+
+    /**
+     * Get the number of players waiting for an update.
+     *
+     * @return queue length.
+     */
+    int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Drop every queued update and stop the repeating task. Drain callbacks
+     * are discarded without running.
+     */
+    void clear() {
+        pending.clear();
+        drainCallbacks.clear();
+        batchSize = 0;
+        batchTicks = 0;
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void drain() {
+        long start = System.nanoTime();
+        batchTicks++;
+        Iterator<Runnable> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Runnable update = iterator.next();
+            iterator.remove();
+            update.run();
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+        }
+        metrics.record(Metrics.Timer.SCHEDULER_TICK, start);
+        if (pending.isEmpty()) {
+            this.finishBatch();
+        } else {
+            plugin.getLogger().log(Level.FINE, "Applied permissions to {0} of {1} players, {2} remaining",
+                    new Object[] {batchSize - pending.size(), batchSize, pending.size()});
+        }
+    }
+
+    private void finishBatch() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (batchSize > 0) {
+            plugin.getLogger().log(Level.FINE, "Applied permissions to {0} players over {1} ticks",
+                    new Object[] {batchSize, batchTicks});
+        }
+        batchSize = 0;
+        batchTicks = 0;
+        List<Runnable> callbacks = new ArrayList<>(drainCallbacks);
+        drainCallbacks.clear();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+}
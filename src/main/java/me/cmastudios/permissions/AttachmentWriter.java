@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.permissions.PermissionAttachment;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Applies changes in a player's effective permissions to their attachment.
+ * {@link PermissionAttachment#setPermission} recalculates the player's
+ * permissions on every call, so instead the changes are written straight into
+ * the attachment and the player's permissions are recalculated once.
+ *
+ * @author Connor Monahan
+ */
+final class AttachmentWriter {
+
+    private static final Field PERMISSIONS_FIELD;
+
+    static {
+        Field field;
+        try {
+            field = PermissionAttachment.class.getDeclaredField("permissions");
+            field.setAccessible(true);
+        } catch (NoSuchFieldException | SecurityException ex) {
+            field = null;
+        }
+        PERMISSIONS_FIELD = field;
+    }
+
+    private AttachmentWriter() {
+    }
+
+    /**
+     * Update an attachment from one set of permissions to another.
+     *
+     * @param attachment Attachment holding the old permissions.
+     * @param oldPermissions Permissions currently in the attachment.
+     * @param newPermissions Permissions the attachment should hold.
+     * @return number of permissions that were added, changed or removed.
+     */
+    static int apply(PermissionAttachment attachment, Map<String, Boolean> oldPermissions,
+                     Map<String, Boolean> newPermissions) {
+        if (oldPermissions == newPermissions) {
+            return 0;
+        }
+        return apply(attachment, getPermissions(attachment), oldPermissions, newPermissions);
+    }
+
+    /**
+     * Update an attachment from one set of permissions to another, writing
+     * into the given permission map of the attachment.
+     *
+     * @param attachment Attachment holding the old permissions.
+     * @param target The attachment's own permission map, or null to update it
+     * with {@link PermissionAttachment#setPermission} instead.
+     * @param oldPermissions Permissions currently in the attachment.
+     * @param newPermissions Permissions the attachment should hold.
+     * @return number of permissions that were added, changed or removed.
+     */
+    static int apply(PermissionAttachment attachment, Map<String, Boolean> target,
+                     Map<String, Boolean> oldPermissions, Map<String, Boolean> newPermissions) {
+        int changes = 0;
+        for (String node : oldPermissions.keySet()) {
+            if (!newPermissions.containsKey(node)) {
+                changes += write(attachment, target, node, null);
+            }
+        }
+        for (Map.Entry<String, Boolean> entry : newPermissions.entrySet()) {
+            if (!entry.getValue().equals(oldPermissions.get(entry.getKey()))) {
+                changes += write(attachment, target, entry.getKey(), entry.getValue());
+            }
+        }
+        return finish(attachment, target, changes);
+    }
+
+    /**
+     * Update an attachment when a player moves between worlds without
+     * changing groups. Only nodes in the world overlays are touched.
+     *
+     * @param attachment Attachment holding the permissions in the old world.
+     * @param base Group permissions outside of any world.
+     * @param oldOverlay World overlay of the old world.
+     * @param newOverlay World overlay of the new world.
+     * @return number of permissions that were added, changed or removed.
+     * @see Group#getWorldOverlay
+     */
+    static int applyOverlay(PermissionAttachment attachment, Map<String, Boolean> base,
+                            Map<String, Boolean> oldOverlay, Map<String, Boolean> newOverlay) {
+        if (oldOverlay == newOverlay) {
+            return 0;
+        }
+        Map<String, Boolean> target = getPermissions(attachment);
+        int changes = 0;
+        for (String node : oldOverlay.keySet()) {
+            if (!newOverlay.containsKey(node)) {
+                changes += write(attachment, target, node, base.get(node));
+            }
+        }
+        for (Map.Entry<String, Boolean> entry : newOverlay.entrySet()) {
+            if (!entry.getValue().equals(oldOverlay.get(entry.getKey()))) {
+                changes += write(attachment, target, entry.getKey(), entry.getValue());
+            }
+        }
+        return finish(attachment, target, changes);
+    }
+
+    /**
+     * Compute the changes needed to update an attachment from one set of
+     * permissions to another, without touching any attachment. This may be
+     * called from any thread.
+     *
+     * @param oldPermissions Permissions currently in the attachment.
+     * @param newPermissions Permissions the attachment should hold.
+     * @return changed nodes and their new values, with null for nodes that
+     * should be removed.
+     */
+    static Map<String, Boolean> diff(Map<String, Boolean> oldPermissions, Map<String, Boolean> newPermissions) {
+        Map<String, Boolean> changes = new HashMap<>();
+        if (oldPermissions == newPermissions) {
+            return changes;
+        }
+        for (String node : oldPermissions.keySet()) {
+            if (!newPermissions.containsKey(node)) {
+                changes.put(node, null);
+            }
+        }
+        for (Map.Entry<String, Boolean> entry : newPermissions.entrySet()) {
+            if (!entry.getValue().equals(oldPermissions.get(entry.getKey()))) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Apply changes computed by {@link #diff} to an attachment.
+     *
+     * @param attachment Attachment to update.
+     * @param changes Changed nodes and their new values, with null for nodes
+     * to remove.
+     * @return number of permissions that were added, changed or removed.
+     */
+    static int applyChanges(PermissionAttachment attachment, Map<String, Boolean> changes) {
+        Map<String, Boolean> target = getPermissions(attachment);
+        int count = 0;
+        for (Map.Entry<String, Boolean> entry : changes.entrySet()) {
+            count += write(attachment, target, entry.getKey(), entry.getValue());
+        }
+        return finish(attachment, target, count);
+    }
+
+    private static int write(PermissionAttachment attachment, Map<String, Boolean> target, String node, Boolean value) {
+        if (target == null) {
+            if (value == null) {
+                attachment.unsetPermission(node);
+            } else {
+                attachment.setPermission(node, value);
+            }
+        } else if (value == null) {
+            target.remove(node.toLowerCase(Locale.ENGLISH));
+        } else {
+            target.put(node.toLowerCase(Locale.ENGLISH), value);
+        }
+        return 1;
+    }
+
+    private static int finish(PermissionAttachment attachment, Map<String, Boolean> target, int changes) {
+        if (target != null && changes > 0) {
+            attachment.getPermissible().recalculatePermissions();
+        }
+        return changes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Boolean> getPermissions(PermissionAttachment attachment) {
+        if (PERMISSIONS_FIELD == null) {
+            return null;
+        }
+        try {
+            return (Map<String, Boolean>) PERMISSIONS_FIELD.get(attachment);
+        } catch (IllegalAccessException | ClassCastException ex) {
+            return null;
+        }
+    }
+}
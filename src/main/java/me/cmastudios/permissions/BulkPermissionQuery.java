@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.World;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+
+/**
+ * Answers permission queries over many offline players. The player group
+ * table is read in pages, and each distinct group is resolved only once per
+ * query, so the cost is one query per page plus one permission lookup per
+ * group regardless of the number of players.
+ * <p>
+ * Players are checked as members of their group only: rows whose rank has
+ * expired are treated as members of the fallback group, and permission
+ * defaults are evaluated as for a player who is not a server operator.
+ *
+ * @author Connor Monahan
+ */
+final class BulkPermissionQuery {
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final Permissions plugin;
+    private final PlayerGroupStore database;
+    private final String permission;
+    private final World world;
+    private final Map<String, Group> groups = new HashMap<>();
+    private final Map<Group, Boolean> results = new HashMap<>();
+    private final long now = System.currentTimeMillis();
+
+    BulkPermissionQuery(Permissions plugin, PlayerGroupStore database, String permission, World world) {
+        this.plugin = plugin;
+        this.database = database;
+        this.permission = permission;
+        this.world = world;
+    }
+
+    /**
+     * Find every player in the database with the permission.
+     *
+     * @param callback Receives each matching player.
+     * @throws SQLException Database error.
+     */
+    void findAll(PlayerCallback callback) throws SQLException {
+        String after = "";
+        List<PlayerGroupRow> page;
+        do {
+            page = database.scan(after, PAGE_SIZE);
+            this.match(page, callback);
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1).getPlayer();
+            }
+        } while (page.size() == PAGE_SIZE);
+    }
+
+    /**
+     * Find which of the given players have the permission. Players without a
+     * row in the database are members of the default group.
+     *
+     * @param players Players to check.
+     * @param callback Receives each matching player.
+     * @throws SQLException Database error.
+     */
+    void findAmong(Collection<UUID> players, PlayerCallback callback) throws SQLException {
+        List<String> batch = new ArrayList<>(PAGE_SIZE);
+        for (Iterator<UUID> it = players.iterator(); it.hasNext(); ) {
+            batch.add(it.next().toString());
+            if (batch.size() == PAGE_SIZE || !it.hasNext()) {
+                List<PlayerGroupRow> rows = database.loadAll(batch);
+                this.match(rows, callback);
+                Set<String> missing = new HashSet<>(batch);
+                for (PlayerGroupRow row : rows) {
+                    missing.remove(row.getPlayer());
+                }
+                Group defaultGroup = this.resolveGroup(null, null);
+                for (String player : missing) {
+                    if (this.has(defaultGroup)) {
+                        callback.call(UUID.fromString(player), defaultGroup);
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void match(List<PlayerGroupRow> rows, PlayerCallback callback) {
+        Map<Group, List<UUID>> members = new LinkedHashMap<>();
+        for (PlayerGroupRow row : rows) {
+            UUID player;
+            try {
+                player = UUID.fromString(row.getPlayer());
+            } catch (IllegalArgumentException ex) {
+                continue; // Legacy name based row, converted when the player next logs in
+            }
+            Group group = this.resolveGroup(row.getGroupName(), row.getExpiration());
+            List<UUID> list = members.get(group);
+            if (list == null) {
+                list = new ArrayList<>();
+                members.put(group, list);
+            }
+            list.add(player);
+        }
+        for (Map.Entry<Group, List<UUID>> entry : members.entrySet()) {
+            if (this.has(entry.getKey())) {
+                for (UUID player : entry.getValue()) {
+                    callback.call(player, entry.getKey());
+                }
+            }
+        }
+    }
+
+    private Group resolveGroup(String groupName, Timestamp expiration) {
+        String key = groupName + (expiration != null && expiration.getTime() < now ? "\u0000expired" : "");
+        Group group = groups.get(key);
+        if (group == null) {
+            group = plugin.getGroup(groupName);
+            if (group != null && expiration != null && expiration.getTime() < now) {
+                group = group.getFallbackGroup();
+            }
+            if (group == null) {
+                group = plugin.getDefaultGroup();
+            }
+            groups.put(key, group);
+        }
+        return group;
+    }
+
+    private boolean has(Group group) {
+        Boolean result = results.get(group);
+        if (result == null) {
+            result = plugin.getOfflineResolver().has(group, world, permission, false);
+            results.put(group, result);
+        }
+        return result;
+    }
+}
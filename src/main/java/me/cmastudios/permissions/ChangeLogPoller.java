@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps players online on this server up to date with group changes made by
+ * other servers sharing the same database. A background thread reads the
+ * change log entries newer than the last version it has seen and hands the
+ * latest row of each changed player to the main thread.
+ * <p>
+ * Versions are allocated when a change is inserted but become visible when
+ * its transaction commits, so a concurrent transaction may commit a lower
+ * version after a higher one has been read. Entries above a gap in the
+ * versions are applied once as they are read, but the poller keeps reading
+ * from the gap until it is filled or has been open for 5 seconds, after
+ * which it is assumed to come from a rolled back transaction and skipped.
+ * A change whose transaction takes longer than that to commit is missed, so
+ * skipped gaps are logged.
+ *
+ * @author Connor Monahan
+ */
+final class ChangeLogPoller {
+
+    private static final int BATCH_SIZE = 500;
+    private static final long GAP_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    private final Permissions plugin;
+    private final PlayerGroupDatabase database;
+    private final long retention;
+    private final long gapTimeout;
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    private final TreeSet<Long> seen = new TreeSet<>();
+    private long version;
+    private long gapSince;
+    private long lastPrune;
+
+    /**
+     * Create a poller and start polling periodically. Only changes made
+     * after this call are picked up.
+     *
+     * @param plugin Plugin to apply changes to.
+     * @param database Database to read the change log from.
+     * @param interval Milliseconds between polls.
+     * @param retention Milliseconds change log entries are kept.
+     * @param logger Logger for read errors.
+     * @throws SQLException Database error reading the latest version.
+     */
+    ChangeLogPoller(Permissions plugin, PlayerGroupDatabase database, long interval, long retention, Logger logger)
+            throws SQLException {
+        this(plugin, database, interval, retention, GAP_TIMEOUT, logger);
+    }
+
+    /**
+     * Create a poller with a custom gap timeout, for tests.
+     *
+     * @param gapTimeout Nanoseconds to wait for a gap in the versions to be
+     * filled.
+     */
+    ChangeLogPoller(Permissions plugin, PlayerGroupDatabase database, long interval, long retention, long gapTimeout,
+                    Logger logger) throws SQLException {
+        this.plugin = plugin;
+        this.database = database;
+        this.retention = retention;
+        this.gapTimeout = gapTimeout;
+        this.logger = logger;
+        this.version = database.getLatestChange();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cPermissions change log poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                    prune();
+                } catch (SQLException ex) {
+                    ChangeLogPoller.this.logger.log(Level.WARNING, "Failed to read group changes of other servers", ex);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Read the changes made since the last poll and hand those made by other
+     * servers to the main thread. Called by the polling thread, or by tests
+     * that poll by hand.
+     *
+     * @throws SQLException Database error.
+     */
+    void poll() throws SQLException {
+        final Map<String, PlayerGroupRow> changed = new HashMap<>();
+        List<PlayerGroupChange> changes;
+        long after = version;
+        do {
+            changes = database.readChanges(after, BATCH_SIZE);
+            for (PlayerGroupChange change : changes) {
+                after = change.getVersion();
+                if (seen.add(after) && !database.getOrigin().equals(change.getOrigin())) {
+                    // Entries are read in version order, so later changes replace earlier ones
+                    changed.put(change.getRow().getPlayer(), change.getRow());
+                }
+            }
+        } while (changes.size() == BATCH_SIZE);
+        this.advance();
+        if (!changed.isEmpty()) {
+            plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    plugin.applyRemoteChanges(changed.values());
+                }
+            });
+        }
+    }
+
+    private void advance() {
+        while (!seen.isEmpty() && seen.first() == version + 1) {
+            version = seen.pollFirst();
+        }
+        if (seen.isEmpty()) {
+            gapSince = 0;
+            return;
+        }
+        long now = System.nanoTime();
+        if (gapSince == 0) {
+            gapSince = now;
+        } else if (now - gapSince > gapTimeout) {
+            // Skip the gap up to the next version that was read
+            logger.log(Level.INFO, "Skipped group change log versions {0} to {1}, which were not committed"
+                    + " within {2} ms", new Object[] {String.valueOf(version + 1), String.valueOf(seen.first() - 1),
+                    TimeUnit.NANOSECONDS.toMillis(gapTimeout)});
+            version = seen.first() - 1;
+            gapSince = 0;
+            this.advance();
+        }
+    }
+
+    private void prune() throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - lastPrune < retention / 2) {
+            return;
+        }
+        lastPrune = now;
+        database.pruneChanges(new Timestamp(now - retention));
+    }
+
+    /**
+     * Stop polling. Changes that have been read are still applied.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
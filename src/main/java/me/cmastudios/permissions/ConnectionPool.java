@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of database connections. Connections are opened on demand up
+ * to the maximum pool size and handed out without any validation; idle
+ * connections are validated, evicted when unused for too long and replaced
+ * when they reach their maximum lifetime by a background thread instead.
+ * That thread takes one idle connection out of the pool at a time, so the
+ * others can be borrowed while it is validated.
+ *
+ * @author Connor Monahan
+ */
+final class ConnectionPool {
+
+    private static final long BORROW_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long maxLifetime;
+    private final Logger logger;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService maintenance;
+    private int size;
+    private boolean closed;
+
+    /**
+     * Create a new connection pool.
+     *
+     * @param url JDBC url of the database.
+     * @param username Database user, or null if not required.
+     * @param password Database password, or null if not required.
+     * @param maxSize Maximum number of open connections.
+     * @param idleTimeout Milliseconds before an unused connection is closed.
+     * @param maxLifetime Milliseconds before a connection is replaced.
+     * @param validationInterval Milliseconds between checks of idle
+     * connections.
+     * @param logger Logger for connection errors.
+     */
+    ConnectionPool(String url, String username, String password, int maxSize, long idleTimeout,
+                   long maxLifetime, long validationInterval, Logger logger) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        this.logger = logger;
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cPermissions connection pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, validationInterval, validationInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connection from the pool. The connection must be closed to
+     * return it to the pool, preferably with try-with-resources.
+     *
+     * @return pooled connection.
+     * @throws SQLException if the pool is closed, no connection became
+     * available in time or a new connection could not be opened.
+     */
+    PooledConnection borrow() throws SQLException {
+        long remaining = BORROW_TIMEOUT;
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                PooledConnection connection = idle.pollFirst();
+                if (connection != null) {
+                    return connection;
+                }
+                if (size < maxSize) {
+                    size++;
+                    break;
+                }
+                if (remaining <= 0) {
+                    throw new SQLException("Timed out waiting for a database connection");
+                }
+                remaining = available.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", ex);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            Connection connection = username == null
+                ? DriverManager.getConnection(url)
+                : DriverManager.getConnection(url, username, password);
+            return new PooledConnection(this, connection);
+        } catch (SQLException | RuntimeException ex) {
+            this.release();
+            throw ex;
+        }
+    }
+
+    void giveBack(PooledConnection connection) {
+        boolean retire = connection.isBroken()
+            || System.currentTimeMillis() - connection.getCreated() > maxLifetime;
+        lock.lock();
+        try {
+            if (!retire && !closed) {
+                connection.setLastUsed(System.currentTimeMillis());
+                idle.addFirst(connection);
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        this.discard(connection);
+    }
+
+    private void discard(PooledConnection connection) {
+        connection.closeQuietly();
+        this.release();
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            size--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void maintain() {
+        List<PooledConnection> candidates;
+        lock.lock();
+        try {
+            // Oldest first
+            candidates = new ArrayList<>(idle);
+        } finally {
+            lock.unlock();
+        }
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            PooledConnection connection = candidates.get(i);
+            // Only one connection is taken out at a time, so the others stay borrowable
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                if (!idle.remove(connection)) {
+                    // Borrowed since the snapshot
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            long now = System.currentTimeMillis();
+            boolean keep = now - connection.getLastUsed() < idleTimeout
+                && now - connection.getCreated() < maxLifetime;
+            if (keep) {
+                try {
+                    keep = connection.getConnection().isValid(1);
+                } catch (SQLException ex) {
+                    logger.log(Level.FINE, "Database connection failed validation", ex);
+                    keep = false;
+                }
+            }
+            if (keep) {
+                lock.lock();
+                try {
+                    if (!closed) {
+                        idle.addLast(connection);
+                        available.signal();
+                        continue;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            this.discard(connection);
+        }
+    }
+
+    /**
+     * Close all idle connections and stop accepting new borrows. Connections
+     * currently in use are closed when they are returned.
+     */
+    void close() {
+        maintenance.shutdownNow();
+        List<PooledConnection> remaining;
+        lock.lock();
+        try {
+            closed = true;
+            remaining = new ArrayList<>(idle);
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection connection : remaining) {
+            this.discard(connection);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Demotes online players at the moment their temporary rank expires. Pending
+ * expirations are kept in a sorted set ordered by expiration date and a
+ * single delayed task is scheduled for the earliest one, so scheduling and
+ * cancelling cost O(log n), the set only holds players who are being tracked
+ * and nothing runs on ticks where no rank expires.
+ * <p>
+ * This class must only be used from the main thread.
+ *
+ * @author Connor Monahan
+ */
+final class ExpirationScheduler {
+
+    private static final long MILLIS_PER_TICK = 50;
+
+    private final Permissions plugin;
+    private final NavigableSet<Entry> queue = new TreeSet<>();
+    private final Map<UUID, Entry> entries = new HashMap<>();
+    private BukkitTask task;
+    private long taskTime;
+
+    ExpirationScheduler(Permissions plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Schedule a player's rank to expire, replacing any earlier schedule for
+     * the player.
+     *
+     * @param player Player's unique id.
+     * @param expiration Time in milliseconds when the rank expires.
+     */
+    void schedule(UUID player, long expiration) {
+        Entry entry = new Entry(player, expiration);
+        Entry previous = entries.put(player, entry);
+        if (previous != null) {
+            queue.remove(previous);
+        }
+        queue.add(entry);
+        this.reschedule();
+    }
+
+    /**
+     * Stop tracking a player, for example because their rank is now permanent
+     * or they logged out. A pending task for the player's expiration is left
+     * to run and finds nothing due.
+     *
+     * @param player Player's unique id.
+     */
+    void cancel(UUID player) {
+        Entry entry = entries.remove(player);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    /**
+     * Stop all tracking and cancel the pending task.
+     */
+    void clear() {
+        entries.clear();
+        queue.clear();
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * Get the number of players whose rank expiration is tracked.
+     *
+     * @return number of pending expirations.
+     */
+    int getPending() {
+        return queue.size();
+    }
+
+    private void reschedule() {
+        Entry head = queue.isEmpty() ? null : queue.first();
+        if (head == null) {
+            if (task != null) {
+                task.cancel();
+                task = null;
+            }
+            return;
+        }
+        if (task != null) {
+            if (taskTime <= head.expiration) {
+                return;
+            }
+            task.cancel();
+        }
+        long delay = Math.max(0, head.expiration - System.currentTimeMillis());
+        taskTime = head.expiration;
+        task = plugin.getServer().getScheduler().runTaskLater(plugin, new Runnable() {
+            @Override
+            public void run() {
+                task = null;
+                expireDue();
+            }
+        }, (delay + MILLIS_PER_TICK - 1) / MILLIS_PER_TICK);
+    }
+
+    private void expireDue() {
+        long now = System.currentTimeMillis();
+        while (!queue.isEmpty() && queue.first().expiration <= now) {
+            Entry head = queue.pollFirst();
+            entries.remove(head.player);
+            plugin.expireRank(head.player);
+        }
+        this.reschedule();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final UUID player;
+        private final long expiration;
+
+        private Entry(UUID player, long expiration) {
+            this.player = player;
+            this.expiration = expiration;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = Long.compare(expiration, other.expiration);
+            return result != 0 ? result : player.compareTo(other.player);
+        }
+    }
+}
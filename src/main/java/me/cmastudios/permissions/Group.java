@@ -18,11 +18,9 @@ package me.cmastudios.permissions;
 
 import org.bukkit.ChatColor;
 import org.bukkit.World;
-import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.ConfigurationSection;
 
 import java.util.*;
-import java.util.AbstractMap.SimpleEntry;
 
 /**
  * Permissions groups define the permissions and other attributes (e.g name
@@ -36,8 +34,11 @@ import java.util.AbstractMap.SimpleEntry;
  * <li>Rank expiration fallback
  * </ul>
  * <p>
- * Please do not store copies of this class after a server reload. This class
- * contains a copy of the plugin's configuration.
+ * Groups are compiled by the {@link GroupRegistry} when the configuration is
+ * loaded, so all lookups on a group are served from precomputed tables. The
+ * tables are {@link PermissionSet}s, shared by every member of the group. Please
+ * do not store copies of this class after a server reload, as they will not
+ * reflect the new configuration.
  *
  * @see PermissionsPlayer
  * @author Connor Monahan
@@ -50,56 +51,147 @@ public class Group {
     private final String prefix;
     private final String suffix;
     private final boolean allowedToBuild;
-    private final Set<Group> inheritedGroups;
-    private final String fallbackGroup;
-    private final Configuration config;
+    private final List<String> inheritedGroupNames;
+    private final String fallbackGroupName;
+    private final List<String> permissionNodes;
+    private final Map<String, List<String>> worldPermissionNodes;
+    private Set<Group> inheritedGroups;
+    private Group fallbackGroup;
+    private PermissionSet permissions;
+    private Map<String, PermissionSet> worldPermissions;
+    private Map<String, PermissionSet> worldOverlays;
+    private PermissionTrie wildcards;
+    private Map<String, PermissionTrie> worldWildcards;
+    private boolean hasWildcards;
 
     /**
-     * Create a new group from the group in the configuration.
+     * Create a new group from the group in the configuration. The group is not
+     * usable until it has been linked and compiled by the registry.
      *
-     * @param config Plugin configuration, containing group information.
-     * @param name Group name.
+     * @param groupRootSection Configuration section of the group.
      */
-    Group(Configuration config, String name) {
-        ConfigurationSection groupRootSection = config.getConfigurationSection("groups." + name);
+    Group(ConfigurationSection groupRootSection) {
         this.name = groupRootSection.getName();
         this.Default = groupRootSection.getBoolean("default");
         this.prefix = ChatColor.translateAlternateColorCodes('&', groupRootSection.getString("info.prefix"));
         this.suffix = ChatColor.translateAlternateColorCodes('&', groupRootSection.getString("info.suffix"));
         this.allowedToBuild = groupRootSection.getBoolean("info.build");
-        this.inheritedGroups = new LinkedHashSet<>();
-        for (String inheritedGroupName : groupRootSection.getStringList("inheritance")) {
-            ConfigurationSection section = groupRootSection.getParent().getConfigurationSection(inheritedGroupName);
-            if (section == null) {
+        this.inheritedGroupNames = groupRootSection.getStringList("inheritance");
+        this.fallbackGroupName = groupRootSection.getString("info.fallback", null);
+        this.permissionNodes = groupRootSection.getStringList("permissions");
+        this.worldPermissionNodes = new HashMap<>();
+        ConfigurationSection worldsSection = groupRootSection.getConfigurationSection("worlds");
+        if (worldsSection != null) {
+            for (String world : worldsSection.getKeys(false)) {
+                this.worldPermissionNodes.put(world, worldsSection.getStringList(world));
+            }
+        }
+    }
+
+    /**
+     * Resolve references to other groups by name.
+     *
+     * @param groups All groups in the registry.
+     * @param defaultGroup The server's default group, or null if none.
+     */
+    void link(Map<String, Group> groups, Group defaultGroup) {
+        Set<Group> inherited = new LinkedHashSet<>();
+        for (String inheritedGroupName : inheritedGroupNames) {
+            Group group = groups.get(inheritedGroupName);
+            if (group == null) {
                 throw new RuntimeException("Failed to load information for group '" + name
                     + "': Unknown group in inheritance '" + inheritedGroupName + "'.");
             }
-            this.inheritedGroups.add(new Group(config, inheritedGroupName));
+            inherited.add(group);
         }
-        this.fallbackGroup = groupRootSection.getString("info.fallback", null);
-        this.config = config;
+        this.inheritedGroups = Collections.unmodifiableSet(inherited);
+        Group fallback = fallbackGroupName == null ? null : groups.get(fallbackGroupName);
+        this.fallbackGroup = fallback == null ? defaultGroup : fallback;
     }
 
     /**
-     * Get the server's default group.
+     * Flatten the effective permissions of this group. Inherited groups must
+     * already be compiled.
      *
-     * @param config Permissions configuration file
-     * @return group or null if not found. The group should never be null.
+     * @param autoPermissions Permissions assigned based on group name.
+     * @param worlds Names of all worlds with world specific permissions.
      */
-    private Group getDefaultGroup(Configuration config) {
-        for (String key : config.getConfigurationSection("groups").getKeys(false)) {
-            if (config.getBoolean(String.format("groups.%s.default", key))) {
-                return new Group(config, key);
+    void compile(List<String> autoPermissions, Set<String> worlds) {
+        this.permissions = this.resolvePermissions(autoPermissions, null);
+        Map<String, PermissionSet> compiledWorlds = new HashMap<>();
+        Map<String, PermissionSet> overlays = new HashMap<>();
+        Map<String, PermissionTrie> compiledWildcards = new HashMap<>();
+        this.wildcards = PermissionTrie.compile(this.permissions);
+        this.hasWildcards = !this.wildcards.isEmpty();
+        for (String world : worlds) {
+            PermissionSet worldMap = this.resolvePermissions(autoPermissions, world);
+            if (!worldMap.equals(this.permissions)) {
+                compiledWorlds.put(world, worldMap);
+                overlays.put(world, worldMap.difference(this.permissions));
+                PermissionTrie worldTrie = PermissionTrie.compile(worldMap);
+                compiledWildcards.put(world, worldTrie);
+                this.hasWildcards |= !worldTrie.isEmpty();
             }
         }
-        return null;
+        this.worldPermissions = compiledWorlds;
+        this.worldOverlays = overlays;
+        this.worldWildcards = compiledWildcards;
     }
 
-    private Group getGroup(Configuration config, String name) {
-        if (config.contains("groups." + name)) {
-            return new Group(config, name);
+    private PermissionSet resolvePermissions(List<String> autoPermissions, String world) {
+        // Each position is a layer, so its wildcards override nodes set by earlier positions
+        PermissionSet.Builder permissions = new PermissionSet.Builder();
+        // Position 1, inherited groups
+        for (Group group : this.getInheritedGroups()) {
+            permissions.merge(world == null ? group.permissions : group.getPermissions(world));
         }
-        return null;
+        // Position 2, permissions assigned based on group name
+        permissions.layer();
+        for (String namePermission : autoPermissions) {
+            this.putPermission(permissions, String.format(namePermission, name));
+        }
+        // Position 3, general group-specific permissions. The build flag is part of this position so that
+        // the group's own wildcards do not override it.
+        permissions.layer();
+        permissions.set("cpermissions.build", this.isAllowedToBuild());
+        for (String perm : permissionNodes) {
+            this.putPermission(permissions, perm);
+        }
+        // Position 4, world & group specific permissions
+        if (world != null && worldPermissionNodes.containsKey(world)) {
+            permissions.layer();
+            for (String perm : worldPermissionNodes.get(world)) {
+                this.putPermission(permissions, perm);
+            }
+        }
+        return permissions.build();
+    }
+
+    Set<String> getWorldNames() {
+        return worldPermissionNodes.keySet();
+    }
+
+    /**
+     * Check if another group grants exactly the same permissions as this
+     * group in every world. This compares the compiled permissions, so
+     * changes to inherited groups are included.
+     *
+     * @param other Group to compare, usually the same group from another
+     * registry.
+     * @return true if the permissions are the same
+     */
+    boolean hasSamePermissions(Group other) {
+        return permissions.equals(other.permissions) && worldPermissions.equals(other.worldPermissions);
+    }
+
+    /**
+     * Check if another group has the same display name prefix and suffix.
+     *
+     * @param other Group to compare.
+     * @return true if the prefix and suffix are the same
+     */
+    boolean hasSameDisplay(Group other) {
+        return prefix.equals(other.prefix) && suffix.equals(other.suffix);
     }
 
     /**
@@ -166,8 +258,7 @@ public class Group {
      * @return fallback group.
      */
     public Group getFallbackGroup() {
-        Group fallback = getGroup(config, fallbackGroup);
-        return fallback == null ? getDefaultGroup(config) : fallback;
+        return fallbackGroup;
     }
 
     /**
@@ -175,51 +266,76 @@ public class Group {
      * from other groups and permissions based on group name.
      *
      * @param world World for world-specific permissions section
-     * @return permissions assigned to this group in the specified world
+     * @return copy of the permissions assigned to this group in the specified
+     * world
      */
     public Map<String, Boolean> getPermissions(World world) {
-        Map<String, Boolean> permissions = new HashMap<>();
-        // Position 1, inherited groups
-        try {
-            for (Group group : this.getInheritedGroups()) {
-                for (Map.Entry<String, Boolean> entry : group.getPermissions(world).entrySet()) {
-                    // Warning: this could cause a infinite do-loop if used by stupid admins
-                    permissions.put(entry.getKey(), entry.getValue());
-                }
-            }
-        } catch (StackOverflowError e) {
-            permissions.clear();
-            throw new RuntimeException("WARNING! Potential inheritance loop!");
-            // No exception passing to prevent 1000000 line stack traces
-        }
-        // Position 2, permissions assigned based on group name
-        for (String namePermission : config.getStringList("autoperms")) {
-            SimpleEntry<String, Boolean> permission = this.parsePermission(String.format(namePermission, name));
-            permissions.put(permission.getKey(), permission.getValue());
-        }
-        permissions.put("cpermissions.build", this.isAllowedToBuild());
-        // Position 3, general group-specific permissions
-        for (String perm : config.getStringList(String.format("groups.%s.permissions", name))) {
-            SimpleEntry<String, Boolean> permission = this.parsePermission(perm);
-            permissions.put(permission.getKey(), permission.getValue());
-        }
-        // Position 4, world & group specific permissions
-        if (world != null) {
-            for (String perm : config.getStringList(String.format("groups.%s.worlds.%s", name, world.getName()))) {
-                SimpleEntry<String, Boolean> permission = this.parsePermission(perm);
-                permissions.put(permission.getKey(), permission.getValue());
-            }
-        }
-        return permissions;
+        return new HashMap<>(this.getPermissionSet(world));
+    }
+
+    /**
+     * Get the compiled permissions of this group in a world, shared by every
+     * member of the group. See {@link #getPermissions(World)}.
+     *
+     * @param world World for world-specific permissions section
+     * @return unmodifiable permissions assigned to this group in the specified
+     * world
+     */
+    PermissionSet getPermissionSet(World world) {
+        return world == null ? permissions : this.getPermissions(world.getName());
+    }
+
+    PermissionSet getPermissions(String world) {
+        PermissionSet worldMap = worldPermissions.get(world);
+        return worldMap == null ? permissions : worldMap;
+    }
+
+    /**
+     * Get the compiled wildcard nodes of this group in a world.
+     *
+     * @param world World for world-specific permissions section
+     * @return wildcard trie, empty if the group has no wildcards in the world
+     */
+    PermissionTrie getWildcards(World world) {
+        return world == null ? wildcards : this.getWildcards(world.getName());
+    }
+
+    PermissionTrie getWildcards(String world) {
+        PermissionTrie trie = worldWildcards.get(world);
+        return trie == null ? wildcards : trie;
+    }
+
+    /**
+     * Check if this group has wildcard nodes in any world.
+     *
+     * @return true if the group has wildcards
+     */
+    boolean hasWildcards() {
+        return hasWildcards;
+    }
+
+    /**
+     * Get the permissions that differ between a world and the group's
+     * permissions outside of any world. World permissions only add or
+     * override nodes, so these entries on top of {@link #getPermissionSet}
+     * with a null world give the permissions in the world.
+     *
+     * @param world World for world-specific permissions section
+     * @return unmodifiable overlay, empty if the world has no specific
+     * permissions
+     */
+    Map<String, Boolean> getWorldOverlay(World world) {
+        PermissionSet overlay = world == null ? null : worldOverlays.get(world.getName());
+        return overlay == null ? PermissionSet.EMPTY : overlay;
     }
 
-    private AbstractMap.SimpleEntry<String, Boolean> parsePermission(String permission) {
+    private void putPermission(PermissionSet.Builder permissions, String permission) {
         boolean enabled = true;
         if (permission.startsWith("-")) {
             // Negated permission
             enabled = false;
             permission = permission.substring(1);
         }
-        return new AbstractMap.SimpleEntry<>(permission, enabled);
+        permissions.set(permission, enabled);
     }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.Configuration;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+
+import java.util.*;
+
+/**
+ * Immutable set of groups compiled from the plugin configuration. The
+ * registry holds exactly one {@link Group} instance per group name, with
+ * inheritance, fallback groups and effective permissions for every configured
+ * world resolved once when the registry is compiled.
+ * <p>
+ * A new registry is compiled when the plugin is enabled and every time the
+ * configuration is reloaded. Groups from an older registry should not be used
+ * after that point.
+ *
+ * @author Connor Monahan
+ */
+final class GroupRegistry {
+
+    private final Map<String, Group> groups;
+    private final Group defaultGroup;
+
+    private GroupRegistry(Map<String, Group> groups, Group defaultGroup) {
+        this.groups = groups;
+        this.defaultGroup = defaultGroup;
+    }
+
+    /**
+     * Compile all groups in the configuration.
+     *
+     * @param config Plugin configuration, containing group information.
+     * @return compiled registry.
+     * @throws RuntimeException if a group inherits an unknown group or if
+     * there is a loop in group inheritance.
+     */
+    static GroupRegistry compile(Configuration config) {
+        ConfigurationSection groupsSection = config.getConfigurationSection("groups");
+        Map<String, Group> groups = new LinkedHashMap<>();
+        Group defaultGroup = null;
+        if (groupsSection != null) {
+            for (String key : groupsSection.getKeys(false)) {
+                Group group = new Group(groupsSection.getConfigurationSection(key));
+                groups.put(group.getName(), group);
+                if (defaultGroup == null && group.isDefault()) {
+                    defaultGroup = group;
+                }
+            }
+        }
+        List<String> autoPermissions = config.getStringList("autoperms");
+        Set<String> worlds = new HashSet<>();
+        for (Group group : groups.values()) {
+            group.link(groups, defaultGroup);
+            worlds.addAll(group.getWorldNames());
+        }
+        Set<Group> compiled = new HashSet<>();
+        for (Group group : groups.values()) {
+            compile(group, autoPermissions, worlds, compiled, new LinkedHashSet<Group>());
+        }
+        return new GroupRegistry(Collections.unmodifiableMap(groups), defaultGroup);
+    }
+
+    private static void compile(Group group, List<String> autoPermissions, Set<String> worlds,
+                                Set<Group> compiled, Set<Group> visiting) {
+        if (compiled.contains(group)) {
+            return;
+        }
+        if (!visiting.add(group)) {
+            throw new RuntimeException("Failed to load information for group '" + group.getName()
+                + "': Inheritance loop detected.");
+        }
+        for (Group inherited : group.getInheritedGroups()) {
+            compile(inherited, autoPermissions, worlds, compiled, visiting);
+        }
+        visiting.remove(group);
+        group.compile(autoPermissions, worlds);
+        compiled.add(group);
+    }
+
+    /**
+     * Get a group by name.
+     *
+     * @param name Group name.
+     * @return group or null if there is no group by that name.
+     */
+    Group getGroup(String name) {
+        return name == null ? null : groups.get(name);
+    }
+
+    /**
+     * Get the server's default group.
+     *
+     * @return default group.
+     * @throws RuntimeException if no default group is defined.
+     */
+    Group getDefaultGroup() {
+        if (defaultGroup == null) {
+            throw new RuntimeException(new InvalidConfigurationException(
+                "There is no default group defined for this server!"));
+        }
+        return defaultGroup;
+    }
+
+    /**
+     * Get all groups in the registry.
+     *
+     * @return unmodifiable collection of groups, in configuration order.
+     */
+    Collection<Group> getGroups() {
+        return groups.values();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.Configuration;
+import org.bukkit.permissions.Permissible;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Permission nodes checked often enough that their result is cached for
+ * every online player. The build permission always takes the first bit, and
+ * the configuration may list more nodes under hot-permissions. When
+ * permissions are applied to a player, each node their permissions define is
+ * checked once and the results are stored as a bit set, so later checks read
+ * a single bit. Nodes the player's permissions leave undefined are not
+ * cached.
+ * <p>
+ * A new instance is created every time the configuration is loaded. Bits
+ * computed against an older instance must not be read with a newer one.
+ *
+ * @author Connor Monahan
+ */
+final class HotPermissions {
+
+    static final String BUILD_PERMISSION = "cpermissions.build";
+    static final int BUILD = 0;
+    private static final int MAX_NODES = Long.SIZE;
+
+    private final String[] nodes;
+    private final Map<String, Integer> indexes;
+    private final boolean buildProtected;
+
+    private HotPermissions(String[] nodes, Map<String, Integer> indexes, boolean buildProtected) {
+        this.nodes = nodes;
+        this.indexes = indexes;
+        this.buildProtected = buildProtected;
+    }
+
+    /**
+     * Read the hot permission nodes from the configuration.
+     *
+     * @param config Plugin configuration.
+     * @param logger Logger for nodes that do not fit.
+     * @return hot permissions.
+     */
+    static HotPermissions load(Configuration config, Logger logger) {
+        List<String> nodes = new ArrayList<>();
+        Map<String, Integer> indexes = new HashMap<>();
+        nodes.add(BUILD_PERMISSION);
+        indexes.put(BUILD_PERMISSION, BUILD);
+        for (String node : config.getStringList("hot-permissions")) {
+            node = node.toLowerCase(Locale.ENGLISH);
+            if (indexes.containsKey(node)) {
+                continue;
+            }
+            if (nodes.size() == MAX_NODES) {
+                logger.warning("Too many hot-permissions, ignoring " + node);
+                continue;
+            }
+            indexes.put(node, nodes.size());
+            nodes.add(node);
+        }
+        boolean buildProtected = config.getString("buildperm", BUILD_PERMISSION).equals(BUILD_PERMISSION);
+        return new HotPermissions(nodes.toArray(new String[nodes.size()]), indexes, buildProtected);
+    }
+
+    /**
+     * Find the hot nodes set explicitly by a player's resolved permissions.
+     * Only these bits may be read back, as other nodes can be granted by
+     * defaults, operator status or other plugins at any time. The build
+     * permission is set by every group.
+     *
+     * @param permissions Permissions applied to the player.
+     * @return bit set with bit i set if the permissions contain node i.
+     */
+    long defined(Map<String, Boolean> permissions) {
+        long defined = 0;
+        for (String node : permissions.keySet()) {
+            int index = this.indexOf(node);
+            if (index >= 0) {
+                defined |= 1L << index;
+            }
+        }
+        return defined;
+    }
+
+    /**
+     * Check the defined hot nodes on a player whose permissions have just
+     * been applied.
+     *
+     * @param player Player to check.
+     * @param defined Bits of the nodes to check, from {@link #defined}.
+     * @return bit set with bit i set if node i is defined and the player has
+     * it.
+     */
+    long compute(Permissible player, long defined) {
+        long capabilities = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if ((defined & (1L << i)) != 0 && player.hasPermission(nodes[i])) {
+                capabilities |= 1L << i;
+            }
+        }
+        return capabilities;
+    }
+
+    /**
+     * Get the bit of a node.
+     *
+     * @param permission Permission node.
+     * @return bit index, or -1 if the node is not hot.
+     */
+    int indexOf(String permission) {
+        Integer index = indexes.get(permission.toLowerCase(Locale.ENGLISH));
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Check if this plugin should prevent players without the build
+     * permission from placing and breaking blocks.
+     *
+     * @return true if the buildperm setting uses the internal build
+     * protection.
+     */
+    boolean isBuildProtected() {
+        return buildProtected;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived handoff of player records loaded during the asynchronous
+ * pre-login phase to the main thread login handler. Entries are taken once
+ * and are discarded if the player does not log in within a short time.
+ * <p>
+ * A record is only stored if the player was not invalidated while it was
+ * being loaded, since it may have been read before their group was changed.
+ * Expired entries are removed when they are taken, and by a sweep that runs
+ * at most once per entry lifetime when records are stored.
+ *
+ * @author Connor Monahan
+ */
+final class LoginCache {
+
+    private static final long ENTRY_LIFETIME = TimeUnit.SECONDS.toNanos(30);
+
+    private final Map<UUID, Entry> entries = new HashMap<>();
+    private final Map<UUID, Load> loads = new HashMap<>();
+    private long lastSweep = System.nanoTime();
+
+    /**
+     * Start loading the record of a player who is about to log in. The
+     * record must be passed to {@link #complete} when the load finishes.
+     *
+     * @param player Player's unique id.
+     * @return the load, which is invalidated if the player's group changes.
+     */
+    synchronized Load begin(UUID player) {
+        Load load = new Load();
+        loads.put(player, load);
+        return load;
+    }
+
+    /**
+     * Finish loading a player's record, and store it unless the player was
+     * invalidated or a newer load was started since the load began.
+     *
+     * @param player Player's unique id.
+     * @param load Load returned by {@link #begin}.
+     * @param record Record loaded from the database, or null if the load
+     * failed.
+     */
+    synchronized void complete(UUID player, Load load, PlayerGroupRecord record) {
+        if (loads.get(player) != load) {
+            return;
+        }
+        loads.remove(player);
+        if (record == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastSweep > ENTRY_LIFETIME) {
+            // Players who were refused after pre-login never take their record
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                if (it.next().isExpired(now)) {
+                    it.remove();
+                }
+            }
+            lastSweep = now;
+        }
+        entries.put(player, new Entry(record, now));
+    }
+
+    /**
+     * Remove and return the record stored for a player.
+     *
+     * @param player Player's unique id.
+     * @return stored record or null if none was stored or it has expired.
+     */
+    synchronized PlayerGroupRecord take(UUID player) {
+        Entry entry = entries.remove(player);
+        if (entry == null || entry.isExpired(System.nanoTime())) {
+            return null;
+        }
+        return entry.record;
+    }
+
+    /**
+     * Discard the record stored for a player, and any record of theirs that
+     * is still being loaded, for example because their group was changed
+     * while they were logging in.
+     *
+     * @param player Player's unique id.
+     */
+    synchronized void invalidate(UUID player) {
+        entries.remove(player);
+        loads.remove(player);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        loads.clear();
+    }
+
+    /**
+     * A load of a player's record in progress.
+     */
+    static final class Load {
+
+        private Load() {
+        }
+    }
+
+    private static final class Entry {
+
+        private final PlayerGroupRecord record;
+        private final long created;
+
+        private Entry(PlayerGroupRecord record, long created) {
+            this.record = record;
+            this.created = created;
+        }
+
+        private boolean isExpired(long now) {
+            return now - created > ENTRY_LIFETIME;
+        }
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Player group storage in a memory-mapped file, for servers that do not
+ * share their players with other servers. Lookups are served from an index
+ * in memory and the mapped file without any I/O, so they take microseconds
+ * instead of a SQL round trip.
+ * <p>
+ * The file is an append-only log of fixed size records. A player record is
+ * 32 bytes: the player's unique id, the record type, the 3 byte id of their
+ * group, the expiration time of their rank and a checksum. Group ids are
+ * assigned by group definition records, which have their own record type and
+ * are followed by the group's name. The latest record of a player replaces
+ * earlier ones.
+ * <p>
+ * Writes are crash-safe. The header holds the end of the committed log,
+ * which only moves forward once the records before it have been forced to
+ * disk, so a crash loses at most the batch being written. When most of the
+ * log is replaced records, it is compacted: a snapshot of the latest records
+ * is written to a separate file first and then copied over the log, and an
+ * interrupted copy is finished the next time the file is opened. If copying
+ * fails while the store is open, the log may be partly overwritten, so the
+ * store refuses all reads and writes until the copy has been finished. The
+ * file is never truncated or replaced while mapped, which some platforms
+ * forbid.
+ * <p>
+ * The file is mapped again, larger, when the log outgrows it. A mapping
+ * cannot be released portably before it is garbage collected, so the file
+ * grows straight past the compaction size and by doubling after that,
+ * which keeps the replaced mappings still waiting to be collected smaller
+ * than the current one in total.
+ * <p>
+ * Only unique id keys can be stored, so legacy name based rows must be
+ * converted before they are imported.
+ *
+ * @author Connor Monahan
+ */
+class MappedPlayerGroupStore implements PlayerGroupStore {
+
+    private static final int MAGIC = 0x6350524d; // "cPRM"
+    private static final int FORMAT = 2;
+    private static final int RECORD_SIZE = 32;
+    private static final int HEADER_SIZE = RECORD_SIZE;
+    private static final int TAIL_OFFSET = 8;
+    private static final int TYPE_OFFSET = 16;
+    private static final int CHECKSUM_OFFSET = 28;
+    private static final byte TYPE_PLAYER = 1;
+    private static final byte TYPE_GROUP = 2;
+    private static final int MAX_GROUP_NAME = 1024;
+    // Group ids take the 3 bytes after the record type
+    private static final int NO_GROUP = 0xffffff;
+    private static final long NO_EXPIRATION = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 1 << 16;
+    private static final int MIN_COMPACT_SIZE = 1 << 20;
+
+    private final Permissions plugin;
+    private final Metrics metrics;
+    private final File file;
+    private final File snapshot;
+    private final FileChannel channel;
+    private final TreeMap<UUID, Integer> index = new TreeMap<>();
+    private final List<String> groupNames = new ArrayList<>();
+    private final Map<String, Integer> groupIds = new HashMap<>();
+    private final byte[] scratch = new byte[RECORD_SIZE + MAX_GROUP_NAME];
+    private MappedByteBuffer buffer;
+    private int tail;
+    private boolean restorePending;
+
+    /**
+     * Open the store, creating the file if it does not exist.
+     *
+     * @param plugin Plugin to resolve groups with.
+     * @param file File to store players in.
+     * @throws IOException Error reading the file, or it is not a player file.
+     */
+    MappedPlayerGroupStore(Permissions plugin, File file) throws IOException {
+        this.plugin = plugin;
+        this.metrics = plugin.getMetrics();
+        this.file = file;
+        this.snapshot = new File(file.getPath() + ".compact");
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(file.getName() + " is too large to be mapped");
+        }
+        this.map(Math.max(MIN_CAPACITY, (int) size));
+        if (size == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT);
+            buffer.putInt(TAIL_OFFSET, HEADER_SIZE);
+            buffer.force();
+        } else if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(file.getName() + " is not a cPermissions player file");
+        } else if (buffer.getInt(4) != FORMAT) {
+            throw new IOException(file.getName() + " was written by an incompatible version of cPermissions");
+        }
+        if (snapshot.exists()) {
+            this.restoreSnapshot();
+        }
+        this.readLog();
+    }
+
+    private void map(int capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        long required = (long) tail + length;
+        if (required > buffer.capacity()) {
+            if (required > Integer.MAX_VALUE) {
+                throw new IOException(file.getName() + " is full");
+            }
+            // Grow in large steps, as the old mapping is only released once it is garbage collected. Most
+            // logs are compacted before they grow much past the compaction size, so they are mapped once more.
+            long capacity = Math.max(required, Math.max(2L * buffer.capacity(), 2L * MIN_COMPACT_SIZE));
+            this.map((int) Math.min(Integer.MAX_VALUE, capacity));
+        }
+    }
+
+    /**
+     * Rebuild the index from the committed part of the log.
+     */
+    private void readLog() {
+        index.clear();
+        groupNames.clear();
+        groupIds.clear();
+        int end = Math.min(buffer.getInt(TAIL_OFFSET), buffer.capacity());
+        tail = HEADER_SIZE;
+        while (tail < end) {
+            int length = this.readRecord(tail, end);
+            if (length < 0) {
+                plugin.getLogger().log(Level.WARNING, "{0} is damaged, players saved after byte {1} are lost",
+                        new Object[] {file.getName(), tail});
+                break;
+            }
+            tail += length;
+        }
+    }
+
+    private int readRecord(int offset, int end) {
+        if (offset + RECORD_SIZE > end) {
+            return -1;
+        }
+        byte type = buffer.get(offset + TYPE_OFFSET);
+        int group = groupAt(buffer, offset);
+        long value = buffer.getLong(offset + 20);
+        int length = RECORD_SIZE;
+        boolean definition = type == TYPE_GROUP;
+        if (!definition && type != TYPE_PLAYER) {
+            return -1;
+        }
+        if (definition) {
+            if (value < 0 || value > MAX_GROUP_NAME || group != groupNames.size()) {
+                return -1;
+            }
+            length += pad((int) value);
+            if (offset + length > end) {
+                return -1;
+            }
+        }
+        if (checksum(buffer, offset, length, scratch) != buffer.getInt(offset + CHECKSUM_OFFSET)) {
+            return -1;
+        }
+        if (definition) {
+            String name = new String(scratch, RECORD_SIZE, (int) value, StandardCharsets.UTF_8);
+            groupNames.add(name);
+            groupIds.put(name, group);
+        } else {
+            index.put(new UUID(buffer.getLong(offset), buffer.getLong(offset + 8)), offset);
+        }
+        return length;
+    }
+
+    private static int groupAt(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + TYPE_OFFSET) & NO_GROUP;
+    }
+
+    private static void putTypeAndGroup(ByteBuffer buffer, int offset, byte type, int group) {
+        buffer.putInt(offset + TYPE_OFFSET, (type << 24) | (group & NO_GROUP));
+    }
+
+    private static int pad(int length) {
+        return (length + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+
+    /**
+     * Compute the checksum of a record, covering everything but the checksum
+     * itself. The record is copied into the scratch array.
+     */
+    private static int checksum(ByteBuffer buffer, int offset, int length, byte[] scratch) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        record.get(scratch, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(scratch, 0, CHECKSUM_OFFSET);
+        crc.update(scratch, RECORD_SIZE, length - RECORD_SIZE);
+        return (int) crc.getValue();
+    }
+
+    private static int putPlayer(ByteBuffer buffer, int offset, UUID player, int group, long expiration,
+                                 byte[] scratch) {
+        buffer.putLong(offset, player.getMostSignificantBits());
+        buffer.putLong(offset + 8, player.getLeastSignificantBits());
+        putTypeAndGroup(buffer, offset, TYPE_PLAYER, group);
+        buffer.putLong(offset + 20, expiration);
+        buffer.putInt(offset + CHECKSUM_OFFSET, checksum(buffer, offset, RECORD_SIZE, scratch));
+        return RECORD_SIZE;
+    }
+
+    private static int putGroup(ByteBuffer buffer, int offset, int group, byte[] name, byte[] scratch) {
+        int length = RECORD_SIZE + pad(name.length);
+        for (int i = 0; i < length; i += 8) {
+            buffer.putLong(offset + i, 0);
+        }
+        putTypeAndGroup(buffer, offset, TYPE_GROUP, group);
+        buffer.putLong(offset + 20, name.length);
+        for (int i = 0; i < name.length; i++) {
+            buffer.put(offset + RECORD_SIZE + i, name[i]);
+        }
+        buffer.putInt(offset + CHECKSUM_OFFSET, checksum(buffer, offset, length, scratch));
+        return length;
+    }
+
+    private int groupId(String name) throws IOException {
+        if (name == null) {
+            return NO_GROUP;
+        }
+        Integer id = groupIds.get(name);
+        if (id == null) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_GROUP_NAME) {
+                throw new IOException("Group name is too long: " + name);
+            }
+            if (groupNames.size() == NO_GROUP) {
+                throw new IOException(file.getName() + " cannot hold any more groups");
+            }
+            id = groupNames.size();
+            this.ensureCapacity(RECORD_SIZE + pad(bytes.length));
+            tail += putGroup(buffer, tail, id, bytes, scratch);
+            groupNames.add(name);
+            groupIds.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Force the records written since the last commit to disk, then move the
+     * end of the committed log past them.
+     */
+    private void commit() {
+        buffer.force();
+        buffer.putInt(TAIL_OFFSET, tail);
+        buffer.force();
+    }
+
+    @Override
+    public PlayerGroupRecord load(UUID player, String name) throws SQLException {
+        long start = System.nanoTime();
+        PlayerGroupRow row;
+        synchronized (this) {
+            this.checkRestored();
+            Integer offset = index.get(player);
+            row = offset == null ? null : this.readRow(player, offset);
+        }
+        metrics.record(Metrics.Timer.DATABASE_LOAD, start);
+        Group group = row == null ? null : plugin.getGroup(row.getGroupName());
+        return group == null ? null : new PlayerGroupRecord(group, row.getExpiration());
+    }
+
+    private PlayerGroupRow readRow(UUID player, int offset) {
+        int group = groupAt(buffer, offset);
+        long expiration = buffer.getLong(offset + 20);
+        return new PlayerGroupRow(player.toString(), group == NO_GROUP ? null : groupNames.get(group),
+                expiration == NO_EXPIRATION ? null : new Timestamp(expiration));
+    }
+
+    @Override
+    public void save(UUID player, Group group, Timestamp expirationDate) throws SQLException {
+        this.saveRows(Collections.singletonList(new PlayerGroupRow(player.toString(), group.getName(),
+                expirationDate)));
+    }
+
+    @Override
+    public void saveAll(Map<UUID, PlayerGroupRecord> records) throws SQLException {
+        List<PlayerGroupRow> rows = new ArrayList<>(records.size());
+        for (Map.Entry<UUID, PlayerGroupRecord> entry : records.entrySet()) {
+            rows.add(new PlayerGroupRow(entry.getKey().toString(), entry.getValue().getGroup().getName(),
+                    entry.getValue().getExpiration()));
+        }
+        this.saveRows(rows);
+    }
+
+    /**
+     * Append rows to the log and commit them. If the rows cannot be written,
+     * none of them are committed.
+     *
+     * @param rows Rows to store. Later rows replace earlier rows with the same
+     * key.
+     * @throws SQLException Error writing the file, or a key is not a unique
+     * id.
+     */
+    @Override
+    public void saveRows(List<PlayerGroupRow> rows) throws SQLException {
+        UUID[] players = new UUID[rows.size()];
+        for (int i = 0; i < players.length; i++) {
+            try {
+                players[i] = UUID.fromString(rows.get(i).getPlayer());
+            } catch (IllegalArgumentException ex) {
+                throw new SQLException("Only players with a unique id can be stored in " + file.getName()
+                        + ": " + rows.get(i).getPlayer(), ex);
+            }
+        }
+        long start = System.nanoTime();
+        synchronized (this) {
+            this.checkRestored();
+            try {
+                for (int i = 0; i < players.length; i++) {
+                    PlayerGroupRow row = rows.get(i);
+                    int group = this.groupId(row.getGroupName());
+                    long expiration = row.getExpiration() == null ? NO_EXPIRATION : row.getExpiration().getTime();
+                    this.ensureCapacity(RECORD_SIZE);
+                    index.put(players[i], tail);
+                    tail += putPlayer(buffer, tail, players[i], group, expiration, scratch);
+                }
+                this.commit();
+            } catch (IOException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                // Forget the uncommitted records
+                this.readLog();
+                throw new SQLException("Failed to write " + file.getName(), ex);
+            } finally {
+                metrics.record(Metrics.Timer.DATABASE_SAVE, start);
+            }
+            if (tail > MIN_COMPACT_SIZE && tail > 2L * RECORD_SIZE * (index.size() + groupNames.size())) {
+                this.compact();
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<PlayerGroupRow> scan(String after, int limit) throws SQLException {
+        this.checkRestored();
+        long start = System.nanoTime();
+        List<PlayerGroupRow> rows = new ArrayList<>(Math.min(limit, index.size()));
+        for (Map.Entry<UUID, Integer> entry : this.after(after).entrySet()) {
+            if (rows.size() == limit) {
+                break;
+            }
+            rows.add(this.readRow(entry.getKey(), entry.getValue()));
+        }
+        metrics.record(Metrics.Timer.DATABASE_SCAN, start);
+        return rows;
+    }
+
+    @Override
+    public synchronized List<PlayerGroupRow> loadAll(List<String> players) throws SQLException {
+        this.checkRestored();
+        long start = System.nanoTime();
+        List<PlayerGroupRow> rows = new ArrayList<>(players.size());
+        for (String key : players) {
+            UUID player;
+            try {
+                player = UUID.fromString(key);
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            Integer offset = index.get(player);
+            if (offset != null) {
+                rows.add(this.readRow(player, offset));
+            }
+        }
+        metrics.record(Metrics.Timer.DATABASE_LOAD_MANY, start);
+        return rows;
+    }
+
+    @Override
+    public synchronized List<String> findMembers(String groupName, String after, int limit) throws SQLException {
+        this.checkRestored();
+        long start = System.nanoTime();
+        List<String> players = new ArrayList<>();
+        Integer group = groupIds.get(groupName);
+        if (group != null) {
+            for (Map.Entry<UUID, Integer> entry : this.after(after).entrySet()) {
+                if (players.size() == limit) {
+                    break;
+                }
+                if (groupAt(buffer, entry.getValue()) == group) {
+                    players.add(entry.getKey().toString());
+                }
+            }
+        }
+        metrics.record(Metrics.Timer.DATABASE_SCAN, start);
+        return players;
+    }
+
+    /**
+     * Rows are ordered by unique id, as compared by {@link UUID#compareTo}.
+     */
+    private SortedMap<UUID, Integer> after(String key) {
+        return key.isEmpty() ? index : index.tailMap(UUID.fromString(key), false);
+    }
+
+    /**
+     * Does nothing, as this store only holds unique id keys.
+     */
+    @Override
+    public void renamePlayers(Map<String, String> keys) {
+    }
+
+    private void compact() {
+        try {
+            this.writeSnapshot();
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to compact " + file.getName(), ex);
+            // The log is untouched, but a leftover snapshot would replace it the next time the file is opened
+            try {
+                Files.deleteIfExists(snapshot.toPath());
+            } catch (IOException deleteEx) {
+                // Nothing may be committed before the snapshot has been copied over the log
+                restorePending = true;
+            }
+            return;
+        }
+        restorePending = true;
+        try {
+            this.checkRestored();
+        } catch (SQLException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to compact " + file.getName()
+                    + ", players cannot be loaded or saved until it is finished", ex.getCause());
+        }
+    }
+
+    /**
+     * Finish copying the snapshot over the log if an earlier attempt failed.
+     * Until it succeeds, the log may be partly overwritten and the snapshot
+     * would replace any new record the next time the file is opened, so
+     * nothing can be read or committed.
+     *
+     * @throws SQLException if the snapshot still cannot be copied.
+     */
+    private void checkRestored() throws SQLException {
+        if (!restorePending) {
+            return;
+        }
+        try {
+            this.restoreSnapshot();
+        } catch (IOException ex) {
+            metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+            throw new SQLException("Failed to finish compacting " + file.getName(), ex);
+        }
+        restorePending = false;
+        this.readLog();
+    }
+
+    /**
+     * Write the group definitions and the latest record of every player to
+     * the snapshot file. The snapshot's header is written last, so a
+     * snapshot without one is incomplete.
+     */
+    private void writeSnapshot() throws IOException {
+        try (FileChannel out = FileChannel.open(snapshot.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer chunk = ByteBuffer.allocate(MIN_CAPACITY);
+            int position = HEADER_SIZE;
+            for (int i = 0; i < groupNames.size(); i++) {
+                byte[] name = groupNames.get(i).getBytes(StandardCharsets.UTF_8);
+                if (chunk.position() + RECORD_SIZE + pad(name.length) > chunk.capacity()) {
+                    position += write(out, chunk, position);
+                }
+                chunk.position(chunk.position() + putGroup(chunk, chunk.position(), i, name, scratch));
+            }
+            for (Map.Entry<UUID, Integer> entry : index.entrySet()) {
+                if (chunk.position() + RECORD_SIZE > chunk.capacity()) {
+                    position += write(out, chunk, position);
+                }
+                int offset = entry.getValue();
+                chunk.position(chunk.position() + putPlayer(chunk, chunk.position(), entry.getKey(),
+                        groupAt(buffer, offset), buffer.getLong(offset + 20), scratch));
+            }
+            position += write(out, chunk, position);
+            out.force(true);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, FORMAT);
+            header.putInt(TAIL_OFFSET, position);
+            header.position(HEADER_SIZE);
+            write(out, header, 0);
+            out.force(true);
+        }
+    }
+
+    private static int write(FileChannel out, ByteBuffer chunk, int position) throws IOException {
+        chunk.flip();
+        int length = chunk.remaining();
+        while (chunk.hasRemaining()) {
+            out.write(chunk, position + length - chunk.remaining());
+        }
+        chunk.clear();
+        return length;
+    }
+
+    /**
+     * Copy a complete snapshot over the log and delete it. An incomplete
+     * snapshot is deleted without being copied.
+     */
+    private void restoreSnapshot() throws IOException {
+        try (FileChannel in = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && in.read(header, header.position()) >= 0) {
+                // Read until the header is complete or the file ends
+            }
+            int end = header.getInt(TAIL_OFFSET);
+            if (header.getInt(0) == MAGIC && header.getInt(4) == FORMAT && end >= HEADER_SIZE
+                    && end <= in.size()) {
+                tail = HEADER_SIZE;
+                this.ensureCapacity(end - HEADER_SIZE);
+                ByteBuffer target = buffer.duplicate();
+                target.position(HEADER_SIZE);
+                target.limit(end);
+                this.copySnapshot(in, target);
+                tail = end;
+                this.commit();
+            }
+        }
+        Files.delete(snapshot.toPath());
+    }
+
+    /**
+     * Copy the records of a snapshot over the log. Overridden by tests to
+     * fail part way through.
+     *
+     * @param in Snapshot file.
+     * @param target Mapped log, positioned at the first record and limited
+     * to the end of the snapshot's records.
+     * @throws IOException Error reading the snapshot.
+     */
+    void copySnapshot(FileChannel in, ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (in.read(target, target.position()) < 0) {
+                throw new IOException(snapshot.getName() + " ended unexpectedly");
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        buffer.force();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to close " + file.getName(), ex);
+        }
+    }
+}
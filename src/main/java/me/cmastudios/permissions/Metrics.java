@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters for the expensive parts of the plugin.
+ * Recording is lock free and costs a few atomic increments, so it may be done
+ * from any thread on every call.
+ *
+ * @author Connor Monahan
+ */
+final class Metrics {
+
+    /**
+     * Timed operations. Main thread operations are those that hold up the
+     * server tick while they run.
+     */
+    enum Timer {
+        DATABASE_LOAD("database-load", false),
+        DATABASE_LOAD_MANY("database-load-many", false),
+        DATABASE_SAVE("database-save", false),
+        DATABASE_SCAN("database-scan", false),
+        DATABASE_POLL("database-poll", false),
+        MAIN_THREAD_LOAD("main-thread-load", true),
+        PERMISSION_RESOLVE("permission-resolve", true),
+        ATTACHMENT_APPLY("attachment-apply", true),
+        SCHEDULER_TICK("scheduler-tick", true),
+        RELOAD_COMPILE("reload-compile", false),
+        RELOAD_SWAP("reload-swap", true);
+
+        private final String key;
+        private final boolean mainThread;
+
+        Timer(String key, boolean mainThread) {
+            this.key = key;
+            this.mainThread = mainThread;
+        }
+    }
+
+    enum Counter {
+        LOGINS("logins"),
+        LOGIN_CACHE_HITS("login-cache-hits"),
+        LOGIN_CACHE_MISSES("login-cache-misses"),
+        WILDCARD_CACHE_HITS("wildcard-cache-hits"),
+        WILDCARD_CACHE_MISSES("wildcard-cache-misses"),
+        PLAYER_CACHE_HITS("player-cache-hits"),
+        PLAYER_CACHE_MISSES("player-cache-misses"),
+        PLAYER_CACHE_COALESCED("player-cache-coalesced"),
+        PLAYER_CACHE_EVICTIONS("player-cache-evictions"),
+        PLAYER_CACHE_EXPIRATIONS("player-cache-expirations"),
+        DATABASE_ERRORS("database-errors"),
+        REMOTE_CHANGES("remote-changes");
+
+        private final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+
+    private final Histogram[] timers = new Histogram[Timer.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final long started = System.currentTimeMillis();
+
+    Metrics() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Record the time taken by an operation.
+     *
+     * @param timer Operation.
+     * @param startNanos Value of {@link System#nanoTime()} when the operation
+     * started.
+     */
+    void record(Timer timer, long startNanos) {
+        timers[timer.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    long getCount(Timer timer) {
+        return timers[timer.ordinal()].count.get();
+    }
+
+    /**
+     * Write a snapshot of every timer and counter, plus hit rates derived
+     * from them, to a configuration section. Times are in milliseconds.
+     *
+     * @param section Section to write to.
+     */
+    void write(ConfigurationSection section) {
+        section.set("uptime-seconds", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - started));
+        long mainThreadNanos = 0;
+        for (Timer timer : Timer.values()) {
+            Histogram histogram = timers[timer.ordinal()];
+            ConfigurationSection timerSection = section.createSection("timers." + timer.key);
+            histogram.write(timerSection);
+            timerSection.set("main-thread", timer.mainThread);
+            // Scheduler ticks only contain attachment updates, which are already counted
+            if (timer.mainThread && timer != Timer.SCHEDULER_TICK) {
+                mainThreadNanos += histogram.totalNanos.get();
+            }
+        }
+        for (Counter counter : Counter.values()) {
+            section.set("counters." + counter.key, this.get(counter));
+        }
+        section.set("main-thread-ms", toMillis(mainThreadNanos));
+        section.set("rates.login-cache-hit-rate",
+                ratio(this.get(Counter.LOGIN_CACHE_HITS), this.get(Counter.LOGIN_CACHE_MISSES)));
+        section.set("rates.wildcard-cache-hit-rate",
+                ratio(this.get(Counter.WILDCARD_CACHE_HITS), this.get(Counter.WILDCARD_CACHE_MISSES)));
+        section.set("rates.player-cache-hit-rate",
+                ratio(this.get(Counter.PLAYER_CACHE_HITS), this.get(Counter.PLAYER_CACHE_MISSES)));
+        long logins = this.get(Counter.LOGINS);
+        section.set("rates.database-loads-per-login",
+                logins == 0 ? 0.0 : (double) this.getCount(Timer.DATABASE_LOAD) / logins);
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    /**
+     * Histogram with one bucket per power of two microseconds. Percentiles
+     * are reported as the upper bound of the bucket they fall in, so they are
+     * accurate to within a factor of two.
+     */
+    private static final class Histogram {
+
+        private static final int BUCKETS = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros)));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // Retry until the maximum is at least this sample
+            }
+        }
+
+        private double percentile(long total, double fraction) {
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return (1L << i) / 1000.0;
+                }
+            }
+            return toMillis(maxNanos.get());
+        }
+
+        private void write(ConfigurationSection section) {
+            long total = count.get();
+            section.set("count", total);
+            section.set("total-ms", toMillis(totalNanos.get()));
+            section.set("mean-ms", total == 0 ? 0.0 : toMillis(totalNanos.get()) / total);
+            section.set("p50-ms", total == 0 ? 0.0 : this.percentile(total, 0.50));
+            section.set("p95-ms", total == 0 ? 0.0 : this.percentile(total, 0.95));
+            section.set("p99-ms", total == 0 ? 0.0 : this.percentile(total, 0.99));
+            section.set("max-ms", toMillis(maxNanos.get()));
+        }
+    }
+}
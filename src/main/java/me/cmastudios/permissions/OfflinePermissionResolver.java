@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.World;
+import org.bukkit.permissions.Permission;
+import org.bukkit.permissions.PermissionDefault;
+import org.bukkit.plugin.PluginManager;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves permissions for players who are not online. Group permissions come
+ * from the compiled tables of the {@link GroupRegistry}, falling back to the
+ * group's wildcard nodes. Like the attachments of online players, wildcards
+ * only apply to permissions registered by plugins. The default value of every
+ * registered node that is not set by a group is looked up once and cached
+ * until plugins are enabled or disabled, and nodes that are not registered
+ * default to operators only, as they do in Bukkit.
+ *
+ * @author Connor Monahan
+ */
+final class OfflinePermissionResolver {
+
+    private final PluginManager pluginManager;
+    private final Map<String, PermissionDefault> defaults = new ConcurrentHashMap<>();
+
+    OfflinePermissionResolver(PluginManager pluginManager) {
+        this.pluginManager = pluginManager;
+    }
+
+    /**
+     * Check if a member of a group has a permission.
+     *
+     * @param group Player's group.
+     * @param world World to check the permission in, or null for none.
+     * @param permission Permission node to check.
+     * @param op Whether the player is a server operator.
+     * @return true if the player has the permission.
+     */
+    boolean has(Group group, World world, String permission, boolean op) {
+        return this.resolve(group.getPermissionSet(world), group.getWildcards(world), permission, op);
+    }
+
+    /**
+     * Check many permissions for a member of a group at once.
+     *
+     * @param group Player's group.
+     * @param world World to check the permissions in, or null for none.
+     * @param permissions Permission nodes to check.
+     * @param op Whether the player is a server operator.
+     * @return whether the player has each permission, in iteration order of
+     * the nodes.
+     */
+    Map<String, Boolean> hasAll(Group group, World world, Collection<String> permissions, boolean op) {
+        Map<String, Boolean> groupPermissions = group.getPermissionSet(world);
+        PermissionTrie wildcards = group.getWildcards(world);
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String permission : permissions) {
+            result.put(permission, this.resolve(groupPermissions, wildcards, permission, op));
+        }
+        return result;
+    }
+
+    /**
+     * Forget the cached default values, for example because plugins
+     * registering permissions were enabled or disabled.
+     */
+    void clearDefaults() {
+        defaults.clear();
+    }
+
+    private boolean resolve(Map<String, Boolean> groupPermissions, PermissionTrie wildcards,
+                            String permission, boolean op) {
+        Boolean value = groupPermissions.get(permission);
+        if (value != null) {
+            return value;
+        }
+        PermissionDefault def = defaults.get(permission);
+        if (def == null) {
+            Permission perm = pluginManager.getPermission(permission);
+            // Unregistered nodes are not cached, so arbitrary nodes cannot grow the cache
+            if (perm != null) {
+                def = perm.getDefault();
+                defaults.put(permission, def);
+            }
+        }
+        if (def == null) {
+            // Wildcards are only expanded into registered permissions for online players
+            return op;
+        }
+        value = wildcards.resolve(permission);
+        if (value != null) {
+            return value;
+        }
+        return def == PermissionDefault.TRUE || def == PermissionDefault.OP && op
+                || def == PermissionDefault.NOT_OP && !op;
+    }
+}
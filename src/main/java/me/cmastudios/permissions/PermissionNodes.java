@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of every permission node used by any group, assigning each node
+ * a dense integer id. Ids are never reused or removed, so they stay the same
+ * across configuration reloads and sets compiled from different registries
+ * can be compared bit by bit. Lookups may be done from any thread; new nodes
+ * are only added while groups are compiled.
+ *
+ * @author Connor Monahan
+ */
+final class PermissionNodes {
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int count;
+
+    private PermissionNodes() {
+    }
+
+    /**
+     * Get the id of a node, assigning the next free id if the node is new.
+     *
+     * @param node Permission node.
+     * @return node id.
+     */
+    static int intern(String node) {
+        Integer id = ids.get(node);
+        if (id != null) {
+            return id;
+        }
+        synchronized (PermissionNodes.class) {
+            id = ids.get(node);
+            if (id == null) {
+                if (count == names.length) {
+                    names = Arrays.copyOf(names, count * 2);
+                }
+                id = count++;
+                // Store the name before publishing the id, so readers that find the id can resolve it
+                names[id] = node;
+                ids.put(node, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Get the id of a node without assigning one.
+     *
+     * @param node Permission node.
+     * @return node id, or -1 if no group uses the node.
+     */
+    static int find(Object node) {
+        Integer id = ids.get(node);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the node with an id.
+     *
+     * @param id Node id returned by {@link #intern}.
+     * @return permission node.
+     */
+    static String name(int id) {
+        return names[id];
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable set of permission nodes, each set to true or false, stored as a
+ * pair of bit sets indexed by {@link PermissionNodes} id. The set is exposed
+ * as an unmodifiable map from node to value, so it can be used wherever a
+ * group's permissions are expected, but it holds no boxed entries and
+ * merging the sets of inherited groups is a word-wise operation.
+ *
+ * @author Connor Monahan
+ */
+final class PermissionSet extends AbstractMap<String, Boolean> {
+
+    static final PermissionSet EMPTY = new PermissionSet(new BitSet(), new BitSet(), new BitSet());
+
+    private final BitSet allow;
+    private final BitSet deny;
+    private final BitSet wildcards;
+    private final int size;
+    private Set<Map.Entry<String, Boolean>> entrySet;
+    private int hashCode;
+
+    private PermissionSet(BitSet allow, BitSet deny, BitSet wildcards) {
+        this.allow = allow;
+        this.deny = deny;
+        this.wildcards = wildcards;
+        this.size = allow.cardinality() + deny.cardinality();
+    }
+
+    /**
+     * Get the entries of this set whose value differs from, or is missing in,
+     * another set.
+     *
+     * @param base Set to compare with.
+     * @return changed entries.
+     */
+    PermissionSet difference(PermissionSet base) {
+        BitSet changedAllow = (BitSet) allow.clone();
+        changedAllow.andNot(base.allow);
+        BitSet changedDeny = (BitSet) deny.clone();
+        changedDeny.andNot(base.deny);
+        BitSet changedWildcards = (BitSet) wildcards.clone();
+        BitSet changed = (BitSet) changedAllow.clone();
+        changed.or(changedDeny);
+        changedWildcards.and(changed);
+        return new PermissionSet(changedAllow, changedDeny, changedWildcards);
+    }
+
+    @Override
+    public Boolean get(Object node) {
+        int id = PermissionNodes.find(node);
+        if (id < 0) {
+            return null;
+        } else if (allow.get(id)) {
+            return Boolean.TRUE;
+        } else if (deny.get(id)) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object node) {
+        int id = PermissionNodes.find(node);
+        return id >= 0 && (allow.get(id) || deny.get(id));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Boolean>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String, Boolean>>() {
+                @Override
+                public Iterator<Map.Entry<String, Boolean>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof PermissionSet) {
+            PermissionSet set = (PermissionSet) other;
+            return allow.equals(set.allow) && deny.equals(set.deny);
+        }
+        return super.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        if (hashCode == 0 && size > 0) {
+            hashCode = super.hashCode();
+        }
+        return hashCode;
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, Boolean>> {
+
+        private int nextAllow = allow.nextSetBit(0);
+        private int nextDeny = deny.nextSetBit(0);
+
+        @Override
+        public boolean hasNext() {
+            return nextAllow >= 0 || nextDeny >= 0;
+        }
+
+        @Override
+        public Map.Entry<String, Boolean> next() {
+            Map.Entry<String, Boolean> entry;
+            if (nextAllow >= 0) {
+                entry = new SimpleImmutableEntry<>(PermissionNodes.name(nextAllow), Boolean.TRUE);
+                nextAllow = allow.nextSetBit(nextAllow + 1);
+            } else if (nextDeny >= 0) {
+                entry = new SimpleImmutableEntry<>(PermissionNodes.name(nextDeny), Boolean.FALSE);
+                nextDeny = deny.nextSetBit(nextDeny + 1);
+            } else {
+                throw new NoSuchElementException();
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Check if a node is a wildcard, applying to every node below it.
+     *
+     * @param node Permission node.
+     * @return true if the node is {@code *} or ends in {@code .*}
+     */
+    static boolean isWildcard(String node) {
+        return node.equals("*") || node.endsWith(".*");
+    }
+
+    /**
+     * Builds a set by applying nodes and other sets in order, later values
+     * overriding earlier ones. Nodes are applied in layers: a wildcard
+     * overrides the nodes below it that were set in earlier layers, while
+     * nodes set in the same layer as a wildcard take precedence over it.
+     * This keeps the explicit nodes of a built set ahead of its wildcards
+     * without losing the order in which they were applied.
+     */
+    static final class Builder {
+
+        private final BitSet allow = new BitSet();
+        private final BitSet deny = new BitSet();
+        private final BitSet wildcards = new BitSet();
+        private final BitSet layer = new BitSet();
+
+        /**
+         * Start a new layer. Wildcards set after this override the nodes
+         * below them that were set before.
+         *
+         * @return this builder.
+         */
+        Builder layer() {
+            layer.clear();
+            return this;
+        }
+
+        /**
+         * Set a node, overriding any earlier value.
+         *
+         * @param node Permission node.
+         * @param value Value of the node.
+         * @return this builder.
+         */
+        Builder set(String node, boolean value) {
+            int id = PermissionNodes.intern(node);
+            if (isWildcard(node)) {
+                this.override(node);
+                wildcards.set(id);
+            }
+            allow.set(id, value);
+            deny.set(id, !value);
+            layer.set(id);
+            return this;
+        }
+
+        /**
+         * Apply every node of another set in a new layer, overriding earlier
+         * values.
+         *
+         * @param set Set to merge.
+         * @return this builder.
+         */
+        Builder merge(PermissionSet set) {
+            this.layer();
+            layer.or(set.allow);
+            layer.or(set.deny);
+            for (int id = set.wildcards.nextSetBit(0); id >= 0; id = set.wildcards.nextSetBit(id + 1)) {
+                this.override(PermissionNodes.name(id));
+            }
+            allow.andNot(set.deny);
+            allow.or(set.allow);
+            deny.andNot(set.allow);
+            deny.or(set.deny);
+            wildcards.or(set.wildcards);
+            return this;
+        }
+
+        private void override(String wildcard) {
+            String prefix = wildcard.substring(0, wildcard.length() - 1);
+            BitSet nodes = (BitSet) allow.clone();
+            nodes.or(deny);
+            nodes.andNot(layer);
+            for (int id = nodes.nextSetBit(0); id >= 0; id = nodes.nextSetBit(id + 1)) {
+                if (PermissionNodes.name(id).regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    allow.clear(id);
+                    deny.clear(id);
+                    wildcards.clear(id);
+                }
+            }
+        }
+
+        PermissionSet build() {
+            return new PermissionSet((BitSet) allow.clone(), (BitSet) deny.clone(), (BitSet) wildcards.clone());
+        }
+    }
+}
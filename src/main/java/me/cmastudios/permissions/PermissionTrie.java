@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compiled wildcard permissions of a group. A node ending in {@code .*}
+ * applies to every node below it, and the node {@code *} applies to all
+ * nodes. When several wildcards match a node, the most specific one wins.
+ * Resolving a node costs O(depth of the node) regardless of how many
+ * wildcards the group has.
+ * <p>
+ * Like Bukkit permissions, wildcards are matched ignoring case. Exact nodes
+ * are not stored in the trie and should be checked before it: a
+ * {@link PermissionSet} only keeps the exact nodes that take precedence over
+ * its wildcards.
+ *
+ * @author Connor Monahan
+ */
+final class PermissionTrie {
+
+    /**
+     * Trie without any wildcards.
+     */
+    static final PermissionTrie EMPTY = new PermissionTrie();
+
+    private final Node root = new Node();
+
+    private PermissionTrie() {
+    }
+
+    /**
+     * Compile the wildcard nodes in a set of permissions.
+     *
+     * @param permissions Permission nodes and their values.
+     * @return trie of wildcard nodes, or {@link #EMPTY} if there are none.
+     */
+    static PermissionTrie compile(Map<String, Boolean> permissions) {
+        PermissionTrie trie = null;
+        for (Map.Entry<String, Boolean> entry : permissions.entrySet()) {
+            String node = entry.getKey();
+            if (PermissionSet.isWildcard(node)) {
+                if (trie == null) {
+                    trie = new PermissionTrie();
+                }
+                trie.add(node.substring(0, node.length() - 1).toLowerCase(Locale.ENGLISH), entry.getValue());
+            }
+        }
+        return trie == null ? EMPTY : trie;
+    }
+
+    private void add(String prefix, boolean value) {
+        Node node = root;
+        int start = 0;
+        int end;
+        while ((end = prefix.indexOf('.', start)) >= 0) {
+            node = node.child(prefix.substring(start, end));
+            start = end + 1;
+        }
+        node.value = value;
+    }
+
+    /**
+     * Check if this trie has no wildcards.
+     *
+     * @return true if empty
+     */
+    boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    /**
+     * Find the value of the most specific wildcard matching a node.
+     *
+     * @param permission Permission node to check.
+     * @return value of the matching wildcard, or null if no wildcard matches.
+     */
+    Boolean resolve(String permission) {
+        String node = permission.toLowerCase(Locale.ENGLISH);
+        Node current = root;
+        Boolean result = current.value;
+        int start = 0;
+        int end;
+        while (current.children != null && (end = node.indexOf('.', start)) >= 0) {
+            current = current.children.get(node.substring(start, end));
+            if (current == null) {
+                break;
+            }
+            if (current.value != null) {
+                result = current.value;
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    private static final class Node {
+
+        private Map<String, Node> children;
+        private Boolean value;
+
+        private Node child(String segment) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            Node child = children.get(segment);
+            if (child == null) {
+                child = new Node();
+                children.put(segment, child);
+            }
+            return child;
+        }
+    }
+}
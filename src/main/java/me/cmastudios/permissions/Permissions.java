@@ -16,21 +16,43 @@
  */
 package me.cmastudios.permissions;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import me.cmastudios.permissions.commands.SetGroupCommand;
 import me.cmastudios.permissions.commands.cPermsCommand;
 
 import org.bukkit.OfflinePlayer;
 import org.bukkit.World;
-import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
-import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 
 import java.io.File;
-import java.sql.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
@@ -40,22 +62,226 @@ import java.util.logging.Level;
  */
 public final class Permissions extends JavaPlugin {
 
-    private Map<Player, PermissionAttachment> attachments;
-    private Connection database;
+    private Map<UUID, PlayerState> players;
+    private ExpirationScheduler expirations;
+    private ApplyScheduler applyScheduler;
+    private OfflinePermissionResolver offlineResolver;
+    private WildcardExpander wildcardExpander;
+    private PlayerGroupStore database;
+    private WriteBehindQueue writeQueue;
+    private ChangeLogPoller changeLogPoller;
+    private volatile GroupRegistry groups;
+    private final LoginCache loginCache = new LoginCache();
+    private PlayerRecordCache playerCache;
+    private ListeningExecutorService asyncExecutor;
+    private final Executor mainThreadExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            if (getServer().isPrimaryThread()) {
+                task.run();
+            } else {
+                getServer().getScheduler().runTask(Permissions.this, task);
+            }
+        }
+    };
+    private final Metrics metrics = new Metrics();
+    private final ReloadPipeline reloadPipeline = new ReloadPipeline(this);
+    private volatile FileConfiguration config;
+    private HotPermissions hotPermissions;
+
+    public Permissions() {
+    }
+
+    /**
+     * Create the plugin outside of a running server, for benchmarks and tests.
+     */
+    Permissions(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
 
     @Override
     public void onEnable() {
-        attachments = new HashMap<>();
+        players = new HashMap<>();
+        expirations = new ExpirationScheduler(this);
+        offlineResolver = new OfflinePermissionResolver(this.getServer().getPluginManager());
+        wildcardExpander = new WildcardExpander(this.getServer().getPluginManager(), metrics);
+        this.saveDefaultConfig();
+        this.reloadConfig();
+        applyScheduler = new ApplyScheduler(this, this.getConfig().getLong("apply-budget", 2), metrics);
+        playerCache = new PlayerRecordCache(this.getConfig().getInt("player-cache.size", 10000),
+                this.getConfig().getLong("player-cache.ttl", 60), metrics);
+        asyncExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                Math.max(1, this.getConfig().getInt("async-threads", 4)), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "cPermissions async worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+        this.reloadGroups();
+        if (!this.connectDatabase()) {
+            this.getLogger().severe("Player groups cannot be loaded or saved without storage, disabling cPermissions");
+            this.getPluginLoader().disablePlugin(this);
+            return;
+        }
         this.getServer().getPluginManager().registerEvents(new PermissionsListener(this), this);
+        this.reloadOnlinePlayers();
+        cPermsCommand cpermsCommand = new cPermsCommand(this);
+        this.getServer().getPluginManager().registerEvents(cpermsCommand, this);
+        this.getCommand("cpermissions").setExecutor(cpermsCommand);
+        this.getCommand("setgroup").setExecutor(new SetGroupCommand(this));
+        this.scheduleStatsDump();
+    }
+
+    @Override
+    public FileConfiguration getConfig() {
+        if (config == null) {
+            this.reloadConfig();
+        }
+        return config;
+    }
+
+    /**
+     * Load the configuration from disk. Unlike the default implementation,
+     * the configuration bundled with the plugin is not used for defaults.
+     */
+    @Override
+    public void reloadConfig() {
+        config = YamlConfiguration.loadConfiguration(new File(this.getDataFolder(), "config.yml"));
+        hotPermissions = HotPermissions.load(config, this.getLogger());
+    }
+
+    /**
+     * Reload the configuration and groups without blocking the main thread.
+     * Online players are updated once the new configuration has been compiled.
+     * If it cannot be loaded, the old configuration is kept. Must be called
+     * from the main thread.
+     *
+     * @param sender Receives a message when the reload finishes or fails.
+     * @return false if a reload is already in progress.
+     */
+    public boolean reloadConfigAsync(CommandSender sender) {
+        return reloadPipeline.start(sender);
+    }
+
+    /**
+     * Swap in a configuration compiled by the {@link ReloadPipeline} and
+     * queue the precomputed changes for online players. Players whose state
+     * changed while the reload was running are refreshed from scratch.
+     *
+     * @param done Callback to run once every online player has been updated.
+     */
+    void completeReload(FileConfiguration config, GroupRegistry registry, List<ReloadPipeline.Update> updates,
+                        Runnable done) {
+        long start = System.nanoTime();
+        this.config = config;
+        this.hotPermissions = HotPermissions.load(config, this.getLogger());
+        this.groups = registry;
+        this.clearRegisteredPermissions();
+        Set<UUID> updated = new HashSet<>();
+        for (final ReloadPipeline.Update update : updates) {
+            updated.add(update.snapshot.player);
+            applyScheduler.schedule(update.snapshot.player, new Runnable() {
+                @Override
+                public void run() {
+                    applyReloadUpdate(update);
+                }
+            });
+        }
         for (Player player : this.getServer().getOnlinePlayers()) {
+            if (!updated.contains(player.getUniqueId())) {
+                this.scheduleRefresh(player.getUniqueId());
+            }
+        }
+        metrics.record(Metrics.Timer.RELOAD_SWAP, start);
+        applyScheduler.whenDrained(done);
+    }
+
+    private void applyReloadUpdate(ReloadPipeline.Update update) {
+        Player player = this.getServer().getPlayer(update.snapshot.player);
+        PlayerState state = players.get(update.snapshot.player);
+        if (player == null || state == null) {
+            return;
+        }
+        if (update.group == null || state.getGroup() != update.snapshot.group
+                || state.getPermissions() != update.snapshot.permissions
+                || !player.getWorld().getName().equals(update.snapshot.world)) {
+            this.refreshPermissions(player);
+            return;
+        }
+        long start = System.nanoTime();
+        state.setGroup(update.group, state.getExpiration());
+        AttachmentWriter.applyChanges(state.getAttachment(), update.changes);
+        state.setPermissions(update.permissions);
+        state.setWorld(player.getWorld());
+        this.updateCapabilities(player, state);
+        metrics.record(Metrics.Timer.ATTACHMENT_APPLY, start);
+        if (update.displayChanged) {
+            this.updateDisplayName(player, update.group);
+        }
+    }
+
+    PlayerState getPlayerState(UUID player) {
+        return players.get(player);
+    }
+
+    /**
+     * Compile groups from the current plugin configuration. This should be
+     * called after the configuration is reloaded. Groups obtained before this
+     * call will not reflect the new configuration.
+     * <p>
+     * Online players are updated incrementally over the following ticks:
+     * players whose group did not change keep their attachment untouched,
+     * and for the others only the changed permissions or display name are
+     * applied.
+     */
+    public void reloadGroups() {
+        GroupRegistry previous = this.groups;
+        this.groups = GroupRegistry.compile(this.getConfig());
+        this.clearRegisteredPermissions();
+        if (previous != null) {
+            for (Player player : this.getServer().getOnlinePlayers()) {
+                this.scheduleRefresh(player.getUniqueId());
+            }
+        }
+    }
+
+    private void scheduleRefresh(final UUID id) {
+        applyScheduler.schedule(id, new Runnable() {
+            @Override
+            public void run() {
+                Player player = getServer().getPlayer(id);
+                if (player != null) {
+                    refreshPermissions(player);
+                }
+            }
+        });
+    }
+
+    private void refreshPermissions(Player player) {
+        PlayerState state = players.get(player.getUniqueId());
+        Group oldGroup = state == null ? null : state.getGroup();
+        Group group = oldGroup == null ? null : this.getGroup(oldGroup.getName());
+        if (group == null) {
+            // Not tracked yet, or the group was removed from the configuration
             this.updatePermissions(player);
+            return;
+        }
+        state.setGroup(group, state.getExpiration());
+        Map<String, Boolean> playerPermissions = this.resolvePermissions(group, player.getWorld());
+        long start = System.nanoTime();
+        if (group.hasWildcards() || !group.hasSamePermissions(oldGroup)) {
+            AttachmentWriter.apply(state.getAttachment(), state.getPermissions(), playerPermissions);
+        }
+        state.setPermissions(playerPermissions);
+        state.setWorld(player.getWorld());
+        // The hot nodes may have changed even if the permissions did not
+        this.updateCapabilities(player, state);
+        metrics.record(Metrics.Timer.ATTACHMENT_APPLY, start);
+        if (!group.hasSameDisplay(oldGroup)) {
+            this.updateDisplayName(player, group);
         }
-        this.saveDefaultConfig();
-        this.getConfig().options().copyDefaults(false);
-        this.getConfig().setDefaults(YamlConfiguration.loadConfiguration(new File("none"))); //Very very hacky
-        this.connectDatabase();
-        this.getCommand("cpermissions").setExecutor(new cPermsCommand(this));
-        this.getCommand("setgroup").setExecutor(new SetGroupCommand(this));
     }
 
     @Override
@@ -63,145 +289,803 @@ public final class Permissions extends JavaPlugin {
         for (Player player : this.getServer().getOnlinePlayers()) {
             this.removeAttachment(player);
         }
-        attachments.clear();
+        players.clear();
+        expirations.clear();
+        applyScheduler.clear();
+        loginCache.clear();
+        playerCache.clear();
+        asyncExecutor.shutdown();
+        try {
+            asyncExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.closeDatabase();
+    }
+
+    private void closeDatabase() {
+        if (this.changeLogPoller != null) {
+            this.changeLogPoller.close();
+            this.changeLogPoller = null;
+        }
+        if (this.writeQueue != null) {
+            this.writeQueue.close();
+            this.writeQueue = null;
+        }
         if (this.database != null) {
-            try {
-                this.database.close();
-            } catch (SQLException ex) {
-                this.getLogger().log(Level.SEVERE, "Failed to close connection to database, data loss may occur.", ex);
-            }
+            this.database.close();
+            this.database = null;
         }
     }
 
-    private void connectDatabase() {
-        try {
-            if (database != null && !database.isClosed()) {
-                database.close();
-            }
-        } catch (SQLException ex) {
-            this.getLogger().log(Level.SEVERE, "Failed to close existing connection to database", ex);
+    /**
+     * Open the configured player storage and its write queue.
+     *
+     * @return true if players can be loaded and saved, false if the storage
+     * could not be opened.
+     */
+    private boolean connectDatabase() {
+        this.closeDatabase();
+        if ("mapped".equalsIgnoreCase(this.getConfig().getString("storage", "database"))) {
+            return this.openMappedStore();
         }
+        SqlDialect dialect;
+        ConnectionPool pool;
+        PlayerGroupDatabase database;
         try {
+            String url, username = null, password = null;
             if (this.getConfig().getBoolean("mysql.enabled", false)) {
                 Class.forName("com.mysql.jdbc.Driver").newInstance();
-                this.database = DriverManager.getConnection(String.format("jdbc:mysql://%s:%d/%s",
-                        this.getConfig().getString("mysql.host"), this.getConfig().getInt("mysql.port"), this.getConfig().getString("mysql.database")),
-                        this.getConfig().getString("mysql.username"), this.getConfig().getString("mysql.password"));
+                dialect = SqlDialect.MYSQL;
+                url = String.format("jdbc:mysql://%s:%d/%s",
+                        this.getConfig().getString("mysql.host"), this.getConfig().getInt("mysql.port"), this.getConfig().getString("mysql.database"));
+                username = this.getConfig().getString("mysql.username");
+                password = this.getConfig().getString("mysql.password");
             } else {
                 Class.forName("org.sqlite.JDBC").newInstance();
-                File databaseFile = new File(this.getDataFolder(), "userdb.sl3");
-                this.database = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
-            }
-            try (Statement initStatement = this.database.createStatement()) {
-                initStatement.executeUpdate("CREATE TABLE IF NOT EXISTS `playergroups` (`player` VARCHAR(36) PRIMARY KEY, `group_name` TEXT, `expiration_date` DATETIME NULL)");
-                try { // Update code
-                    initStatement.executeUpdate("ALTER TABLE `playergroups` MODIFY `player` VARCHAR(36) NOT NULL");
-                    initStatement.executeUpdate("ALTER TABLE `playergroups` ADD COLUMN `expiration_date` DATETIME NULL");
-                } catch (SQLException ignored) {
+                dialect = SqlDialect.SQLITE;
+                File databaseFile = new File(this.getConfig().getString("sqlite-file", "userdb.sl3"));
+                if (!databaseFile.isAbsolute()) {
+                    databaseFile = new File(this.getDataFolder(), databaseFile.getPath());
                 }
+                url = "jdbc:sqlite:" + databaseFile.getPath();
             }
+            // SQLite only allows one writer at a time, so more connections would just wait on the file lock
+            int maxSize = dialect == SqlDialect.SQLITE ? 1 : this.getConfig().getInt("mysql.pool.max-size", 8);
+            pool = new ConnectionPool(url, username, password, maxSize,
+                    TimeUnit.SECONDS.toMillis(this.getConfig().getLong("mysql.pool.idle-timeout", 600)),
+                    TimeUnit.SECONDS.toMillis(this.getConfig().getLong("mysql.pool.max-lifetime", 1800)),
+                    TimeUnit.SECONDS.toMillis(this.getConfig().getLong("mysql.pool.validation-interval", 30)),
+                    this.getLogger());
+            // A new id every time, so changes made before a restart are not mistaken for our own
+            String origin = this.getConfig().getBoolean("sync.enabled", false) ? UUID.randomUUID().toString() : null;
+            database = new PlayerGroupDatabase(this, pool, dialect, origin);
+            this.database = database;
+            this.writeQueue = new WriteBehindQueue(database,
+                    this.getConfig().getLong("write-behind.interval", 1000), this.getLogger());
         } catch (InstantiationException | IllegalAccessException | ClassNotFoundException ex) {
             this.getLogger().log(Level.SEVERE, "Failed to load database driver", ex);
+            return false;
+        }
+        try (PooledConnection connection = pool.borrow();
+             Statement initStatement = connection.getConnection().createStatement()) {
+            initStatement.executeUpdate("CREATE TABLE IF NOT EXISTS `playergroups` (`player` VARCHAR(36) PRIMARY KEY, `group_name` TEXT, `expiration_date` DATETIME NULL)");
+            try { // Update code
+                initStatement.executeUpdate("ALTER TABLE `playergroups` MODIFY `player` VARCHAR(36) NOT NULL");
+                initStatement.executeUpdate("ALTER TABLE `playergroups` ADD COLUMN `expiration_date` DATETIME NULL");
+            } catch (SQLException ignored) {
+            }
+            try {
+                initStatement.executeUpdate(dialect.getGroupIndex());
+            } catch (SQLException ignored) {
+            }
+            if (database.getOrigin() != null) {
+                initStatement.executeUpdate(dialect.getChangeLog());
+            }
         } catch (SQLException ex) {
             this.getLogger().log(Level.SEVERE, "Failed to load database", ex);
+            return false;
         }
+        if (database.getOrigin() != null) {
+            try {
+                this.changeLogPoller = new ChangeLogPoller(this, database,
+                        this.getConfig().getLong("sync.interval", 1000),
+                        TimeUnit.SECONDS.toMillis(this.getConfig().getLong("sync.retention", 3600)), this.getLogger());
+            } catch (SQLException ex) {
+                this.getLogger().log(Level.SEVERE, "Failed to read the change log, group changes made by other servers"
+                        + " will only be seen when players log in", ex);
+            }
+        }
+        return true;
     }
 
-    Connection getDatabaseConnection() {
-        if (this.getConfig().getBoolean("mysql.enabled", false)) {
+    private boolean openMappedStore() {
+        if (this.getConfig().getBoolean("sync.enabled", false)) {
+            this.getLogger().warning("sync is ignored, as mapped storage cannot be shared with other servers");
+        }
+        File file = new File(this.getDataFolder(), "players.dat");
+        try {
+            this.database = new MappedPlayerGroupStore(this, file);
+        } catch (IOException ex) {
+            this.getLogger().log(Level.SEVERE, "Failed to open " + file.getName(), ex);
+            return false;
+        }
+        this.writeQueue = new WriteBehindQueue(this.database,
+                this.getConfig().getLong("write-behind.interval", 1000), this.getLogger());
+        return true;
+    }
+
+    /**
+     * Apply group changes made by other servers sharing the database to the
+     * players they affect on this server. Changes to players with a change of
+     * their own waiting to be saved are ignored, since that change will
+     * replace them. Must be called from the main thread.
+     *
+     * @param changes Latest row of each changed player.
+     */
+    void applyRemoteChanges(Collection<PlayerGroupRow> changes) {
+        for (PlayerGroupRow row : changes) {
+            metrics.increment(Metrics.Counter.REMOTE_CHANGES);
+            final UUID id;
             try {
-                if (database == null || !database.isValid(1)) {
-                    this.connectDatabase();
-                }
-            } catch (SQLException ex) {
-                this.connectDatabase();
+                id = UUID.fromString(row.getPlayer());
+            } catch (IllegalArgumentException ex) {
+                continue;
             }
+            loginCache.invalidate(id);
+            playerCache.invalidate(id);
+            if (!players.containsKey(id) || writeQueue.getPending(id) != null) {
+                continue;
+            }
+            final String groupName = row.getGroupName();
+            final Timestamp expiration = row.getExpiration();
+            applyScheduler.schedule(id, new Runnable() {
+                @Override
+                public void run() {
+                    Player player = getServer().getPlayer(id);
+                    if (player == null) {
+                        return;
+                    }
+                    Group group = getGroup(groupName);
+                    if (group == null) {
+                        // Not a group on this server. Fall back as on login, but only here: saving the default
+                        // group would replace the player's group on every server.
+                        applyPermissions(player, new PlayerGroupRecord(getDefaultGroup(), null));
+                    } else {
+                        applyPermissions(player, new PlayerGroupRecord(group, expiration));
+                    }
+                }
+            });
         }
-        if (database == null) {
-            this.connectDatabase();
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get a snapshot of the plugin's performance metrics: latency histograms
+     * of database queries, permission resolution, attachment updates and
+     * reloads, counters, cache hit rates and queue lengths. Times are in
+     * milliseconds. Must be called from the main thread.
+     *
+     * @return metrics snapshot, also written periodically to stats.yml in the
+     * plugin's data folder.
+     */
+    public ConfigurationSection getStats() {
+        return this.snapshotStats();
+    }
+
+    private YamlConfiguration snapshotStats() {
+        YamlConfiguration stats = new YamlConfiguration();
+        stats.set("time", System.currentTimeMillis());
+        metrics.write(stats);
+        stats.set("gauges.online-players", players.size());
+        stats.set("gauges.apply-queue", applyScheduler.getPending());
+        stats.set("gauges.player-cache", playerCache.size());
+        if (writeQueue != null) {
+            stats.set("gauges.write-queue", writeQueue.getDepth());
+            stats.set("gauges.write-flushes", writeQueue.getFlushCount());
+            stats.set("gauges.last-flush-size", writeQueue.getLastFlushSize());
+            stats.set("gauges.last-flush-ms", writeQueue.getLastFlushNanos() / 1000000.0);
         }
+        return stats;
+    }
+
+    private void scheduleStatsDump() {
+        long interval = this.getConfig().getLong("stats.dump-interval", 300);
+        if (interval <= 0) {
+            return;
+        }
+        final File file = new File(this.getDataFolder(), "stats.yml");
+        final File temporary = new File(this.getDataFolder(), "stats.yml.tmp");
+        this.getServer().getScheduler().runTaskTimer(this, new Runnable() {
+            @Override
+            public void run() {
+                // Snapshot on the main thread, write the file off it
+                final String stats = snapshotStats().saveToString();
+                getServer().getScheduler().runTaskAsynchronously(Permissions.this, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Files.write(temporary.toPath(), stats.getBytes(StandardCharsets.UTF_8));
+                            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                    StandardCopyOption.ATOMIC_MOVE);
+                        } catch (IOException ex) {
+                            getLogger().log(Level.WARNING, "Failed to write stats.yml", ex);
+                        }
+                    }
+                });
+            }
+        }, interval * 20, interval * 20);
+    }
+
+    /**
+     * Load the groups of all online players from the database again and
+     * apply them over the following ticks. Must be called from the main
+     * thread.
+     */
+    private void reloadOnlinePlayers() {
+        loginCache.clear();
+        playerCache.clear();
+        for (Player player : this.getServer().getOnlinePlayers()) {
+            final UUID id = player.getUniqueId();
+            applyScheduler.schedule(id, new Runnable() {
+                @Override
+                public void run() {
+                    Player player = getServer().getPlayer(id);
+                    if (player != null) {
+                        updatePermissions(player);
+                    }
+                }
+            });
+        }
+    }
+
+    PlayerGroupStore getDatabase() {
         return database;
     }
 
+    /**
+     * Queue a player's group and rank expiration date to be saved to the
+     * database in the background.
+     *
+     * @param player Player's unique id.
+     * @param group Player's group.
+     * @param expiration Time when the rank expires, or null if permanent.
+     */
+    void saveGroup(UUID player, Group group, Timestamp expiration) {
+        this.saveRecord(player, new PlayerGroupRecord(group, expiration));
+    }
+
+    private void saveRecord(UUID player, PlayerGroupRecord record) {
+        writeQueue.enqueue(player, record);
+        loginCache.invalidate(player);
+        playerCache.invalidate(player);
+    }
+
+    /**
+     * Queue the group a load has moved a player to. Prefetched records are
+     * kept, as a prefetch running the load returns the saved group itself.
+     */
+    private void saveLoadedRecord(UUID player, PlayerGroupRecord record) {
+        writeQueue.enqueue(player, record);
+        playerCache.invalidate(player);
+    }
+
+    /**
+     * Queue a player's group and rank expiration date to be saved, and write
+     * it to the database on the asynchronous executor.
+     *
+     * @param player Player's unique id.
+     * @param group Player's group.
+     * @param expiration Time when the rank expires, or null if permanent.
+     * @return future completed once the group is written, or failed with an
+     * {@link SQLException} if the write failed and has been queued again.
+     */
+    ListenableFuture<Void> saveGroupAsync(final UUID player, Group group, Timestamp expiration) {
+        final PlayerGroupRecord record = new PlayerGroupRecord(group, expiration);
+        this.saveRecord(player, record);
+        return asyncExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws SQLException {
+                // Concurrent saves are written by the same flush
+                writeQueue.flush();
+                if (writeQueue.getPending(player) == record) {
+                    throw new SQLException("Failed to save the group of " + player + ", retrying later");
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Get an executor that runs tasks on the server's main thread. Callbacks
+     * of the asynchronous methods that change the server, for example by
+     * calling {@link #updatePermissions}, should run on this executor. Tasks
+     * submitted from the main thread run immediately.
+     *
+     * @return main thread executor.
+     */
+    public Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
+    OfflinePermissionResolver getOfflineResolver() {
+        return offlineResolver;
+    }
+
+    /**
+     * Forget cached information about the permissions registered by plugins.
+     */
+    void clearRegisteredPermissions() {
+        if (offlineResolver != null) {
+            offlineResolver.clearDefaults();
+            wildcardExpander.clear();
+        }
+    }
+
+    /**
+     * Forget cached information about the permissions registered by plugins
+     * because a plugin was enabled or disabled, and update online players in
+     * groups with wildcards, whose attachments were expanded against the
+     * permissions registered before.
+     */
+    void pluginsChanged() {
+        this.clearRegisteredPermissions();
+        if (applyScheduler == null) {
+            return;
+        }
+        for (Map.Entry<UUID, PlayerState> entry : players.entrySet()) {
+            Group group = entry.getValue().getGroup();
+            if (group != null && group.hasWildcards()) {
+                this.scheduleRefresh(entry.getKey());
+            }
+        }
+    }
+
+    WriteBehindQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    ExpirationScheduler getExpirations() {
+        return expirations;
+    }
+
     @SuppressWarnings("SameParameterValue")
     public PermissionsPlayer getPlayer(OfflinePlayer player, World world) throws SQLException {
-        Group group = getPlayerGroup(player);
-        if (group == null) group = this.getDefaultGroup();
-        Timestamp expiration = this.getExpirationDate(player);
-        return new PermissionsPlayer(this, player, group, expiration, world);
+        PlayerGroupRecord record = this.loadPlayer(player.getUniqueId(), player.getName());
+        return new PermissionsPlayer(this, player, record.getGroup(), record.getExpiration(), world);
     }
 
-    private Group getDefaultGroup() {
-        for (String key : this.getConfig().getConfigurationSection("groups").getKeys(false)) {
-            if (this.getConfig().getBoolean(String.format("groups.%s.default", key))) {
-                return new Group(this.getConfig(), key);
+    /**
+     * Load a player's group without blocking the calling thread. This does
+     * the same as {@link #getPlayer} on the plugin's asynchronous executor.
+     * Register callbacks that change the server with
+     * {@link #getMainThreadExecutor()}.
+     *
+     * @param player Player to load.
+     * @param world World to set the player in.
+     * @return future of the player, failed with an {@link SQLException} if
+     * the group could not be loaded.
+     */
+    public ListenableFuture<PermissionsPlayer> getPlayerAsync(final OfflinePlayer player, final World world) {
+        return asyncExecutor.submit(new Callable<PermissionsPlayer>() {
+            @Override
+            public PermissionsPlayer call() throws SQLException {
+                return getPlayer(player, world);
             }
-        }
-        throw new RuntimeException(new InvalidConfigurationException(
-            "There is no default group defined for this server!"));
+        });
+    }
+
+    Group getDefaultGroup() {
+        return groups.getDefaultGroup();
     }
 
     public Group getGroup(String name) {
-        if (this.getConfig().contains("groups." + name)) {
-            return new Group(this.getConfig(), name);
+        return groups.getGroup(name);
+    }
+
+    /**
+     * Find every player stored in the database who has a permission as a
+     * member of their group. The database is read in pages and each group is
+     * resolved once, so this is suitable for very large numbers of players.
+     * Permission defaults are evaluated as for players who are not server
+     * operators, and players whose rank has expired are treated as members of
+     * the fallback group. This method blocks on the database and should not
+     * be called from the main thread.
+     *
+     * @param permission Permission node to check.
+     * @param world World to check the permission in, or null for none.
+     * @param callback Receives each player with the permission.
+     * @throws SQLException Database error.
+     */
+    public void findPlayersWith(String permission, World world, PlayerCallback callback) throws SQLException {
+        writeQueue.flush();
+        new BulkPermissionQuery(this, database, permission, world).findAll(callback);
+    }
+
+    /**
+     * Find which of the given players have a permission as a member of their
+     * group. See {@link #findPlayersWith(String, World, PlayerCallback)} for
+     * how permissions are evaluated. This method blocks on the database and
+     * should not be called from the main thread.
+     *
+     * @param players Players to check.
+     * @param permission Permission node to check.
+     * @param world World to check the permission in, or null for none.
+     * @param callback Receives each player with the permission.
+     * @throws SQLException Database error.
+     */
+    public void findPlayersWith(Collection<UUID> players, String permission, World world,
+                                PlayerCallback callback) throws SQLException {
+        writeQueue.flush();
+        new BulkPermissionQuery(this, database, permission, world).findAmong(players, callback);
+    }
+
+    /**
+     * Get a page of the players in a group, ordered by their key in the
+     * database. Players are identified by unique id, or by name if they have
+     * not logged in since the plugin switched to unique ids. This method blocks
+     * on the database and should not be called from the main thread.
+     *
+     * @param group Group to list.
+     * @param after Key of the last player of the previous page, or null for
+     * the first page.
+     * @param limit Maximum number of players to return.
+     * @return player keys, fewer than the limit if this is the last page.
+     * @throws SQLException Database error.
+     */
+    public List<String> getGroupMembers(Group group, String after, int limit) throws SQLException {
+        writeQueue.flush();
+        return database.findMembers(group.getName(), after == null ? "" : after, limit);
+    }
+
+    /**
+     * Write every player's group and rank expiration date to a CSV file. The
+     * table is read a page at a time. This method blocks on the database and
+     * should not be called from the main thread.
+     *
+     * @param file File to write, replaced if it exists.
+     * @return number of players written.
+     * @throws SQLException Database error.
+     * @throws IOException Error writing the file.
+     */
+    public int exportPlayers(File file) throws SQLException, IOException {
+        writeQueue.flush();
+        return new PlayerGroupTransfer(database).exportTo(file);
+    }
+
+    /**
+     * Store the groups and rank expiration dates in a CSV file written by
+     * {@link #exportPlayers}, replacing those of the same players. Online
+     * players are updated over the following ticks. This method blocks on the
+     * database and should not be called from the main thread.
+     *
+     * @param file File to read.
+     * @return number of players stored.
+     * @throws SQLException Database error.
+     * @throws IOException Error reading the file, or the file is malformed.
+     * Rows before the malformed line may have been stored.
+     */
+    public int importPlayers(File file) throws SQLException, IOException {
+        writeQueue.flush();
+        try {
+            return new PlayerGroupTransfer(database).importFrom(file);
+        } finally {
+            this.getServer().getScheduler().runTask(this, new Runnable() {
+                @Override
+                public void run() {
+                    reloadOnlinePlayers();
+                }
+            });
+        }
+    }
+
+    /**
+     * Convert all rows stored under player names by old versions of the plugin
+     * to unique ids at once. Once no rows are left under a name, the
+     * conversion on login can be turned off with legacy-name-conversion in the
+     * configuration, saving a lookup on every login. This method blocks on
+     * the database and should not be called from the main thread.
+     *
+     * @param players Players whose names are converted, usually all players
+     * who have joined the server as listed by
+     * {@link org.bukkit.Server#getOfflinePlayers} on the main thread. Their
+     * names are read on the calling thread.
+     * @return number of rows still stored under a name, because the name is
+     * not one of the given players.
+     * @throws SQLException Database error.
+     */
+    public int migrateLegacyPlayers(Collection<? extends OfflinePlayer> players) throws SQLException {
+        writeQueue.flush();
+        try {
+            return new PlayerGroupTransfer(database).migrateLegacyRows(players);
+        } finally {
+            playerCache.clear();
+        }
+    }
+
+    /**
+     * Load a player's group from the database, or from the write queue if
+     * their group has changed recently. Groups read from the database are
+     * cached for a short time. If the player's rank has expired, or
+     * they do not have a group yet, their new group is queued to be saved.
+     * This may be called from any thread.
+     *
+     * @param player Player's unique id.
+     * @param name Player's name, used to convert legacy name based records.
+     * @return the player's current group and rank expiration date.
+     * @throws SQLException Database error loading or updating the group.
+     */
+    PlayerGroupRecord loadPlayer(UUID player, String name) throws SQLException {
+        if (!this.getServer().isPrimaryThread()) {
+            return this.loadRecord(player, name);
+        }
+        // Loads on the main thread hold up the tick, whoever calls them
+        long start = System.nanoTime();
+        try {
+            return this.loadRecord(player, name);
+        } finally {
+            metrics.record(Metrics.Timer.MAIN_THREAD_LOAD, start);
         }
-        return null;
     }
 
-    private Group getPlayerGroup(OfflinePlayer player) throws SQLException {
-        Group group = PlayerGroupDatabase.getGroup(this, player);
+    private PlayerGroupRecord loadRecord(final UUID player, final String name) throws SQLException {
+        PlayerGroupRecord record = writeQueue.getPending(player);
+        if (record == null) {
+            record = playerCache.get(player, new PlayerRecordCache.Loader() {
+                @Override
+                public PlayerGroupRecord load() throws SQLException {
+                    return database.load(player, name);
+                }
+            });
+        }
+        Group group = null;
+        Timestamp expirationDate = null;
+        if (record != null) {
+            // Queued records may predate a reload
+            group = this.getGroup(record.getGroup().getName());
+        }
         if (group != null) {
-            Timestamp expirationDate = PlayerGroupDatabase.getExpirationDate(
-                this.getDatabaseConnection(), player);
+            expirationDate = record.getExpiration();
             if (expirationDate != null && expirationDate.before(new Timestamp(System.currentTimeMillis()))) {
                 Group originalGroup = group;
                 group = group.getFallbackGroup();
+                expirationDate = null;
                 this.getLogger().log(Level.FINE, "{0}''s role in the group {1} has expired - switching player to group {2}",
-                                    new Object[] {player.getName(), originalGroup.getName(), group.getName()});
-                PlayerGroupDatabase.setGroup(this.getDatabaseConnection(), player, group, null);
+                                    new Object[] {name, originalGroup.getName(), group.getName()});
+                this.saveLoadedRecord(player, new PlayerGroupRecord(group, null));
             }
         }
         if (group == null) {
             group = this.getDefaultGroup();
-            PlayerGroupDatabase.setGroup(this.getDatabaseConnection(), player, group, null);
+            this.saveLoadedRecord(player, new PlayerGroupRecord(group, null));
         }
-        return group;
+        return new PlayerGroupRecord(group, expirationDate);
     }
 
-    private Timestamp getExpirationDate(OfflinePlayer player) throws SQLException {
-        return PlayerGroupDatabase.getExpirationDate(this.getDatabaseConnection(), player);
+    /**
+     * Load a player's group ahead of their login so that the login handler
+     * does not need to access the database on the main thread. If the
+     * player's group is changed while it is loading, the loaded group is
+     * discarded and the login handler loads it again.
+     *
+     * @param player Player's unique id.
+     * @param name Player's name.
+     */
+    void prefetchPlayer(UUID player, String name) {
+        // Read through the cache, as the group may have been changed by another server
+        playerCache.invalidate(player);
+        LoginCache.Load load = loginCache.begin(player);
+        PlayerGroupRecord record = null;
+        try {
+            record = this.loadPlayer(player, name);
+        } catch (SQLException ex) {
+            this.getLogger().log(Level.SEVERE, "Failed to load group for " + name, ex);
+        } finally {
+            loginCache.complete(player, load, record);
+        }
+    }
+
+    /**
+     * Apply permissions to a player who is logging in, using the record
+     * prefetched during the asynchronous pre-login phase if there is one.
+     *
+     * @param player Player who is logging in.
+     */
+    void applyLoginPermissions(Player player) {
+        metrics.increment(Metrics.Counter.LOGINS);
+        PlayerGroupRecord record = loginCache.take(player.getUniqueId());
+        // The record may have been prefetched before a reload
+        Group group = record == null ? null : this.getGroup(record.getGroup().getName());
+        if (group == null) {
+            metrics.increment(Metrics.Counter.LOGIN_CACHE_MISSES);
+            this.updatePermissions(player);
+        } else {
+            metrics.increment(Metrics.Counter.LOGIN_CACHE_HITS);
+            if (group != record.getGroup()) {
+                record = new PlayerGroupRecord(group, record.getExpiration());
+            }
+            this.applyPermissions(player, record);
+        }
     }
 
     /**
      * Recalculate and apply permissions on a player based on their current
      * group. The plugin will attempt to load the player's group from the
-     * database and the configuration of the group. Permissions will remove any
-     * previous permissions attachments on the player and create one anew.
+     * database and the configuration of the group. Only permissions that
+     * differ from those already applied to the player are changed, and the
+     * player's permissions are recalculated once.
      *
      * @param player Online player to calculate permissions for.
      */
     public void updatePermissions(Player player) {
-        this.removeAttachment(player);
-        PermissionAttachment attachment = player.addAttachment(this);
-        this.attachments.put(player, attachment);
-        Group group;
+        PlayerGroupRecord record;
         try {
-            group = this.getPlayerGroup(player);
+            record = this.loadPlayer(player.getUniqueId(), player.getName());
         } catch (SQLException ex) {
+            this.removeAttachment(player);
             this.getLogger().log(Level.SEVERE, "Failed to load group for " + player.getName(), ex);
             player.sendMessage("There was an error loading your permissions.");
             return;
         }
-        Map<String, Boolean> playerPermissions = group.getPermissions(player.getWorld());
-        for (Map.Entry<String, Boolean> entry : playerPermissions.entrySet()) {
-            attachment.setPermission(entry.getKey(), entry.getValue());
+        this.applyPermissions(player, record);
+    }
+
+    private void applyPermissions(Player player, PlayerGroupRecord record) {
+        PlayerState state = this.players.get(player.getUniqueId());
+        if (state == null) {
+            state = new PlayerState(player.addAttachment(this));
+            this.players.put(player.getUniqueId(), state);
         }
+        Group group = record.getGroup();
+        state.setGroup(group, record.getExpiration());
+        if (record.getExpiration() != null) {
+            expirations.schedule(player.getUniqueId(), record.getExpiration().getTime());
+        } else {
+            expirations.cancel(player.getUniqueId());
+        }
+        Map<String, Boolean> playerPermissions = this.resolvePermissions(group, player.getWorld());
+        long start = System.nanoTime();
+        AttachmentWriter.apply(state.getAttachment(), state.getPermissions(), playerPermissions);
+        state.setPermissions(playerPermissions);
+        state.setWorld(player.getWorld());
+        this.updateCapabilities(player, state);
+        metrics.record(Metrics.Timer.ATTACHMENT_APPLY, start);
+        this.updateDisplayName(player, group);
+    }
+
+    private Map<String, Boolean> resolvePermissions(Group group, World world) {
+        long start = System.nanoTime();
+        Map<String, Boolean> permissions = wildcardExpander.expand(group, world);
+        metrics.record(Metrics.Timer.PERMISSION_RESOLVE, start);
+        return permissions;
+    }
+
+    private void updateCapabilities(Player player, PlayerState state) {
+        long defined = hotPermissions.defined(state.getPermissions());
+        state.setCapabilities(hotPermissions, hotPermissions.compute(player, defined), defined);
+    }
+
+    /**
+     * Check if a player has a permission, using the result cached when their
+     * permissions were last applied if the node is listed under
+     * hot-permissions in the configuration or is the build permission, and
+     * the player's group sets it. Other nodes, and players whose permissions
+     * have not been applied yet, are checked with
+     * {@link Player#hasPermission(String)}. Changes made by other plugins to
+     * a node the group sets are only seen the next time this plugin applies
+     * the player's permissions. Must be called from the main thread.
+     *
+     * @param player Online player to check.
+     * @param permission Permission node to check.
+     * @return true if the player has the permission.
+     */
+    public boolean hasHotPermission(Player player, String permission) {
+        int index = hotPermissions.indexOf(permission);
+        return index < 0 ? player.hasPermission(permission) : this.hasCapability(player, index, permission);
+    }
+
+    private boolean hasCapability(Player player, int index, String permission) {
+        PlayerState state = players.get(player.getUniqueId());
+        long bit = 1L << index;
+        if (state == null || state.getHotPermissions() != hotPermissions || (state.getDefined() & bit) == 0) {
+            return player.hasPermission(permission);
+        }
+        return (state.getCapabilities() & bit) != 0;
+    }
+
+    /**
+     * Check if the internal build protection stops a player from placing
+     * and breaking blocks.
+     *
+     * @param player Player to check.
+     * @return true if the player may not build.
+     */
+    boolean isBuildDenied(Player player) {
+        return hotPermissions.isBuildProtected()
+                && !this.hasCapability(player, HotPermissions.BUILD, HotPermissions.BUILD_PERMISSION);
+    }
+
+    private void updateDisplayName(Player player, Group group) {
         player.setDisplayName(String.format("%s%s%s", group.getPrefix(), player.getName(), group.getSuffix()));
     }
 
+    /**
+     * Update an online player's permissions after they have moved to another
+     * world. The player's group is not reloaded; only the world specific
+     * permissions of the old and new worlds are changed on their attachment.
+     *
+     * @param player Player who changed worlds.
+     * @param from World the player came from.
+     */
+    void changeWorld(Player player, World from) {
+        if (applyScheduler.runNow(player.getUniqueId())) {
+            // The queued update already uses the new world
+            return;
+        }
+        PlayerState state = players.get(player.getUniqueId());
+        Group group = state == null ? null : state.getGroup();
+        if (group == null || group != this.getGroup(group.getName())) {
+            this.updatePermissions(player);
+            return;
+        }
+        Map<String, Boolean> playerPermissions = this.resolvePermissions(group, player.getWorld());
+        long start = System.nanoTime();
+        if (!group.hasWildcards() && state.getPermissions() == group.getPermissionSet(from)) {
+            AttachmentWriter.applyOverlay(state.getAttachment(), group.getPermissionSet(null),
+                    group.getWorldOverlay(from), group.getWorldOverlay(player.getWorld()));
+        } else {
+            AttachmentWriter.apply(state.getAttachment(), state.getPermissions(), playerPermissions);
+        }
+        state.setPermissions(playerPermissions);
+        state.setWorld(player.getWorld());
+        this.updateCapabilities(player, state);
+        metrics.record(Metrics.Timer.ATTACHMENT_APPLY, start);
+    }
+
+    /**
+     * Update the world-specific permissions of a player who has joined. The
+     * server only moves players into the world they logged out in after
+     * their permissions were applied at login, so they may have been applied
+     * for the wrong world. This does not access the database.
+     *
+     * @param player Player who has joined.
+     */
+    void applyJoinWorld(Player player) {
+        PlayerState state = players.get(player.getUniqueId());
+        if (state != null && !player.getWorld().equals(state.getWorld())) {
+            this.changeWorld(player, state.getWorld());
+        }
+    }
+
+    /**
+     * Move an online player whose temporary rank has expired to the fallback
+     * group of their current group.
+     *
+     * @param id Player's unique id.
+     */
+    void expireRank(UUID id) {
+        Player player = this.getServer().getPlayer(id);
+        PlayerState state = players.get(id);
+        if (player == null || state == null || state.getExpiration() == null) {
+            return;
+        }
+        Group originalGroup = state.getGroup();
+        Group group = originalGroup.getFallbackGroup();
+        this.getLogger().log(Level.FINE, "{0}''s role in the group {1} has expired - switching player to group {2}",
+                            new Object[] {player.getName(), originalGroup.getName(), group.getName()});
+        this.saveGroup(id, group, null);
+        this.applyPermissions(player, new PlayerGroupRecord(group, null));
+    }
+
     void removeAttachment(Player player) {
-        if (attachments.containsKey(player)) {
-            player.removeAttachment(attachments.remove(player));
+        PlayerState state = players.remove(player.getUniqueId());
+        if (state != null) {
+            player.removeAttachment(state.getAttachment());
         }
+        expirations.cancel(player.getUniqueId());
+        applyScheduler.cancel(player.getUniqueId());
     }
 }
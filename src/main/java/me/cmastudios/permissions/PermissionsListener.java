@@ -22,6 +22,8 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.player.*;
+import org.bukkit.event.server.PluginDisableEvent;
+import org.bukkit.event.server.PluginEnableEvent;
 
 /**
  * Updates permissions when users change
@@ -37,17 +39,31 @@ class PermissionsListener implements Listener {
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onPlayerChangedWorld(final PlayerChangedWorldEvent event) {
-        plugin.updatePermissions(event.getPlayer());
+        plugin.changeWorld(event.getPlayer(), event.getFrom());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(final AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            plugin.prefetchPlayer(event.getUniqueId(), event.getName());
+        }
     }
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onPlayerLogin(final PlayerLoginEvent event) {
-        plugin.updatePermissions(event.getPlayer());
+        plugin.applyLoginPermissions(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerLoginResult(final PlayerLoginEvent event) {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            plugin.removeAttachment(event.getPlayer());
+        }
     }
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onPlayerJoin(final PlayerJoinEvent event) {
-        plugin.updatePermissions(event.getPlayer());
+        plugin.applyJoinWorld(event.getPlayer());
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
@@ -60,18 +76,26 @@ class PermissionsListener implements Listener {
         plugin.removeAttachment(event.getPlayer());
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginEnable(final PluginEnableEvent event) {
+        plugin.pluginsChanged();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(final PluginDisableEvent event) {
+        plugin.pluginsChanged();
+    }
+
     @EventHandler(priority = EventPriority.LOWEST)
     public void onBlockPlace(final BlockPlaceEvent event) {
-        if (plugin.getConfig().getString("buildperm", "cpermissions.build").equals("cpermissions.build")
-                && !event.getPlayer().hasPermission("cpermissions.build")) {
+        if (plugin.isBuildDenied(event.getPlayer())) {
             event.setCancelled(true);
         }
     }
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onBlockBreak(final BlockBreakEvent event) {
-        if (plugin.getConfig().getString("buildperm", "cpermissions.build").equals("cpermissions.build")
-                && !event.getPlayer().hasPermission("cpermissions.build")) {
+        if (plugin.isBuildDenied(event.getPlayer())) {
             event.setCancelled(true);
         }
     }
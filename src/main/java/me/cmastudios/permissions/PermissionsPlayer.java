@@ -1,14 +1,15 @@
 package me.cmastudios.permissions;
 
-import org.bukkit.Bukkit;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.World;
-import org.bukkit.permissions.Permission;
-import org.bukkit.permissions.PermissionDefault;
+import org.bukkit.entity.Player;
 
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -61,13 +62,16 @@ public class PermissionsPlayer {
     }
 
     /**
-     * Update the user's group in the object and in the database. This function
-     * does not attempt to recalculate permissions for online users, so it is
-     * necessary to call {@link Permissions#updatePermissions} if the player is
-     * currently online.
+     * Update the user's group in the object and queue it to be written to the
+     * database. The write happens in the background shortly after this call
+     * and is retried if it fails; use {@link #setGroupAsync} to find out when
+     * it has been written. This function does not attempt to recalculate
+     * permissions for online users, so it is necessary to call
+     * {@link Permissions#updatePermissions} if the player is currently online.
      *
      * @param group The group to place the user in.
-     * @throws SQLException Database error saving the new group.
+     * @throws SQLException never thrown now that the write is queued; kept so
+     * existing callers that catch it still compile.
      */
     public void setGroup(Group group) throws SQLException {
         this.group = group;
@@ -85,21 +89,45 @@ public class PermissionsPlayer {
     }
 
     /**
-     * Set the time when the player's current rank expires. This will update
-     * the database.
+     * Set the time when the player's current rank expires and queue it to be
+     * written to the database in the background, like {@link #setGroup}. Use
+     * {@link #setExpirationDateAsync} to find out when it has been written.
      *
      * @param expiration Time when the rank will expire.
-     * @throws SQLException Database error saving the expiration date.
+     * @throws SQLException never thrown, see {@link #setGroup}.
      */
     public void setExpirationDate(Date expiration) throws SQLException {
-        if (expiration instanceof Timestamp) {
-            this.expiration = (Timestamp) expiration;
-        } else {
-            this.expiration = new Timestamp(expiration.getTime());
-        }
+        this.expiration = toTimestamp(expiration);
         save();
     }
 
+    /**
+     * Update the user's group like {@link #setGroup}, without waiting for it
+     * to be written to the database. The returned future completes once the
+     * group has been written, and fails with an {@link SQLException} if the
+     * write failed; it is retried in the background either way.
+     *
+     * @param group The group to place the user in.
+     * @return future completed when the group is saved.
+     */
+    public ListenableFuture<Void> setGroupAsync(Group group) {
+        this.group = group;
+        return saveAsync();
+    }
+
+    /**
+     * Set the time when the player's current rank expires like
+     * {@link #setExpirationDate}, returning a future that completes once the
+     * date has been written to the database. See {@link #setGroupAsync}.
+     *
+     * @param expiration Time when the rank will expire.
+     * @return future completed when the expiration date is saved.
+     */
+    public ListenableFuture<Void> setExpirationDateAsync(Date expiration) {
+        this.expiration = toTimestamp(expiration);
+        return saveAsync();
+    }
+
     /**
      * Get the world the player is currently in. This may not be the world the
      * player is physically in, only the one specified on lookup.
@@ -127,6 +155,8 @@ public class PermissionsPlayer {
      * value of the permission. If the player is online, the logic will be
      * short-circuited, using {@link org.bukkit.entity.Player#hasPermission}
      * to allow other plugins a chance to modify the permissions themselves.
+     * As for online players, wildcard nodes of the group only apply to
+     * permissions registered by plugins.
      *
      * @param permission Permission node to check.
      * @return true if the player has the permission, false otherwise.
@@ -135,19 +165,40 @@ public class PermissionsPlayer {
         if (player.isOnline()) {
             return player.getPlayer().hasPermission(permission);
         }
-        Map<String, Boolean> permissions = group.getPermissions(world);
-        if (permissions.containsKey(permission)) {
-            return permissions.get(permission);
+        return plugin.getOfflineResolver().has(group, world, permission, player.isOp());
+    }
+
+    /**
+     * Check if a player has each of many permissions. This gives the same
+     * results as calling {@link #has(String)} for each permission, but is
+     * cheaper for offline players.
+     *
+     * @param permissions Permission nodes to check.
+     * @return map of each permission node to true if the player has the
+     * permission, false otherwise.
+     */
+    public Map<String, Boolean> has(Collection<String> permissions) {
+        if (player.isOnline()) {
+            Player online = player.getPlayer();
+            Map<String, Boolean> result = new LinkedHashMap<>();
+            for (String permission : permissions) {
+                result.put(permission, online.hasPermission(permission));
+            }
+            return result;
         }
-        Permission perm = Bukkit.getPluginManager().getPermission(permission);
-        PermissionDefault def = PermissionDefault.OP;
-        if (perm != null) def = perm.getDefault();
-        return def == PermissionDefault.TRUE || def == PermissionDefault.OP && player.isOp()
-                || def == PermissionDefault.NOT_OP && !player.isOp();
+        return plugin.getOfflineResolver().hasAll(group, world, permissions, player.isOp());
+    }
+
+    private void save() {
+        plugin.saveGroup(player.getUniqueId(), group, expiration);
+    }
+
+    private ListenableFuture<Void> saveAsync() {
+        return plugin.saveGroupAsync(player.getUniqueId(), group, expiration);
     }
 
-    private void save() throws SQLException {
-        PlayerGroupDatabase.setGroup(plugin.getDatabaseConnection(), player, group, expiration);
+    private static Timestamp toTimestamp(Date date) {
+        return date instanceof Timestamp ? (Timestamp) date : new Timestamp(date.getTime());
     }
 }
 
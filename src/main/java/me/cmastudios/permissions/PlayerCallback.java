@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.util.UUID;
+
+/**
+ * Receives players found by bulk queries such as
+ * {@link Permissions#findPlayersWith(String, org.bukkit.World, PlayerCallback)}.
+ *
+ * @author Connor Monahan
+ */
+public interface PlayerCallback {
+
+    /**
+     * Called once for each player matching the query, on the thread running
+     * the query.
+     *
+     * @param player Player's unique id.
+     * @param group Player's group.
+     */
+    void call(UUID player, Group group);
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+/**
+ * An entry of the change log, recording a group change written by one of
+ * the servers sharing the database.
+ *
+ * @author Connor Monahan
+ */
+final class PlayerGroupChange {
+
+    private final long version;
+    private final String origin;
+    private final PlayerGroupRow row;
+
+    PlayerGroupChange(long version, String origin, PlayerGroupRow row) {
+        this.version = version;
+        this.origin = origin;
+        this.row = row;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the id of the server that made the change.
+     *
+     * @return server id, unique to each time the plugin connects to the
+     * database.
+     */
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Get the player's row as it was written by the change.
+     *
+     * @return player's key, group name and rank expiration date.
+     */
+    PlayerGroupRow getRow() {
+        return row;
+    }
+}
@@ -16,105 +16,495 @@
  */
 package me.cmastudios.permissions;
 
-import org.bukkit.OfflinePlayer;
-
-import java.sql.*;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 /**
+ * Access to the player group table in a SQL database. Every operation is a single round trip to
+ * the database, apart from the one-time conversion of legacy name based rows.
+ * Connections are borrowed from a {@link ConnectionPool}, so operations may
+ * run in parallel from any thread.
+ * <p>
+ * When the change log is enabled, every save also appends the new rows to the
+ * change log in the same transaction, so that other servers sharing the
+ * database can pick up the change.
  *
  * @author Connor Monahan
  */
-class PlayerGroupDatabase {
-
-    static Group getGroup(Permissions plugin, OfflinePlayer player) throws SQLException {
-    	// Check the database to see if the user is either in name or UUID format
-    	boolean idExists = inlineExistsUUID(player, plugin.getDatabaseConnection()), nameExists = inlineExistsName(player, plugin.getDatabaseConnection());
-    	// No results at all? Quit
-    	if (!idExists && !nameExists)
-    		return null;
-    	// Only name exists? Do a conversion first
-    	if (!idExists)
-    		inlineConvertToUUID(player, plugin.getDatabaseConnection());
-    	// Query the database again for the return
-        try (PreparedStatement stmt = plugin.getDatabaseConnection().prepareStatement(
-            "SELECT group_name FROM playergroups WHERE player = ?")) {
-            stmt.setString(1, player.getUniqueId().toString());
-            try (ResultSet result = stmt.executeQuery()) {
-                if (result.next())
-                    return plugin.getGroup(result.getString("group_name"));
-                else
-                    return null;
+class PlayerGroupDatabase implements PlayerGroupStore {
+
+    private static final String SELECT_PLAYER =
+        "SELECT player, group_name, expiration_date FROM playergroups WHERE player IN (?, ?)";
+    private static final String SELECT_UUID =
+        "SELECT player, group_name, expiration_date FROM playergroups WHERE player = ?";
+    private static final String CONVERT_PLAYER = "UPDATE playergroups SET player = ? WHERE player = ?";
+    private static final String DELETE_PLAYER = "DELETE FROM playergroups WHERE player = ?";
+    private static final String SCAN_PLAYERS =
+        "SELECT player, group_name, expiration_date FROM playergroups WHERE player > ? ORDER BY player LIMIT ?";
+    private static final String FIND_MEMBERS =
+        "SELECT player FROM playergroups WHERE group_name = ? AND player > ? ORDER BY player LIMIT ?";
+    private static final String LOG_CHANGE = "INSERT INTO playergroup_changes"
+        + " (player, group_name, expiration_date, origin, change_date) VALUES (?, ?, ?, ?, ?)";
+    private static final String READ_CHANGES = "SELECT version, player, group_name, expiration_date, origin"
+        + " FROM playergroup_changes WHERE version > ? ORDER BY version LIMIT ?";
+    private static final String LATEST_CHANGE = "SELECT MAX(version) FROM playergroup_changes";
+    private static final String PRUNE_CHANGES = "DELETE FROM playergroup_changes WHERE change_date < ?";
+    private static final int LOAD_BATCH_SIZE = 500;
+    private static final String LOAD_PLAYERS;
+
+    static {
+        StringBuilder sql = new StringBuilder("SELECT player, group_name, expiration_date FROM playergroups WHERE player IN (?");
+        for (int i = 1; i < LOAD_BATCH_SIZE; i++) {
+            sql.append(", ?");
+        }
+        LOAD_PLAYERS = sql.append(')').toString();
+    }
+
+    private final Permissions plugin;
+    private final ConnectionPool pool;
+    private final SqlDialect dialect;
+    private final Metrics metrics;
+    private final String origin;
+    private final boolean legacyConversion;
+
+    /**
+     * Create access to the player group table.
+     *
+     * @param origin Id of this server, recorded in the change log with every
+     * save, or null to not write the change log.
+     */
+    PlayerGroupDatabase(Permissions plugin, ConnectionPool pool, SqlDialect dialect, String origin) {
+        this.plugin = plugin;
+        this.pool = pool;
+        this.dialect = dialect;
+        this.metrics = plugin.getMetrics();
+        this.origin = origin;
+        this.legacyConversion = plugin.getConfig().getBoolean("legacy-name-conversion", true);
+    }
+
+    SqlDialect getDialect() {
+        return dialect;
+    }
+
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Load a player's group and rank expiration date. Rows stored under the
+     * player's name by old versions of the plugin are converted to their
+     * unique id, unless legacy-name-conversion is disabled in the
+     * configuration.
+     *
+     * @param player Player's unique id.
+     * @param name Player's name.
+     * @return the player's record, or null if the player has no group or
+     * their group no longer exists.
+     * @throws SQLException Database error.
+     */
+    @Override
+    public PlayerGroupRecord load(UUID player, String name) throws SQLException {
+        String id = player.toString();
+        String groupName = null;
+        Timestamp expiration = null;
+        boolean legacy = false;
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(legacyConversion ? SELECT_PLAYER : SELECT_UUID);
+                stmt.setString(1, id);
+                if (legacyConversion) {
+                    stmt.setString(2, name);
+                }
+                try (ResultSet result = stmt.executeQuery()) {
+                    while (result.next()) {
+                        boolean isLegacy = !id.equals(result.getString("player"));
+                        if (groupName == null || !isLegacy) {
+                            groupName = result.getString("group_name");
+                            expiration = result.getTimestamp("expiration_date");
+                            legacy = isLegacy;
+                        }
+                    }
+                }
+                if (legacy) {
+                    PreparedStatement convert = conn.prepare(CONVERT_PLAYER);
+                    convert.setString(1, id);
+                    convert.setString(2, name);
+                    convert.executeUpdate();
+                }
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                throw ex;
+            }
+        } finally {
+            metrics.record(Metrics.Timer.DATABASE_LOAD, start);
+        }
+        if (groupName == null) {
+            return null;
+        }
+        Group group = plugin.getGroup(groupName);
+        return group == null ? null : new PlayerGroupRecord(group, expiration);
+    }
+
+    /**
+     * Store a player's group and rank expiration date, replacing any existing
+     * row for the player.
+     *
+     * @param player Player's unique id.
+     * @param group Player's group.
+     * @param expirationDate Time when the rank expires, or null if permanent.
+     * @throws SQLException Database error.
+     */
+    @Override
+    public void save(UUID player, Group group, Timestamp expirationDate) throws SQLException {
+        if (origin != null) {
+            // The change log entry must be written in the same transaction
+            this.saveAll(Collections.singletonMap(player, new PlayerGroupRecord(group, expirationDate)));
+            return;
+        }
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(dialect.getUpsert());
+                stmt.setString(1, player.toString());
+                stmt.setString(2, group.getName());
+                stmt.setTimestamp(3, expirationDate);
+                stmt.executeUpdate();
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                throw ex;
+            }
+        } finally {
+            metrics.record(Metrics.Timer.DATABASE_SAVE, start);
+        }
+    }
+
+    /**
+     * Store many players' groups and rank expiration dates in a single
+     * batched transaction.
+     *
+     * @param records Records to store, keyed by player.
+     * @throws SQLException Database error. No records are stored.
+     */
+    @Override
+    public void saveAll(Map<UUID, PlayerGroupRecord> records) throws SQLException {
+        List<PlayerGroupRow> rows = new ArrayList<>(records.size());
+        for (Map.Entry<UUID, PlayerGroupRecord> entry : records.entrySet()) {
+            rows.add(new PlayerGroupRow(entry.getKey().toString(), entry.getValue().getGroup().getName(),
+                    entry.getValue().getExpiration()));
+        }
+        this.saveRows(rows);
+    }
+
+    /**
+     * Store many rows as they are given, without resolving group names, in a
+     * single batched transaction.
+     *
+     * @param rows Rows to store. Later rows replace earlier rows with the same
+     * key.
+     * @throws SQLException Database error. No rows are stored.
+     */
+    @Override
+    public void saveRows(List<PlayerGroupRow> rows) throws SQLException {
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            Connection connection = conn.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                PreparedStatement stmt = conn.prepare(dialect.getUpsert());
+                for (PlayerGroupRow row : rows) {
+                    stmt.setString(1, row.getPlayer());
+                    stmt.setString(2, row.getGroupName());
+                    stmt.setTimestamp(3, row.getExpiration());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                if (origin != null) {
+                    this.logChanges(conn, rows);
+                }
+                connection.commit();
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                try {
+                    connection.rollback();
+                } catch (SQLException ignored) {
+                }
+                throw ex;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ex) {
+                    conn.invalidate();
+                }
+            }
+        } finally {
+            metrics.record(Metrics.Timer.DATABASE_SAVE, start);
+        }
+    }
+
+    /**
+     * Read a page of rows in player key order, starting after the given key.
+     *
+     * @param after Key of the last row of the previous page, or an empty
+     * string for the first page.
+     * @param limit Maximum number of rows to read.
+     * @return rows in the page, fewer than the limit if it is the last page.
+     * @throws SQLException Database error.
+     */
+    @Override
+    public List<PlayerGroupRow> scan(String after, int limit) throws SQLException {
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(SCAN_PLAYERS);
+                stmt.setString(1, after);
+                stmt.setInt(2, limit);
+                return readRows(stmt);
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                throw ex;
             }
+        } finally {
+            metrics.record(Metrics.Timer.DATABASE_SCAN, start);
         }
     }
 
-    static void setGroup(Connection conn, OfflinePlayer player, Group group, Timestamp expirationDate) throws SQLException {
-        final String stmtText;
-        if (PlayerGroupDatabase.exists(conn, player)) {
-            stmtText = "UPDATE playergroups SET group_name = ?, expiration_date = ? WHERE player = ?";
-        } else {
-            stmtText = "INSERT INTO playergroups (group_name, expiration_date, player) VALUES (?, ?, ?)";
+    /**
+     * Read the rows of many players by key.
+     *
+     * @param players Player keys to read.
+     * @return rows found, in no particular order.
+     * @throws SQLException Database error.
+     */
+    @Override
+    public List<PlayerGroupRow> loadAll(List<String> players) throws SQLException {
+        List<PlayerGroupRow> rows = new ArrayList<>(players.size());
+        if (players.isEmpty()) {
+            return rows;
         }
-        try (PreparedStatement stmt = conn.prepareStatement(stmtText)) {
-            stmt.setString(1, group.getName());
-            stmt.setTimestamp(2, expirationDate);
-            stmt.setString(3, player.getUniqueId().toString());
-            stmt.executeUpdate();
+        long started = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(LOAD_PLAYERS);
+                for (int start = 0; start < players.size(); start += LOAD_BATCH_SIZE) {
+                    List<String> batch = players.subList(start, Math.min(players.size(), start + LOAD_BATCH_SIZE));
+                    for (int i = 0; i < LOAD_BATCH_SIZE; i++) {
+                        // Pad short batches with a repeated key so a single statement is reused
+                        stmt.setString(i + 1, batch.get(Math.min(i, batch.size() - 1)));
+                    }
+                    rows.addAll(readRows(stmt));
+                }
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                throw ex;
+            }
+        } finally {
+            metrics.record(Metrics.Timer.DATABASE_LOAD_MANY, started);
         }
+        return rows;
     }
 
-    private static boolean exists(Connection conn, OfflinePlayer player) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement("SELECT group_name FROM playergroups WHERE player = ?")) {
-            stmt.setString(1, player.getUniqueId().toString());
-            try (ResultSet result = stmt.executeQuery()) {
-                return result.next();
+    /**
+     * Read a page of the keys of players in a group, in key order.
+     *
+     * @param groupName Name of the group.
+     * @param after Key of the last player of the previous page, or an empty
+     * string for the first page.
+     * @param limit Maximum number of players to read.
+     * @return player keys in the page.
+     * @throws SQLException Database error.
+     */
+    @Override
+    public List<String> findMembers(String groupName, String after, int limit) throws SQLException {
+        List<String> players = new ArrayList<>(limit);
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(FIND_MEMBERS);
+                stmt.setString(1, groupName);
+                stmt.setString(2, after);
+                stmt.setInt(3, limit);
+                try (ResultSet result = stmt.executeQuery()) {
+                    while (result.next()) {
+                        players.add(result.getString("player"));
+                    }
+                }
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                throw ex;
             }
+        } finally {
+            metrics.record(Metrics.Timer.DATABASE_SCAN, start);
         }
+        return players;
     }
 
-    static Timestamp getExpirationDate(Connection conn, OfflinePlayer player) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-            "SELECT expiration_date FROM playergroups WHERE player = ?")) {
-            stmt.setString(1, player.getUniqueId().toString());
-            try (ResultSet result = stmt.executeQuery()) {
-                if(result.next()) {
-                    return result.getTimestamp("expiration_date");
-                } else {
-                    return null;
+    private void logChanges(PooledConnection conn, List<PlayerGroupRow> rows) throws SQLException {
+        PreparedStatement stmt = conn.prepare(LOG_CHANGE);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (PlayerGroupRow row : rows) {
+            stmt.setString(1, row.getPlayer());
+            stmt.setString(2, row.getGroupName());
+            stmt.setTimestamp(3, row.getExpiration());
+            stmt.setString(4, origin);
+            stmt.setTimestamp(5, now);
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+    }
+
+    /**
+     * Change the keys of many rows in a single batched transaction. If there
+     * already is a row with the new key, it is kept and the row with the old
+     * key is deleted, as that is the row {@link #load} would use.
+     *
+     * @param keys New keys by old key.
+     * @throws SQLException Database error. No rows are changed.
+     */
+    @Override
+    public void renamePlayers(Map<String, String> keys) throws SQLException {
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            Connection connection = conn.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                PreparedStatement rename = conn.prepare(dialect.getRename());
+                PreparedStatement delete = conn.prepare(DELETE_PLAYER);
+                for (Map.Entry<String, String> entry : keys.entrySet()) {
+                    rename.setString(1, entry.getValue());
+                    rename.setString(2, entry.getKey());
+                    rename.addBatch();
+                    // Only finds the row if the rename was ignored
+                    delete.setString(1, entry.getKey());
+                    delete.addBatch();
+                }
+                rename.executeBatch();
+                delete.executeBatch();
+                connection.commit();
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                try {
+                    connection.rollback();
+                } catch (SQLException ignored) {
+                }
+                throw ex;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ex) {
+                    conn.invalidate();
                 }
             }
+        } finally {
+            metrics.record(Metrics.Timer.DATABASE_SAVE, start);
         }
     }
-    
-    private static void inlineConvertToUUID(OfflinePlayer player, Connection connection) throws SQLException {
-        try (PreparedStatement stmt = connection.prepareStatement(
-                "UPDATE playergroups SET player = ? WHERE player = ?"
-        )) {
-            stmt.setString(1, player.getUniqueId().toString());
-            stmt.setString(2, player.getName());
-            stmt.executeUpdate();
+
+    /**
+     * Close the connection pool.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * Read change log entries in version order, starting after the given
+     * version.
+     *
+     * @param after Version of the last entry already read.
+     * @param limit Maximum number of entries to read.
+     * @return entries, fewer than the limit if there are no more.
+     * @throws SQLException Database error.
+     */
+    List<PlayerGroupChange> readChanges(long after, int limit) throws SQLException {
+        List<PlayerGroupChange> changes = new ArrayList<>();
+        long start = System.nanoTime();
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(READ_CHANGES);
+                stmt.setLong(1, after);
+                stmt.setInt(2, limit);
+                try (ResultSet result = stmt.executeQuery()) {
+                    while (result.next()) {
+                        changes.add(new PlayerGroupChange(result.getLong("version"), result.getString("origin"),
+                                new PlayerGroupRow(result.getString("player"), result.getString("group_name"),
+                                        result.getTimestamp("expiration_date"))));
+                    }
+                }
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                throw ex;
+            }
+        } finally {
+            metrics.record(Metrics.Timer.DATABASE_POLL, start);
+        }
+        return changes;
+    }
+
+    /**
+     * Get the version of the newest change log entry.
+     *
+     * @return latest version, or 0 if the change log is empty.
+     * @throws SQLException Database error.
+     */
+    long getLatestChange() throws SQLException {
+        try (PooledConnection conn = pool.borrow()) {
+            try (ResultSet result = conn.prepare(LATEST_CHANGE).executeQuery()) {
+                return result.next() ? result.getLong(1) : 0;
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                throw ex;
+            }
         }
     }
 
-    private static boolean inlineExistsUUID(OfflinePlayer player, Connection connection) throws SQLException {
-        try (PreparedStatement stmt = connection.prepareStatement(
-                "SELECT * FROM playergroups WHERE player = ?"
-        )) {
-            stmt.setString(1, player.getUniqueId().toString());
-            try (ResultSet result = stmt.executeQuery()) {
-                return result.next();
+    /**
+     * Delete change log entries written before a point in time.
+     *
+     * @param before Time of the oldest entry to keep.
+     * @return number of entries deleted.
+     * @throws SQLException Database error.
+     */
+    int pruneChanges(Timestamp before) throws SQLException {
+        try (PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement stmt = conn.prepare(PRUNE_CHANGES);
+                stmt.setTimestamp(1, before);
+                return stmt.executeUpdate();
+            } catch (SQLException ex) {
+                metrics.increment(Metrics.Counter.DATABASE_ERRORS);
+                conn.invalidate();
+                throw ex;
             }
         }
     }
 
-    private static boolean inlineExistsName(OfflinePlayer player, Connection connection) throws SQLException {
-        try (PreparedStatement stmt = connection.prepareStatement(
-                "SELECT * FROM playergroups WHERE player = ?"
-        )) {
-            stmt.setString(1, player.getName());
-            try (ResultSet result = stmt.executeQuery()) {
-                return result.next();
+    private static List<PlayerGroupRow> readRows(PreparedStatement stmt) throws SQLException {
+        List<PlayerGroupRow> rows = new ArrayList<>();
+        try (ResultSet result = stmt.executeQuery()) {
+            while (result.next()) {
+                rows.add(new PlayerGroupRow(result.getString("player"), result.getString("group_name"),
+                        result.getTimestamp("expiration_date")));
             }
         }
+        return rows;
     }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.sql.Timestamp;
+
+/**
+ * A player's group and rank expiration date as loaded from the database.
+ *
+ * @author Connor Monahan
+ */
+final class PlayerGroupRecord {
+
+    private final Group group;
+    private final Timestamp expiration;
+
+    PlayerGroupRecord(Group group, Timestamp expiration) {
+        this.group = group;
+        this.expiration = expiration;
+    }
+
+    Group getGroup() {
+        return group;
+    }
+
+    Timestamp getExpiration() {
+        return expiration;
+    }
+}
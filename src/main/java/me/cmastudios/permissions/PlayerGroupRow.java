@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.sql.Timestamp;
+
+/**
+ * A row of the player group table as it is stored, without resolving the
+ * group name or converting legacy name based player keys.
+ *
+ * @author Connor Monahan
+ */
+final class PlayerGroupRow {
+
+    private final String player;
+    private final String groupName;
+    private final Timestamp expiration;
+
+    PlayerGroupRow(String player, String groupName, Timestamp expiration) {
+        this.player = player;
+        this.groupName = groupName;
+        this.expiration = expiration;
+    }
+
+    String getPlayer() {
+        return player;
+    }
+
+    String getGroupName() {
+        return groupName;
+    }
+
+    Timestamp getExpiration() {
+        return expiration;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Storage of each player's group and rank expiration date. Implementations
+ * may be used from any thread.
+ * <p>
+ * Rows are identified by a key, which is the player's unique id or, for rows
+ * written by old versions of the plugin, the player's name. Errors are
+ * reported as {@link SQLException}s whatever the storage, as they are part of
+ * the plugin's public API.
+ *
+ * @see PlayerGroupDatabase
+ * @see MappedPlayerGroupStore
+ * @author Connor Monahan
+ */
+interface PlayerGroupStore {
+
+    /**
+     * Load a player's group and rank expiration date.
+     *
+     * @param player Player's unique id.
+     * @param name Player's name, for stores that convert legacy name based
+     * rows.
+     * @return the player's record, or null if the player has no group or
+     * their group no longer exists.
+     * @throws SQLException Storage error.
+     */
+    PlayerGroupRecord load(UUID player, String name) throws SQLException;
+
+    /**
+     * Store a player's group and rank expiration date, replacing any existing
+     * row for the player.
+     *
+     * @param player Player's unique id.
+     * @param group Player's group.
+     * @param expirationDate Time when the rank expires, or null if permanent.
+     * @throws SQLException Storage error.
+     */
+    void save(UUID player, Group group, Timestamp expirationDate) throws SQLException;
+
+    /**
+     * Store many players' groups and rank expiration dates at once.
+     *
+     * @param records Records to store, keyed by player.
+     * @throws SQLException Storage error.
+     */
+    void saveAll(Map<UUID, PlayerGroupRecord> records) throws SQLException;
+
+    /**
+     * Store many rows as they are given, without resolving group names.
+     *
+     * @param rows Rows to store. Later rows replace earlier rows with the same
+     * key.
+     * @throws SQLException Storage error, or a key the store cannot hold.
+     */
+    void saveRows(List<PlayerGroupRow> rows) throws SQLException;
+
+    /**
+     * Read a page of rows in key order, starting after the given key. Each
+     * store defines its own key order, which is the same for every call.
+     *
+     * @param after Key of the last row of the previous page, or an empty
+     * string for the first page.
+     * @param limit Maximum number of rows to read.
+     * @return rows in the page, fewer than the limit if it is the last page.
+     * @throws SQLException Storage error.
+     */
+    List<PlayerGroupRow> scan(String after, int limit) throws SQLException;
+
+    /**
+     * Read the rows of many players by key.
+     *
+     * @param players Player keys to read.
+     * @return rows found, in no particular order.
+     * @throws SQLException Storage error.
+     */
+    List<PlayerGroupRow> loadAll(List<String> players) throws SQLException;
+
+    /**
+     * Read a page of the keys of players in a group, in the key order of
+     * {@link #scan}.
+     *
+     * @param groupName Name of the group.
+     * @param after Key of the last player of the previous page, or an empty
+     * string for the first page.
+     * @param limit Maximum number of players to read.
+     * @return player keys in the page.
+     * @throws SQLException Storage error.
+     */
+    List<String> findMembers(String groupName, String after, int limit) throws SQLException;
+
+    /**
+     * Change the keys of many rows. If there already is a row with the new
+     * key, it is kept and the row with the old key is deleted.
+     *
+     * @param keys New keys by old key.
+     * @throws SQLException Storage error.
+     */
+    void renamePlayers(Map<String, String> keys) throws SQLException;
+
+    /**
+     * Release the resources held by the store. Changes already saved are
+     * durable.
+     */
+    void close();
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.OfflinePlayer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+
+/**
+ * Bulk transfer of the player group table. Rows are exported to and imported
+ * from CSV files with the columns player, group_name and expiration_date, and
+ * legacy name based rows are converted to unique ids. The table and files are
+ * processed a page at a time, so memory use does not depend on the number of
+ * players.
+ * <p>
+ * Player keys and group names are written as they are stored, without
+ * resolving groups, so a file can be imported into a server with different
+ * groups. Expiration dates use the JDBC timestamp format and are empty for
+ * permanent ranks. Rows without a group have an empty group name.
+ *
+ * @author Connor Monahan
+ */
+final class PlayerGroupTransfer {
+
+    private static final int PAGE_SIZE = 1000;
+    private static final String HEADER = "player,group_name,expiration_date";
+
+    private final PlayerGroupStore database;
+
+    PlayerGroupTransfer(PlayerGroupStore database) {
+        this.database = database;
+    }
+
+    /**
+     * Write every row of the table to a file, replacing the file.
+     *
+     * @param file File to write.
+     * @return number of rows written.
+     * @throws SQLException Database error.
+     * @throws IOException Error writing the file.
+     */
+    int exportTo(File file) throws SQLException, IOException {
+        int count = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            String after = "";
+            List<PlayerGroupRow> page;
+            do {
+                page = database.scan(after, PAGE_SIZE);
+                for (PlayerGroupRow row : page) {
+                    writer.write(quote(row.getPlayer()));
+                    writer.write(',');
+                    if (row.getGroupName() != null) {
+                        writer.write(quote(row.getGroupName()));
+                    }
+                    writer.write(',');
+                    if (row.getExpiration() != null) {
+                        writer.write(row.getExpiration().toString());
+                    }
+                    writer.newLine();
+                    after = row.getPlayer();
+                }
+                count += page.size();
+            } while (page.size() == PAGE_SIZE);
+        }
+        return count;
+    }
+
+    /**
+     * Store every row of a file in the table, replacing existing rows of the
+     * same players. Rows are stored in batches, so if the file is malformed
+     * the rows before the malformed line have already been stored.
+     *
+     * @param file File to read, with a header line.
+     * @return number of rows stored.
+     * @throws SQLException Database error.
+     * @throws IOException Error reading the file, or the file is malformed.
+     */
+    int importFrom(File file) throws SQLException, IOException {
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER)) {
+                throw new IOException(file.getName() + " does not start with the header " + HEADER);
+            }
+            List<PlayerGroupRow> batch = new ArrayList<>(PAGE_SIZE);
+            int number = 1;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                batch.add(parse(line, number));
+                if (batch.size() == PAGE_SIZE) {
+                    database.saveRows(batch);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                database.saveRows(batch);
+                count += batch.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Convert the rows stored under the names of the given players to their
+     * unique ids. Rows of other names are left for the conversion on login.
+     *
+     * @param players Players to convert, usually all players who have joined
+     * the server.
+     * @return number of rows still stored under a name.
+     * @throws SQLException Database error.
+     */
+    int migrateLegacyRows(Collection<? extends OfflinePlayer> players) throws SQLException {
+        Map<String, String> ids = new HashMap<>();
+        for (OfflinePlayer player : players) {
+            if (player.getName() != null) {
+                ids.put(player.getName().toLowerCase(Locale.ENGLISH), player.getUniqueId().toString());
+            }
+        }
+        int remaining = 0;
+        String after = "";
+        List<PlayerGroupRow> page;
+        do {
+            page = database.scan(after, PAGE_SIZE);
+            Map<String, String> renames = new HashMap<>();
+            for (PlayerGroupRow row : page) {
+                String key = row.getPlayer();
+                after = key;
+                if (isUniqueId(key)) {
+                    continue;
+                }
+                String id = ids.get(key.toLowerCase(Locale.ENGLISH));
+                if (id == null) {
+                    remaining++;
+                } else {
+                    renames.put(key, id);
+                }
+            }
+            if (!renames.isEmpty()) {
+                database.renamePlayers(renames);
+            }
+        } while (page.size() == PAGE_SIZE);
+        return remaining;
+    }
+
+    private static boolean isUniqueId(String key) {
+        try {
+            return UUID.fromString(key).toString().equals(key);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static PlayerGroupRow parse(String line, int number) throws IOException {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append(c);
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        if (quoted || fields.size() != 3 || fields.get(0).isEmpty()) {
+            throw new IOException("Malformed row on line " + number);
+        }
+        Timestamp expiration = null;
+        if (!fields.get(2).isEmpty()) {
+            try {
+                expiration = Timestamp.valueOf(fields.get(2));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Malformed expiration date on line " + number, ex);
+            }
+        }
+        String groupName = fields.get(1).isEmpty() ? null : fields.get(1);
+        return new PlayerGroupRow(fields.get(0), groupName, expiration);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Near-cache of player records loaded from storage, so that repeated lookups
+ * of the same players, usually offline players looked up by other plugins,
+ * do not each cost a query. The cache holds at most a fixed number of
+ * players, evicting the least recently used, and entries expire after a fixed
+ * time so that changes made outside this server are eventually seen.
+ * <p>
+ * Concurrent lookups of a player who is not cached share a single load.
+ * Entries must be invalidated whenever the player's group is written. A load
+ * that overlaps an invalidation of the same player is not cached, since it
+ * may have read the old group, and threads waiting for it load the player
+ * again. Invalidating one player does not affect loads of others.
+ *
+ * @author Connor Monahan
+ */
+final class PlayerRecordCache {
+
+    /**
+     * Loads a player's record from storage.
+     */
+    interface Loader {
+
+        PlayerGroupRecord load() throws SQLException;
+    }
+
+    private final int maximumSize;
+    private final long lifetime;
+    private final Metrics metrics;
+    private final Map<UUID, CachedRecord> entries;
+    private final Map<UUID, Load> loads = new HashMap<>();
+
+    /**
+     * Create a cache.
+     *
+     * @param maximumSize Most players to keep, or 0 to disable caching.
+     * @param lifetime Seconds an entry is used for after it was loaded.
+     * @param metrics Metrics to count hits, misses and evictions in.
+     */
+    PlayerRecordCache(final int maximumSize, long lifetime, final Metrics metrics) {
+        this.maximumSize = maximumSize;
+        this.lifetime = TimeUnit.SECONDS.toNanos(lifetime);
+        this.metrics = metrics;
+        this.entries = new LinkedHashMap<UUID, CachedRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, CachedRecord> eldest) {
+                if (this.size() > maximumSize) {
+                    metrics.increment(Metrics.Counter.PLAYER_CACHE_EVICTIONS);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a player's record from the cache, loading it if it is not cached or
+     * has expired. If the player is already being loaded by another thread,
+     * this waits for that load instead of starting another, and looks the
+     * player up again if they were invalidated during that load.
+     *
+     * @param player Player's unique id.
+     * @param loader Loads the record on a miss.
+     * @return the player's record, or null if they have none.
+     * @throws SQLException Storage error from the load.
+     */
+    PlayerGroupRecord get(UUID player, Loader loader) throws SQLException {
+        if (maximumSize <= 0) {
+            return loader.load();
+        }
+        Load load;
+        while (true) {
+            synchronized (this) {
+                CachedRecord entry = entries.get(player);
+                if (entry != null) {
+                    if (System.nanoTime() - entry.loaded < lifetime) {
+                        metrics.increment(Metrics.Counter.PLAYER_CACHE_HITS);
+                        return entry.record;
+                    }
+                    entries.remove(player);
+                    metrics.increment(Metrics.Counter.PLAYER_CACHE_EXPIRATIONS);
+                }
+                load = loads.get(player);
+                if (load == null) {
+                    // Only counted by the caller that goes to the database
+                    metrics.increment(Metrics.Counter.PLAYER_CACHE_MISSES);
+                    load = new Load();
+                    loads.put(player, load);
+                    break;
+                }
+                metrics.increment(Metrics.Counter.PLAYER_CACHE_COALESCED);
+            }
+            PlayerGroupRecord record = load.await();
+            if (!load.invalidated) {
+                return record;
+            }
+            // The record may have been read before the player's group was written
+        }
+        return this.load(player, loader, load);
+    }
+
+    private PlayerGroupRecord load(UUID player, Loader loader, Load load) throws SQLException {
+        PlayerGroupRecord record = null;
+        Exception error = null;
+        boolean loaded = false;
+        try {
+            record = loader.load();
+            loaded = true;
+            return record;
+        } catch (SQLException | RuntimeException ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            synchronized (this) {
+                // Not cached if the player was invalidated while loading
+                if (loads.get(player) == load) {
+                    loads.remove(player);
+                    if (loaded) {
+                        entries.put(player, new CachedRecord(record, System.nanoTime()));
+                    }
+                }
+                load.complete(record, error);
+            }
+        }
+    }
+
+    /**
+     * Discard a player's entry, because their group has been written.
+     *
+     * @param player Player's unique id.
+     */
+    synchronized void invalidate(UUID player) {
+        entries.remove(player);
+        Load load = loads.remove(player);
+        if (load != null) {
+            load.invalidated = true;
+        }
+    }
+
+    /**
+     * Discard all entries, because many groups have been written.
+     */
+    synchronized void clear() {
+        entries.clear();
+        for (Load load : loads.values()) {
+            load.invalidated = true;
+        }
+        loads.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class CachedRecord {
+
+        private final PlayerGroupRecord record;
+        private final long loaded;
+
+        private CachedRecord(PlayerGroupRecord record, long loaded) {
+            this.record = record;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * A load in progress, which other threads looking up the same player
+     * wait for. Only changed while holding the cache's lock.
+     */
+    private static final class Load {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private PlayerGroupRecord record;
+        private Exception error;
+        private boolean invalidated;
+
+        private void complete(PlayerGroupRecord record, Exception error) {
+            this.record = record;
+            this.error = error;
+            done.countDown();
+        }
+
+        private PlayerGroupRecord await() throws SQLException {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a player to load", ex);
+            }
+            if (error instanceof SQLException) {
+                throw (SQLException) error;
+            } else if (error != null) {
+                throw (RuntimeException) error;
+            }
+            return record;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.World;
+import org.bukkit.permissions.PermissionAttachment;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Permissions state of an online player: the attachment holding their
+ * permissions, the permissions currently written to it, the group, rank
+ * expiration date and world they were built from and the cached results of
+ * {@link HotPermissions} checks.
+ * Only used on the main thread.
+ *
+ * @author Connor Monahan
+ */
+final class PlayerState {
+
+    private final PermissionAttachment attachment;
+    private Group group;
+    private Timestamp expiration;
+    private World world;
+    private Map<String, Boolean> permissions = Collections.emptyMap();
+    private HotPermissions hotPermissions;
+    private long capabilities;
+    private long defined;
+
+    PlayerState(PermissionAttachment attachment) {
+        this.attachment = attachment;
+    }
+
+    PermissionAttachment getAttachment() {
+        return attachment;
+    }
+
+    Group getGroup() {
+        return group;
+    }
+
+    Timestamp getExpiration() {
+        return expiration;
+    }
+
+    void setGroup(Group group, Timestamp expiration) {
+        this.group = group;
+        this.expiration = expiration;
+    }
+
+    World getWorld() {
+        return world;
+    }
+
+    void setWorld(World world) {
+        this.world = world;
+    }
+
+    Map<String, Boolean> getPermissions() {
+        return permissions;
+    }
+
+    void setPermissions(Map<String, Boolean> permissions) {
+        this.permissions = permissions;
+    }
+
+    /**
+     * Get the hot permissions the capability bits were computed against.
+     *
+     * @return hot permissions, or null if no bits have been computed.
+     */
+    HotPermissions getHotPermissions() {
+        return hotPermissions;
+    }
+
+    long getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Get the hot nodes whose capability bits may be read, because the
+     * player's permissions define them.
+     *
+     * @return bit set of defined nodes.
+     */
+    long getDefined() {
+        return defined;
+    }
+
+    void setCapabilities(HotPermissions hotPermissions, long capabilities, long defined) {
+        this.hotPermissions = hotPermissions;
+        this.capabilities = capabilities;
+        this.defined = defined;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}. Each connection keeps
+ * its own prepared statement cache, so statements obtained through
+ * {@link #prepare} must not be closed by the caller. Closing this object
+ * returns the connection to the pool.
+ *
+ * @author Connor Monahan
+ */
+final class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final long created;
+    private long lastUsed;
+    private boolean broken;
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+        this.created = System.currentTimeMillis();
+        this.lastUsed = created;
+    }
+
+    /**
+     * Get the underlying connection.
+     *
+     * @return JDBC connection.
+     */
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Get a cached prepared statement for this connection, preparing it on
+     * first use.
+     *
+     * @param sql Statement text.
+     * @return prepared statement, which must not be closed.
+     * @throws SQLException Database error preparing the statement.
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            try {
+                stmt = connection.prepareStatement(sql);
+            } catch (SQLException ex) {
+                broken = true;
+                throw ex;
+            }
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Mark this connection as unusable so that it is closed instead of being
+     * returned to the pool.
+     */
+    void invalidate() {
+        broken = true;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    long getCreated() {
+        return created;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    void closeQuietly() {
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.giveBack(this);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.Permission;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Reloads the configuration without blocking the main thread. The
+ * configuration file is parsed and the groups are compiled on a worker
+ * thread, and the new permissions of every online player are resolved in
+ * parallel on a fork-join pool. Only the final swap of the configuration and
+ * the attachment changes happen on the main thread, and the changes are
+ * spread over several ticks by the {@link ApplyScheduler}. If the configuration
+ * cannot be loaded, the old configuration is kept.
+ *
+ * @author Connor Monahan
+ */
+final class ReloadPipeline {
+
+    private static final int PLAYERS_PER_TASK = 16;
+
+    private final Permissions plugin;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    ReloadPipeline(Permissions plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Start reloading the configuration. Must be called from the main thread.
+     *
+     * @param sender Receives a message when the reload finishes or fails.
+     * @return false if a reload is already in progress.
+     */
+    boolean start(final CommandSender sender) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        final List<Snapshot> snapshots = new ArrayList<>();
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            PlayerState state = plugin.getPlayerState(player.getUniqueId());
+            if (state != null && state.getGroup() != null) {
+                snapshots.add(new Snapshot(player.getUniqueId(), state.getGroup(),
+                        player.getWorld().getName(), state.getPermissions()));
+            }
+        }
+        final List<String> registered = new ArrayList<>();
+        for (Permission permission : plugin.getServer().getPluginManager().getPermissions()) {
+            registered.add(permission.getName());
+        }
+        final File file = new File(plugin.getDataFolder(), "config.yml");
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                final YamlConfiguration config = new YamlConfiguration();
+                final GroupRegistry registry;
+                final List<Update> updates;
+                long start = System.nanoTime();
+                try {
+                    config.load(file);
+                    registry = GroupRegistry.compile(config);
+                    updates = resolve(registry, snapshots, registered);
+                    plugin.getMetrics().record(Metrics.Timer.RELOAD_COMPILE, start);
+                } catch (final IOException | InvalidConfigurationException | RuntimeException ex) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to reload configuration, keeping the old configuration", ex);
+                    plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                        @Override
+                        public void run() {
+                            running.set(false);
+                            sender.sendMessage(ChatColor.RED + "Failed to reload cPermissions configuration: "
+                                    + ex.getMessage() + ". The old configuration is still in use.");
+                        }
+                    });
+                    return;
+                }
+                plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            plugin.completeReload(config, registry, updates, new Runnable() {
+                                @Override
+                                public void run() {
+                                    sender.sendMessage(ChatColor.GOLD + "Reloaded cPermissions configuration from disk.");
+                                }
+                            });
+                        } finally {
+                            running.set(false);
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    private static List<Update> resolve(GroupRegistry registry, List<Snapshot> snapshots, List<String> registered) {
+        if (snapshots.isEmpty()) {
+            return new ArrayList<>();
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return pool.invoke(new ResolveTask(registry, snapshots, registered,
+                    new ConcurrentHashMap<String, Map<String, Boolean>>(), 0, snapshots.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Permissions state of an online player when the reload started.
+     */
+    static final class Snapshot {
+
+        final UUID player;
+        final Group group;
+        final String world;
+        final Map<String, Boolean> permissions;
+
+        private Snapshot(UUID player, Group group, String world, Map<String, Boolean> permissions) {
+            this.player = player;
+            this.group = group;
+            this.world = world;
+            this.permissions = permissions;
+        }
+    }
+
+    /**
+     * Changes to apply to an online player after the reload. The group is
+     * null if the player's group no longer exists.
+     */
+    static final class Update {
+
+        final Snapshot snapshot;
+        final Group group;
+        final Map<String, Boolean> permissions;
+        final Map<String, Boolean> changes;
+        final boolean displayChanged;
+
+        private Update(Snapshot snapshot, Group group, Map<String, Boolean> permissions,
+                       Map<String, Boolean> changes, boolean displayChanged) {
+            this.snapshot = snapshot;
+            this.group = group;
+            this.permissions = permissions;
+            this.changes = changes;
+            this.displayChanged = displayChanged;
+        }
+    }
+
+    private static final class ResolveTask extends RecursiveTask<List<Update>> {
+
+        private final GroupRegistry registry;
+        private final List<Snapshot> snapshots;
+        private final List<String> registered;
+        private final Map<String, Map<String, Boolean>> expanded;
+        private final int start;
+        private final int end;
+
+        private ResolveTask(GroupRegistry registry, List<Snapshot> snapshots, List<String> registered,
+                            Map<String, Map<String, Boolean>> expanded, int start, int end) {
+            this.registry = registry;
+            this.snapshots = snapshots;
+            this.registered = registered;
+            this.expanded = expanded;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<Update> compute() {
+            if (end - start <= PLAYERS_PER_TASK) {
+                List<Update> updates = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    updates.add(this.resolve(snapshots.get(i)));
+                }
+                return updates;
+            }
+            int middle = (start + end) >>> 1;
+            ResolveTask left = new ResolveTask(registry, snapshots, registered, expanded, start, middle);
+            left.fork();
+            List<Update> right = new ResolveTask(registry, snapshots, registered, expanded, middle, end).compute();
+            List<Update> updates = left.join();
+            updates.addAll(right);
+            return updates;
+        }
+
+        private Update resolve(Snapshot snapshot) {
+            Group group = registry.getGroup(snapshot.group.getName());
+            if (group == null) {
+                return new Update(snapshot, null, null, null, false);
+            }
+            String key = group.getName() + '\u0000' + snapshot.world;
+            Map<String, Boolean> permissions = expanded.get(key);
+            if (permissions == null) {
+                permissions = WildcardExpander.expand(group.getPermissions(snapshot.world),
+                        group.getWildcards(snapshot.world), registered);
+                expanded.put(key, permissions);
+            }
+            return new Update(snapshot, group, permissions, AttachmentWriter.diff(snapshot.permissions, permissions),
+                    !group.hasSameDisplay(snapshot.group));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+/**
+ * SQL that differs between the supported database servers.
+ *
+ * @author Connor Monahan
+ */
+enum SqlDialect {
+
+    // MySQL can only index a prefix of TEXT columns and has no IF NOT EXISTS
+    // for indexes, so creating the index fails harmlessly once it exists.
+    MYSQL("INSERT INTO playergroups (player, group_name, expiration_date) VALUES (?, ?, ?)"
+        + " ON DUPLICATE KEY UPDATE group_name = VALUES(group_name), expiration_date = VALUES(expiration_date)",
+        "CREATE INDEX playergroups_group_name ON playergroups (group_name(64), player)",
+        "UPDATE IGNORE playergroups SET player = ? WHERE player = ?",
+        "CREATE TABLE IF NOT EXISTS playergroup_changes (version BIGINT AUTO_INCREMENT PRIMARY KEY,"
+        + " player VARCHAR(36) NOT NULL, group_name TEXT, expiration_date DATETIME NULL,"
+        + " origin VARCHAR(36) NOT NULL, change_date DATETIME NOT NULL)"),
+    // OR REPLACE is the ON CONFLICT REPLACE resolution, understood by every
+    // SQLite version servers ship with. All columns are written, so replacing
+    // the row is equivalent to updating it.
+    SQLITE("INSERT OR REPLACE INTO playergroups (player, group_name, expiration_date) VALUES (?, ?, ?)",
+        "CREATE INDEX IF NOT EXISTS playergroups_group_name ON playergroups (group_name, player)",
+        "UPDATE OR IGNORE playergroups SET player = ? WHERE player = ?",
+        // AUTOINCREMENT stops SQLite from reusing the versions of pruned rows
+        "CREATE TABLE IF NOT EXISTS playergroup_changes (version INTEGER PRIMARY KEY AUTOINCREMENT,"
+        + " player VARCHAR(36) NOT NULL, group_name TEXT, expiration_date DATETIME NULL,"
+        + " origin VARCHAR(36) NOT NULL, change_date DATETIME NOT NULL)");
+
+    private final String upsert;
+    private final String groupIndex;
+    private final String rename;
+    private final String changeLog;
+
+    SqlDialect(String upsert, String groupIndex, String rename, String changeLog) {
+        this.upsert = upsert;
+        this.groupIndex = groupIndex;
+        this.rename = rename;
+        this.changeLog = changeLog;
+    }
+
+    /**
+     * Get a statement that atomically inserts or updates a player's row. The
+     * parameters are the player, group name and expiration date.
+     *
+     * @return upsert statement
+     */
+    String getUpsert() {
+        return upsert;
+    }
+
+    /**
+     * Get a statement that creates the index used to look up the members of
+     * a group.
+     *
+     * @return index creation statement
+     */
+    String getGroupIndex() {
+        return groupIndex;
+    }
+
+    /**
+     * Get a statement that changes the key of a player's row, leaving the row
+     * unchanged if there already is a row with the new key. The parameters
+     * are the new key and the old key.
+     *
+     * @return rename statement
+     */
+    String getRename() {
+        return rename;
+    }
+
+    /**
+     * Get a statement that creates the change log table, which records every
+     * group change with a version that increases with each change.
+     *
+     * @return table creation statement
+     */
+    String getChangeLog() {
+        return changeLog;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.World;
+import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.PluginManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expands the wildcard permissions of groups into the permissions registered
+ * by plugins, so they can be written to player attachments. Expanded sets are
+ * cached per compiled (group, world) permission table until plugins are
+ * enabled or disabled. Only used on the main thread.
+ *
+ * @author Connor Monahan
+ */
+final class WildcardExpander {
+
+    private final PluginManager pluginManager;
+    private final Metrics metrics;
+    private final Map<Map<String, Boolean>, Map<String, Boolean>> cache = new IdentityHashMap<>();
+
+    WildcardExpander(PluginManager pluginManager, Metrics metrics) {
+        this.pluginManager = pluginManager;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the permissions of a group in a world with wildcards expanded. Nodes
+     * left in the compiled table take precedence over wildcards, as a
+     * wildcard set at a later position already removed the nodes it
+     * overrides. Groups without wildcards get their compiled table back
+     * unchanged.
+     *
+     * @param group Group to expand.
+     * @param world World for world-specific permissions, or null for none.
+     * @return unmodifiable expanded permissions.
+     */
+    Map<String, Boolean> expand(Group group, World world) {
+        Map<String, Boolean> permissions = group.getPermissionSet(world);
+        PermissionTrie wildcards = group.getWildcards(world);
+        if (wildcards.isEmpty()) {
+            return permissions;
+        }
+        Map<String, Boolean> expanded = cache.get(permissions);
+        if (expanded != null) {
+            metrics.increment(Metrics.Counter.WILDCARD_CACHE_HITS);
+        } else {
+            metrics.increment(Metrics.Counter.WILDCARD_CACHE_MISSES);
+            List<String> registered = new ArrayList<>();
+            for (Permission permission : pluginManager.getPermissions()) {
+                registered.add(permission.getName());
+            }
+            expanded = expand(permissions, wildcards, registered);
+            cache.put(permissions, expanded);
+        }
+        return expanded;
+    }
+
+    /**
+     * Expand wildcards against a list of registered permission nodes. This
+     * does not use the cache and may be called from any thread.
+     *
+     * @param permissions Compiled group permissions.
+     * @param wildcards Compiled wildcards of the same permissions.
+     * @param registered Names of the permissions registered by plugins.
+     * @return unmodifiable expanded permissions.
+     */
+    static Map<String, Boolean> expand(Map<String, Boolean> permissions, PermissionTrie wildcards,
+                                       Collection<String> registered) {
+        if (wildcards.isEmpty()) {
+            return permissions;
+        }
+        Map<String, Boolean> expanded = new HashMap<>(permissions);
+        for (String name : registered) {
+            if (!permissions.containsKey(name)) {
+                Boolean value = wildcards.resolve(name);
+                if (value != null) {
+                    expanded.put(name, value);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(expanded);
+    }
+
+    /**
+     * Forget all expanded sets, because plugins registering permissions were
+     * enabled or disabled or the groups were reloaded.
+     */
+    void clear() {
+        cache.clear();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of group changes waiting to be written to the database. Changes are
+ * coalesced per player, so only the latest group and expiration date of each
+ * player is written, and are flushed in a single batched transaction by a
+ * background thread.
+ * <p>
+ * Queued changes are visible through {@link #getPending} until they have been
+ * committed, so readers should check the queue before the database.
+ *
+ * @author Connor Monahan
+ */
+final class WriteBehindQueue {
+
+    private final PlayerGroupStore database;
+    private final Logger logger;
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService executor;
+    private Map<UUID, PlayerGroupRecord> pending = new LinkedHashMap<>();
+    private Map<UUID, PlayerGroupRecord> inFlight = new LinkedHashMap<>();
+    private volatile long lastFlushNanos;
+    private volatile int lastFlushSize;
+    private volatile long flushCount;
+
+    /**
+     * Create a queue and start flushing it periodically.
+     *
+     * @param database Database to write changes to.
+     * @param interval Milliseconds between flushes.
+     * @param logger Logger for write errors.
+     */
+    WriteBehindQueue(PlayerGroupStore database, long interval, Logger logger) {
+        this.database = database;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cPermissions database writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a player's new group and expiration date to be written. Any
+     * change to the player that has not been written yet is replaced.
+     *
+     * @param player Player's unique id.
+     * @param record Player's new group and expiration date.
+     */
+    synchronized void enqueue(UUID player, PlayerGroupRecord record) {
+        pending.remove(player);
+        pending.put(player, record);
+    }
+
+    /**
+     * Get a change to a player that has not been committed yet.
+     *
+     * @param player Player's unique id.
+     * @return queued record or null if there are no changes waiting.
+     */
+    synchronized PlayerGroupRecord getPending(UUID player) {
+        PlayerGroupRecord record = pending.get(player);
+        return record == null ? inFlight.get(player) : record;
+    }
+
+    /**
+     * Write all queued changes to the database in one transaction. If the
+     * write fails, the changes are queued again unless a newer change to the
+     * same player has been queued in the meantime.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            Map<UUID, PlayerGroupRecord> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                inFlight = batch;
+                pending = new LinkedHashMap<>();
+            }
+            long start = System.nanoTime();
+            try {
+                database.saveAll(batch);
+                lastFlushNanos = System.nanoTime() - start;
+                lastFlushSize = batch.size();
+                flushCount++;
+            } catch (SQLException | RuntimeException ex) {
+                // Runtime errors too, as they would otherwise end the background thread's flushes for good
+                logger.log(Level.SEVERE, "Failed to save " + batch.size() + " group changes, retrying later", ex);
+                synchronized (this) {
+                    Map<UUID, PlayerGroupRecord> retry = new LinkedHashMap<>(batch);
+                    retry.keySet().removeAll(pending.keySet());
+                    retry.putAll(pending);
+                    pending = retry;
+                }
+            } finally {
+                synchronized (this) {
+                    inFlight = new LinkedHashMap<>();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread and write all remaining changes on the
+     * calling thread.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.flush();
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                logger.log(Level.SEVERE, "{0} group changes could not be saved to the database", pending.size());
+            }
+        }
+    }
+
+    /**
+     * Get the number of players with changes waiting to be written.
+     *
+     * @return queue depth.
+     */
+    synchronized int getDepth() {
+        return pending.size();
+    }
+
+    /**
+     * Get the time taken by the last successful flush.
+     *
+     * @return flush latency in nanoseconds.
+     */
+    long getLastFlushNanos() {
+        return lastFlushNanos;
+    }
+
+    /**
+     * Get the number of rows written by the last successful flush.
+     *
+     * @return batch size.
+     */
+    int getLastFlushSize() {
+        return lastFlushSize;
+    }
+
+    /**
+     * Get the number of successful flushes since the queue was created.
+     *
+     * @return flush count.
+     */
+    long getFlushCount() {
+        return flushCount;
+    }
+}
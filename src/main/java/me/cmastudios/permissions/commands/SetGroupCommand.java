@@ -16,10 +16,13 @@
  */
 package me.cmastudios.permissions.commands;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import me.cmastudios.permissions.Group;
 import me.cmastudios.permissions.Permissions;
 import me.cmastudios.permissions.PermissionsPlayer;
 import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -42,31 +45,49 @@ public class SetGroupCommand implements CommandExecutor {
     }
 
     @Override
-    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+    public boolean onCommand(final CommandSender sender, Command command, String label, String[] args) {
         if (args.length < 2) {
             return false;
         }
-        @SuppressWarnings("deprecation") OfflinePlayer player = Bukkit.getOfflinePlayer(args[0]);
-        Group group = plugin.getGroup(args[1]);
+        @SuppressWarnings("deprecation") final OfflinePlayer player = Bukkit.getOfflinePlayer(args[0]);
+        final Group group = plugin.getGroup(args[1]);
         if (group == null) {
             sender.sendMessage("Group not found");
             return true;
         }
+        final Timestamp expiration;
         try {
-            PermissionsPlayer permPlayer = plugin.getPlayer(player, null);
-            if (args.length > 2) {
-                permPlayer.setExpirationDate(new Timestamp(System.currentTimeMillis() + (Integer.parseInt(args[2]) * 60000)));
+            expiration = args.length > 2
+                    ? new Timestamp(System.currentTimeMillis() + (Integer.parseInt(args[2]) * 60000)) : null;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+        // Load the player off the main thread, then change their group back on it
+        Futures.addCallback(plugin.getPlayerAsync(player, null), new FutureCallback<PermissionsPlayer>() {
+            @Override
+            public void onSuccess(PermissionsPlayer permPlayer) {
+                try {
+                    if (expiration != null) {
+                        permPlayer.setExpirationDate(expiration);
+                    }
+                    Group oldGroup = permPlayer.getGroup();
+                    permPlayer.setGroup(group);
+                    if (player.isOnline()) {
+                        plugin.updatePermissions(player.getPlayer());
+                    }
+                    Command.broadcastCommandMessage(sender, String.format("Changed group of %s from %s to %s",
+                            player.getName(), oldGroup.getName(), group.getName()));
+                } catch (SQLException ex) {
+                    onFailure(ex);
+                }
             }
-            Group oldGroup = permPlayer.getGroup();
-            permPlayer.setGroup(group);
-            if (player.isOnline()) {
-                plugin.updatePermissions(player.getPlayer());
+
+            @Override
+            public void onFailure(Throwable ex) {
+                plugin.getLogger().log(Level.SEVERE, "Setting player group", ex);
+                sender.sendMessage(ChatColor.RED + "There was an error changing the group of " + player.getName() + ".");
             }
-            Command.broadcastCommandMessage(sender, String.format("Changed group of %s from %s to %s",
-                    player.getName(), oldGroup.getName(), group.getName()));
-        } catch (SQLException ex) {
-            plugin.getLogger().log(Level.SEVERE, "Setting player group", ex);
-        }
+        }, plugin.getMainThreadExecutor());
         return true;
     }
 }
@@ -1,12 +1,33 @@
 package me.cmastudios.permissions.commands;
 
+import me.cmastudios.permissions.Group;
 import me.cmastudios.permissions.Permissions;
 
 import org.bukkit.ChatColor;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
 /**
  * Miscellaneous utility commands
@@ -14,12 +35,27 @@ import org.bukkit.entity.Player;
  * cpermissions reload: Reloads plugin config so server reboot isn't required
  * after updating config
  * 
+ * cpermissions members <group> [page]: Lists players in a group, a page at a
+ * time
+ * 
+ * cpermissions stats: Shows performance metrics of the plugin
+ * 
+ * cpermissions export|import [file]: Writes all players' groups to a CSV file
+ * in the plugin folder, or reads them back. The file is a name without a path.
+ * 
+ * cpermissions migrate: Converts all players stored by name to unique ids
+ * 
  * @author dylanhansch
  */
 
-public class cPermsCommand implements CommandExecutor {
+public class cPermsCommand implements CommandExecutor, Listener {
+
+    private static final int MEMBERS_PAGE_SIZE = 20;
+    private static final String TRANSFER_FILE = "players.csv";
 
     private final Permissions plugin;
+    private final Map<String, MemberPages> memberPages = new ConcurrentHashMap<>();
+    private final AtomicBoolean transferRunning = new AtomicBoolean();
 
     public cPermsCommand(Permissions plugin) {
         this.plugin = plugin;
@@ -28,18 +64,237 @@ public class cPermsCommand implements CommandExecutor {
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
         if (args.length == 1 && args[0].equalsIgnoreCase("reload")) {
-            plugin.reloadConfig();
-            
-            // We need to update permissions for each player online in the event permissions
-            // were edited, prefix, suffix, etc.
-            for (Player playerOnline : plugin.getServer().getOnlinePlayers()) {
-                plugin.updatePermissions(playerOnline);
-            }
-            
-            sender.sendMessage(ChatColor.GOLD + "Reloaded cPermissions configuration from disk.");
+            // Also updates online players whose group was edited, prefix, suffix, etc.
+            if (!plugin.reloadConfigAsync(sender)) {
+                sender.sendMessage(ChatColor.RED + "A reload is already in progress.");
+            }
+            return true;
+        } else if ((args.length == 2 || args.length == 3) && args[0].equalsIgnoreCase("members")) {
+            return this.listMembers(sender, args);
+        } else if (args.length == 1 && args[0].equalsIgnoreCase("stats")) {
+            this.showStats(sender);
+            return true;
+        } else if ((args.length == 1 || args.length == 2)
+                && (args[0].equalsIgnoreCase("export") || args[0].equalsIgnoreCase("import"))) {
+            String name = args.length > 1 ? args[1] : TRANSFER_FILE;
+            // Only bare names, so the command cannot read or overwrite files outside the plugin folder
+            if (!name.equals(new File(name).getName()) || name.equals(".") || name.equals("..")) {
+                sender.sendMessage(ChatColor.RED + "The file must be a file name in the plugin folder, without a path.");
+                return true;
+            }
+            String operation = args[0].equalsIgnoreCase("export") ? "export" : "import";
+            this.transfer(sender, operation, new File(plugin.getDataFolder(), name));
+            return true;
+        } else if (args.length == 1 && args[0].equalsIgnoreCase("migrate")) {
+            this.transfer(sender, "migrate", null);
             return true;
         } else {
             return false;
         }
     }
+
+    private boolean listMembers(final CommandSender sender, String[] args) {
+        final Group group = plugin.getGroup(args[1]);
+        if (group == null) {
+            sender.sendMessage("Group not found");
+            return true;
+        }
+        final int page;
+        try {
+            page = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+        if (page < 1) {
+            return false;
+        }
+        final String senderName = sender.getName();
+        // Database access happens off the main thread, results are sent back on it
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                List<String> members;
+                try {
+                    members = loadMembers(senderName, group, page);
+                } catch (SQLException ex) {
+                    plugin.getLogger().log(Level.SEVERE, "Listing group members", ex);
+                    members = null;
+                }
+                final List<String> result = members;
+                plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (sender instanceof Player && !((Player) sender).isOnline()) {
+                            // Quit while the page was loading
+                            memberPages.remove(senderName);
+                            return;
+                        }
+                        showMembers(sender, group, page, result);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Load a page of group members using keyset pagination. The key each page
+     * starts after is remembered per sender, so paging forward only reads the
+     * pages that have not been seen yet. Listing the first page starts over.
+     */
+    private List<String> loadMembers(String senderName, Group group, int page) throws SQLException {
+        MemberPages pages = memberPages.get(senderName);
+        if (page == 1 || pages == null || !pages.group.equals(group.getName())) {
+            pages = new MemberPages(group.getName());
+            memberPages.put(senderName, pages);
+        }
+        synchronized (pages) {
+            int index = Math.min(page, pages.starts.size()) - 1;
+            String after = pages.starts.get(index);
+            while (true) {
+                List<String> members = plugin.getGroupMembers(group, after, MEMBERS_PAGE_SIZE);
+                index++;
+                if (!members.isEmpty() && pages.starts.size() == index) {
+                    pages.starts.add(members.get(members.size() - 1));
+                }
+                if (index == page) {
+                    return members;
+                }
+                if (members.size() < MEMBERS_PAGE_SIZE) {
+                    return Collections.emptyList();
+                }
+                after = members.get(members.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Forget the member pages a player has listed when they leave.
+     *
+     * @param event Player leaving the server.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(final PlayerQuitEvent event) {
+        memberPages.remove(event.getPlayer().getName());
+    }
+
+    private void showMembers(CommandSender sender, Group group, int page, List<String> members) {
+        if (members == null) {
+            sender.sendMessage(ChatColor.RED + "There was an error loading the group members.");
+            return;
+        }
+        if (members.isEmpty()) {
+            sender.sendMessage(ChatColor.GOLD + String.format("No members of %s on page %d.", group.getName(), page));
+            return;
+        }
+        StringBuilder names = new StringBuilder();
+        for (String member : members) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(this.getName(member));
+        }
+        sender.sendMessage(ChatColor.GOLD + String.format("Members of %s (page %d):", group.getName(), page));
+        sender.sendMessage(names.toString());
+    }
+
+    private void transfer(final CommandSender sender, final String action, final File file) {
+        if (!transferRunning.compareAndSet(false, true)) {
+            sender.sendMessage(ChatColor.RED + "An export, import or migration is already running.");
+            return;
+        }
+        // The server only lists its players on the main thread. This lists the player data folder once per
+        // migration; their names, which may have to be read from their data files, are looked up off it.
+        final List<OfflinePlayer> players = action.equals("migrate")
+                ? Arrays.asList(plugin.getServer().getOfflinePlayers()) : null;
+        sender.sendMessage(ChatColor.GOLD + "Started " + action + ", this may take a while.");
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    switch (action) {
+                        case "export":
+                            message = ChatColor.GOLD + String.format("Exported %d players to %s.",
+                                    plugin.exportPlayers(file), file.getName());
+                            break;
+                        case "import":
+                            message = ChatColor.GOLD + String.format("Imported %d players from %s.",
+                                    plugin.importPlayers(file), file.getName());
+                            break;
+                        default:
+                            int remaining = plugin.migrateLegacyPlayers(players);
+                            message = ChatColor.GOLD + (remaining == 0
+                                    ? "All players are stored by unique id, legacy-name-conversion can be disabled."
+                                    : String.format("%d players who never joined this server are still stored by name.",
+                                            remaining));
+                    }
+                } catch (SQLException | IOException ex) {
+                    plugin.getLogger().log(Level.SEVERE, "Player group " + action + " failed", ex);
+                    message = ChatColor.RED + "The " + action + " failed: " + ex.getMessage();
+                } finally {
+                    transferRunning.set(false);
+                }
+                final String result = message;
+                plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        sender.sendMessage(result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void showStats(CommandSender sender) {
+        ConfigurationSection stats = plugin.getStats();
+        sender.sendMessage(ChatColor.GOLD + String.format("cPermissions stats (uptime %ds, main thread %.1fms):",
+                stats.getLong("uptime-seconds"), stats.getDouble("main-thread-ms")));
+        ConfigurationSection timers = stats.getConfigurationSection("timers");
+        for (String name : timers.getKeys(false)) {
+            ConfigurationSection timer = timers.getConfigurationSection(name);
+            if (timer.getLong("count") == 0) {
+                continue;
+            }
+            sender.sendMessage(String.format("%s%s: %sn=%d mean=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                    ChatColor.YELLOW, name, ChatColor.RESET, timer.getLong("count"), timer.getDouble("mean-ms"),
+                    timer.getDouble("p95-ms"), timer.getDouble("p99-ms"), timer.getDouble("max-ms")));
+        }
+        sender.sendMessage(String.format("%scaches: %slogin %.0f%%, wildcard %.0f%%, %.2f database loads per login",
+                ChatColor.YELLOW, ChatColor.RESET, stats.getDouble("rates.login-cache-hit-rate") * 100,
+                stats.getDouble("rates.wildcard-cache-hit-rate") * 100,
+                stats.getDouble("rates.database-loads-per-login")));
+        StringBuilder counters = new StringBuilder();
+        for (String section : new String[] {"counters", "gauges"}) {
+            ConfigurationSection values = stats.getConfigurationSection(section);
+            for (String name : values.getKeys(false)) {
+                if (counters.length() > 0) {
+                    counters.append(", ");
+                }
+                counters.append(name).append('=').append(values.get(name));
+            }
+        }
+        sender.sendMessage(ChatColor.YELLOW + "counters: " + ChatColor.RESET + counters);
+    }
+
+    private String getName(String member) {
+        UUID id;
+        try {
+            id = UUID.fromString(member);
+        } catch (IllegalArgumentException ex) {
+            return member; // Legacy name based row
+        }
+        OfflinePlayer player = plugin.getServer().getOfflinePlayer(id);
+        return player.getName() == null ? member : player.getName();
+    }
+
+    private static final class MemberPages {
+
+        private final String group;
+        private final List<String> starts = new ArrayList<>(Collections.singletonList((String) null));
+
+        private MemberPages(String group) {
+            this.group = group;
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queued permission updates are applied in the order they were first queued,
+ * spread over ticks by the time budget.
+ *
+ * @author Connor Monahan
+ */
+public class ApplySchedulerTest {
+
+    private static final UUID FIRST = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final UUID SECOND = UUID.fromString("61699b2e-d327-4a01-9f1e-0ea8c3f06bc6");
+    private static final UUID THIRD = UUID.fromString("853c80ef-3c37-49fd-aa49-938b674adae6");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+    private ApplyScheduler scheduler;
+    private final List<String> applied = new ArrayList<>();
+    private boolean drained;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        plugin = TestServer.createPlugin(folder.getRoot(), TestServer.groups());
+        TestServer.setEnabled(plugin, true);
+        scheduler = new ApplyScheduler(plugin, 1, new Metrics());
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.clear();
+        TestServer.setEnabled(plugin, false);
+    }
+
+    @Test
+    public void replacedUpdateKeepsItsPosition() {
+        scheduler.schedule(FIRST, this.update("first", 0));
+        scheduler.schedule(SECOND, this.update("second", 0));
+        scheduler.schedule(THIRD, this.update("third", 0));
+        scheduler.schedule(FIRST, this.update("first again", 0));
+        this.whenDrained();
+        assertEquals(3, scheduler.getPending());
+
+        while (scheduler.getPending() > 0) {
+            TestServer.tick();
+        }
+        assertEquals(Arrays.asList("first again", "second", "third"), applied);
+        assertTrue(drained);
+    }
+
+    @Test
+    public void budgetSpreadsUpdatesOverTicks() {
+        // Each update takes longer than the budget of 1 ms, so one is applied per tick
+        scheduler.schedule(FIRST, this.update("first", 5));
+        scheduler.schedule(SECOND, this.update("second", 5));
+        scheduler.schedule(THIRD, this.update("third", 5));
+        this.whenDrained();
+
+        TestServer.tick();
+        assertEquals(Arrays.asList("first"), applied);
+        assertEquals(2, scheduler.getPending());
+        TestServer.tick();
+        assertEquals(Arrays.asList("first", "second"), applied);
+        assertFalse(drained);
+        TestServer.tick();
+        assertEquals(Arrays.asList("first", "second", "third"), applied);
+        assertTrue(drained);
+    }
+
+    @Test
+    public void runNowSkipsTheQueue() {
+        scheduler.schedule(FIRST, this.update("first", 0));
+        scheduler.schedule(SECOND, this.update("second", 0));
+        assertTrue(scheduler.runNow(SECOND));
+        assertFalse(scheduler.runNow(SECOND));
+        assertEquals(Arrays.asList("second"), applied);
+
+        TestServer.tick();
+        assertEquals(Arrays.asList("second", "first"), applied);
+    }
+
+    private Runnable update(final String name, final long millis) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                applied.add(name);
+            }
+        };
+    }
+
+    private void whenDrained() {
+        scheduler.whenDrained(new Runnable() {
+            @Override
+            public void run() {
+                drained = true;
+            }
+        });
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.permissions.PermissibleBase;
+import org.bukkit.permissions.PermissionAttachment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Attachments are updated by writing only the changed nodes and
+ * recalculating the player's permissions once.
+ *
+ * @author Connor Monahan
+ */
+public class AttachmentWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+    private CountingPermissible permissible;
+    private PermissionAttachment attachment;
+    private Map<String, Boolean> oldPermissions;
+    private Map<String, Boolean> newPermissions;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        plugin = TestServer.createPlugin(folder.getRoot(), TestServer.groups());
+        TestServer.setEnabled(plugin, true);
+        permissible = new CountingPermissible();
+        attachment = permissible.addAttachment(plugin);
+
+        oldPermissions = new HashMap<>();
+        oldPermissions.put("chat.talk", true);
+        oldPermissions.put("build.place", false);
+        oldPermissions.put("build.break", true);
+        newPermissions = new HashMap<>();
+        newPermissions.put("chat.talk", true);
+        newPermissions.put("build.place", true);
+        newPermissions.put("Chat.Colors", false);
+        AttachmentWriter.apply(attachment, Collections.<String, Boolean>emptyMap(), oldPermissions);
+        permissible.recalculations = 0;
+    }
+
+    @After
+    public void tearDown() {
+        TestServer.setEnabled(plugin, false);
+    }
+
+    @Test
+    public void onlyChangedNodesAreWritten() {
+        // Unchanged between the old and new permissions, so a write would put it back to true
+        attachment.setPermission("chat.talk", false);
+        permissible.recalculations = 0;
+
+        assertEquals(3, AttachmentWriter.apply(attachment, oldPermissions, newPermissions));
+        assertEquals(1, permissible.recalculations);
+        Map<String, Boolean> expected = new HashMap<>();
+        expected.put("chat.talk", false);
+        expected.put("build.place", true);
+        expected.put("chat.colors", false);
+        assertEquals(expected, attachment.getPermissions());
+        assertTrue(permissible.hasPermission("build.place"));
+        assertFalse(permissible.hasPermission("chat.talk"));
+    }
+
+    @Test
+    public void removedNodesAreUnset() {
+        assertEquals(3, AttachmentWriter.apply(attachment, oldPermissions,
+                Collections.<String, Boolean>emptyMap()));
+        assertEquals(1, permissible.recalculations);
+        assertTrue(attachment.getPermissions().isEmpty());
+        assertFalse(permissible.isPermissionSet("build.break"));
+        assertFalse(permissible.hasPermission("build.break"));
+    }
+
+    @Test
+    public void equalPermissionsAreNotRecalculated() {
+        assertEquals(0, AttachmentWriter.apply(attachment, oldPermissions, new HashMap<>(oldPermissions)));
+        assertEquals(0, AttachmentWriter.applyChanges(attachment,
+                AttachmentWriter.diff(oldPermissions, new HashMap<>(oldPermissions))));
+        assertEquals(0, permissible.recalculations);
+    }
+
+    @Test
+    public void setPermissionFallbackGivesSameContents() {
+        CountingPermissible fallbackPermissible = new CountingPermissible();
+        PermissionAttachment fallback = fallbackPermissible.addAttachment(plugin);
+        AttachmentWriter.apply(fallback, null, Collections.<String, Boolean>emptyMap(), oldPermissions);
+        assertEquals(attachment.getPermissions(), fallback.getPermissions());
+        fallbackPermissible.recalculations = 0;
+
+        AttachmentWriter.apply(attachment, oldPermissions, newPermissions);
+        assertEquals(3, AttachmentWriter.apply(fallback, null, oldPermissions, newPermissions));
+        assertEquals(attachment.getPermissions(), fallback.getPermissions());
+        assertEquals(permissible.getEffectivePermissions().size(),
+                fallbackPermissible.getEffectivePermissions().size());
+        // Each write recalculates on its own
+        assertEquals(3, fallbackPermissible.recalculations);
+
+        // Changes computed off the main thread give the same result too
+        CountingPermissible diffPermissible = new CountingPermissible();
+        PermissionAttachment diffed = diffPermissible.addAttachment(plugin);
+        AttachmentWriter.apply(diffed, Collections.<String, Boolean>emptyMap(), oldPermissions);
+        AttachmentWriter.applyChanges(diffed, AttachmentWriter.diff(oldPermissions, newPermissions));
+        assertEquals(attachment.getPermissions(), diffed.getPermissions());
+    }
+
+    /**
+     * Permissible without an operator that counts how often its permissions
+     * are recalculated.
+     */
+    private static final class CountingPermissible extends PermissibleBase {
+
+        private int recalculations;
+
+        private CountingPermissible() {
+            super(null);
+        }
+
+        @Override
+        public void recalculatePermissions() {
+            recalculations++;
+            super.recalculatePermissions();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bulk permission queries over offline players resolve each player's group
+ * the way a login would, without loading the players one by one.
+ *
+ * @author Connor Monahan
+ */
+public class BulkPermissionQueryTest {
+
+    private static final UUID MEMBER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final UUID EXPIRED = UUID.fromString("61699b2e-d327-4a01-9f1e-0ea8c3f06bc6");
+    private static final UUID UNKNOWN = UUID.fromString("853c80ef-3c37-49fd-aa49-938b674adae6");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        plugin = TestServer.createPlugin(folder.getRoot(), TestServer.groups());
+        TestServer.setEnabled(plugin, true);
+        plugin.saveGroup(MEMBER, plugin.getGroup("member"), null);
+        // The rank ran out an hour ago, so the player is back in the fallback group
+        plugin.saveGroup(EXPIRED, plugin.getGroup("member"), new Timestamp(System.currentTimeMillis() - 3600000));
+    }
+
+    @After
+    public void tearDown() {
+        TestServer.setEnabled(plugin, false);
+    }
+
+    @Test
+    public void expiredRankFallsBack() throws Exception {
+        Map<UUID, String> found = this.findAll("build.place");
+        assertEquals(1, found.size());
+        assertEquals("member", found.get(MEMBER));
+
+        found = this.findAll("chat.talk");
+        assertEquals(2, found.size());
+        assertEquals("member", found.get(MEMBER));
+        assertEquals("guest", found.get(EXPIRED));
+    }
+
+    @Test
+    public void missingRowGetsDefaultGroup() throws Exception {
+        Map<UUID, String> found = this.findAmong("chat.talk");
+        assertEquals(3, found.size());
+        assertEquals("member", found.get(MEMBER));
+        assertEquals("guest", found.get(EXPIRED));
+        assertEquals("guest", found.get(UNKNOWN));
+
+        found = this.findAmong("build.place");
+        assertEquals(1, found.size());
+        assertEquals("member", found.get(MEMBER));
+    }
+
+    private Map<UUID, String> findAll(String permission) throws Exception {
+        Recorder recorder = new Recorder();
+        plugin.findPlayersWith(permission, null, recorder);
+        return recorder.found;
+    }
+
+    private Map<UUID, String> findAmong(String permission) throws Exception {
+        Recorder recorder = new Recorder();
+        plugin.findPlayersWith(Arrays.asList(MEMBER, EXPIRED, UNKNOWN), permission, null, recorder);
+        return recorder.found;
+    }
+
+    private static final class Recorder implements PlayerCallback {
+
+        private final Map<UUID, String> found = new HashMap<>();
+
+        @Override
+        public void call(UUID player, Group group) {
+            found.put(player, group.getName());
+        }
+    }
+}
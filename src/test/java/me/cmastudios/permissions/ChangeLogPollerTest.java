@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Group changes shared between two servers through the change log of one
+ * SQLite file.
+ *
+ * @author Connor Monahan
+ */
+public class ChangeLogPollerTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final UUID OTHER_PLAYER = UUID.fromString("61699b2e-d327-4a01-9f1e-0ea8c3f06bc6");
+    private static final long TIMEOUT = 10000;
+    private static final long GAP_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions first;
+    private Permissions second;
+    private PlayerGroupDatabase database;
+    private ChangeLogPoller poller;
+
+    @Before
+    public void setUp() {
+        TestServer.reset();
+    }
+
+    @After
+    public void tearDown() {
+        if (poller != null) {
+            poller.close();
+            database.close();
+        }
+        for (Permissions plugin : new Permissions[] {first, second}) {
+            if (plugin != null) {
+                TestServer.setEnabled(plugin, false);
+            }
+        }
+    }
+
+    private Permissions enable(String name, boolean sync) throws Exception {
+        return this.enable(name, sync, TestServer.groups());
+    }
+
+    private Permissions enable(String name, boolean sync, YamlConfiguration config) throws Exception {
+        config.set("sqlite-file", new File(folder.getRoot(), "shared.sl3").getAbsolutePath());
+        config.set("sync.enabled", sync);
+        config.set("sync.interval", 20);
+        config.set("write-behind.interval", 20);
+        Permissions plugin = TestServer.createPlugin(folder.newFolder(name), config);
+        TestServer.setEnabled(plugin, true);
+        return plugin;
+    }
+
+    @Test
+    public void changesReachTheOtherServerOnly() throws Exception {
+        first = this.enable("first", true);
+        second = this.enable("second", true);
+        Player player = TestServer.join(PLAYER, "Notch");
+        first.updatePermissions(player);
+        second.updatePermissions(player);
+        assertEquals("guest", second.getPlayerState(PLAYER).getGroup().getName());
+
+        first.saveGroup(PLAYER, first.getGroup("member"), null);
+        assertTrue(TestServer.tickUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return second.getPlayerState(PLAYER).getGroup().getName().equals("member");
+            }
+        }, TIMEOUT));
+        assertEquals(1, second.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+        assertTrue(player.hasPermission("build.place"));
+
+        // Give the first server time to read its own change
+        final long polls = first.getMetrics().getCount(Metrics.Timer.DATABASE_POLL);
+        assertTrue(TestServer.tickUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return first.getMetrics().getCount(Metrics.Timer.DATABASE_POLL) > polls + 2;
+            }
+        }, TIMEOUT));
+        assertEquals(0, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+    }
+
+    @Test
+    public void unknownGroupIsNotSavedBack() throws Exception {
+        YamlConfiguration config = TestServer.groups();
+        TestServer.group(config, "vip", false, Arrays.asList("member"), Arrays.asList("chat.colors"));
+        first = this.enable("first", true, config);
+        second = this.enable("second", true);
+        // Saved before the player joins, so neither server saves a default group for them
+        first.saveGroup(PLAYER, first.getGroup("member"), null);
+        first.getWriteQueue().flush();
+        final Player player = TestServer.join(PLAYER, "Notch");
+        first.updatePermissions(player);
+        second.updatePermissions(player);
+        assertEquals("member", second.getPlayerState(PLAYER).getGroup().getName());
+
+        // The second server has no vip group, so it falls back to its default group
+        first.saveGroup(PLAYER, first.getGroup("vip"), null);
+        assertTrue(TestServer.tickUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return second.getPlayerState(PLAYER).getGroup().getName().equals("guest");
+            }
+        }, TIMEOUT));
+        assertNull(second.getWriteQueue().getPending(PLAYER));
+
+        // Nothing comes back to the first server
+        final long polls = first.getMetrics().getCount(Metrics.Timer.DATABASE_POLL);
+        assertTrue(TestServer.tickUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return first.getMetrics().getCount(Metrics.Timer.DATABASE_POLL) > polls + 2;
+            }
+        }, TIMEOUT));
+        assertEquals(0, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+        assertEquals("vip", first.getPlayer(player, null).getGroup().getName());
+        assertEquals("vip", first.getDatabase().load(PLAYER, "Notch").getGroup().getName());
+    }
+
+    @Test
+    public void ownChangesAreSkipped() throws Exception {
+        this.startPoller();
+        this.insertChange(1, PLAYER, database.getOrigin());
+        this.insertChange(2, OTHER_PLAYER, "other");
+        this.poll();
+        assertEquals(1, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+    }
+
+    @Test
+    public void lateChangeInsideGapIsApplied() throws Exception {
+        this.startPoller();
+        this.insertChange(2, PLAYER, "other");
+        this.poll();
+        assertEquals(1, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+        // The transaction of version 1 commits after version 2 was read
+        this.insertChange(1, OTHER_PLAYER, "other");
+        this.poll();
+        assertEquals(2, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+        this.insertChange(3, PLAYER, "other");
+        this.poll();
+        assertEquals(3, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+    }
+
+    @Test
+    public void gapIsSkippedAfterTimeout() throws Exception {
+        this.startPoller();
+        final List<String> skipped = new ArrayList<>();
+        first.getLogger().addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().contains("Skipped group change log")) {
+                    skipped.add(String.valueOf(record.getParameters()[0]));
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        this.insertChange(2, PLAYER, "other");
+        this.poll();
+        assertEquals(1, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(GAP_TIMEOUT) * 2);
+        this.poll();
+        assertEquals(1, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+        assertEquals(Collections.singletonList("1"), skipped);
+        // Too late, the gap is assumed to be a rolled back transaction
+        this.insertChange(1, OTHER_PLAYER, "other");
+        this.poll();
+        assertEquals(1, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+        this.insertChange(3, OTHER_PLAYER, "other");
+        this.poll();
+        assertEquals(2, first.getMetrics().get(Metrics.Counter.REMOTE_CHANGES));
+    }
+
+    /**
+     * Start a poller that only polls when the test calls {@link #poll}, on a
+     * change log of its own.
+     */
+    private void startPoller() throws Exception {
+        first = this.enable("first", false);
+        database = PlayerGroupDatabaseTest.open(first, new File(folder.getRoot(), "changes.sl3"), "self");
+        poller = new ChangeLogPoller(first, database, TimeUnit.DAYS.toMillis(1), TimeUnit.HOURS.toMillis(1),
+                GAP_TIMEOUT, first.getLogger());
+    }
+
+    private void poll() throws SQLException {
+        poller.poll();
+        TestServer.tick();
+    }
+
+    private void insertChange(long version, UUID player, String origin) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(
+                "jdbc:sqlite:" + new File(folder.getRoot(), "changes.sl3").getPath());
+             PreparedStatement stmt = connection.prepareStatement("INSERT INTO playergroup_changes"
+                     + " (version, player, group_name, expiration_date, origin, change_date) VALUES (?, ?, ?, NULL, ?, ?)")) {
+            stmt.setLong(1, version);
+            stmt.setString(2, player.toString());
+            stmt.setString(3, "member");
+            stmt.setString(4, origin);
+            stmt.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+            stmt.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.PluginManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moving between worlds leaves a player's attachment with the same
+ * permissions as resolving their group in the new world from scratch.
+ *
+ * @author Connor Monahan
+ */
+public class ChangeWorldTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final List<String> REGISTERED = Arrays.asList("wild.fly", "wild.walk");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SimulatedServer server = TestServer.simulated();
+    private final World overworld = server.getWorld("world");
+    private final World nether = server.getWorld("world_nether");
+    private final World end = server.getWorld("world_the_end");
+    private Permissions plugin;
+    private Player player;
+
+    @Before
+    public void setUp() {
+        TestServer.reset();
+        player = TestServer.join(PLAYER, "Notch");
+    }
+
+    @After
+    public void tearDown() {
+        TestServer.setEnabled(plugin, false);
+        PluginManager pluginManager = server.getServer().getPluginManager();
+        for (String node : REGISTERED) {
+            pluginManager.removePermission(node);
+        }
+    }
+
+    private void enable(YamlConfiguration config) throws Exception {
+        plugin = TestServer.createPlugin(folder.getRoot(), config);
+        TestServer.setEnabled(plugin, true);
+        plugin.saveGroup(PLAYER, plugin.getGroup("member"), null);
+        plugin.updatePermissions(player);
+    }
+
+    @Test
+    public void worldNodesOverrideGroupNodes() throws Exception {
+        YamlConfiguration config = TestServer.groups();
+        // Inherited by member in the nether
+        config.set("groups.guest.worlds.world_nether", Arrays.asList("-chat.talk"));
+        config.set("groups.member.worlds.world_nether", Arrays.asList("chat.colors", "-build.place", "nether.portal"));
+        config.set("groups.member.worlds.world", Arrays.asList("overworld.spawn"));
+        this.enable(config);
+        Group member = plugin.getGroup("member");
+        assertFalse(member.hasWildcards());
+        this.assertResolved(overworld);
+        assertTrue(player.hasPermission("overworld.spawn"));
+
+        this.moveTo(nether);
+        this.assertResolved(nether);
+        assertSame(member.getPermissionSet(nether), plugin.getPlayerState(PLAYER).getPermissions());
+        assertFalse(player.hasPermission("chat.talk"));
+        assertTrue(player.hasPermission("chat.colors"));
+        assertFalse(player.hasPermission("build.place"));
+        assertTrue(player.hasPermission("nether.portal"));
+        assertFalse(player.isPermissionSet("overworld.spawn"));
+
+        this.moveTo(end);
+        this.assertResolved(end);
+        assertTrue(player.hasPermission("chat.talk"));
+        assertFalse(player.hasPermission("chat.colors"));
+        assertTrue(player.hasPermission("build.place"));
+        assertFalse(player.isPermissionSet("nether.portal"));
+
+        this.moveTo(nether);
+        this.assertResolved(nether);
+        this.moveTo(overworld);
+        this.assertResolved(overworld);
+    }
+
+    @Test
+    public void wildcardsAreResolvedAgain() throws Exception {
+        PluginManager pluginManager = server.getServer().getPluginManager();
+        for (String node : REGISTERED) {
+            pluginManager.addPermission(new Permission(node));
+        }
+        YamlConfiguration config = TestServer.groups();
+        config.set("groups.member.permissions", Arrays.asList("build.place", "-chat.colors", "wild.*"));
+        config.set("groups.member.worlds.world_nether", Arrays.asList("-wild.fly", "chat.colors"));
+        this.enable(config);
+        assertTrue(plugin.getGroup("member").hasWildcards());
+        this.assertResolved(overworld);
+        assertTrue(player.hasPermission("wild.fly"));
+
+        this.moveTo(nether);
+        this.assertResolved(nether);
+        assertFalse(player.hasPermission("wild.fly"));
+        assertTrue(player.hasPermission("wild.walk"));
+        assertTrue(player.hasPermission("chat.colors"));
+
+        this.moveTo(overworld);
+        this.assertResolved(overworld);
+        assertTrue(player.hasPermission("wild.fly"));
+        assertFalse(player.hasPermission("chat.colors"));
+    }
+
+    private void moveTo(World world) {
+        World from = player.getWorld();
+        server.setWorld(player, world);
+        plugin.changeWorld(player, from);
+    }
+
+    /**
+     * Check that the player's attachment holds the permissions of their
+     * group in a world, resolved in full with wildcards expanded against the
+     * registered permissions.
+     */
+    private void assertResolved(World world) {
+        Group group = plugin.getGroup("member");
+        Map<String, Boolean> expected = group.getPermissions(world);
+        if (group.hasWildcards()) {
+            List<String> registered = new ArrayList<>();
+            for (Permission permission : server.getServer().getPluginManager().getPermissions()) {
+                registered.add(permission.getName());
+            }
+            expected = WildcardExpander.expand(expected, group.getWildcards(world), registered);
+        }
+        assertEquals(expected, plugin.getPlayerState(PLAYER).getAttachment().getPermissions());
+        assertEquals(world, plugin.getPlayerState(PLAYER).getWorld());
+    }
+}
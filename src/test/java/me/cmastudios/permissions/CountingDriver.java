@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * JDBC driver that wraps another driver and counts the statements executed
+ * through it, so tests can check how many round trips an operation takes.
+ * Urls of the form {@code jdbc:counting:sqlite:file} open
+ * {@code jdbc:sqlite:file}. A batch counts as a single statement.
+ *
+ * @author Connor Monahan
+ */
+final class CountingDriver implements Driver {
+
+    static final String PREFIX = "jdbc:counting:";
+
+    private static final CountingDriver INSTANCE = new CountingDriver();
+    private static final AtomicInteger executed = new AtomicInteger();
+    private static boolean registered;
+
+    private CountingDriver() {
+    }
+
+    /**
+     * Register the driver with the driver manager, if not done already.
+     *
+     * @throws SQLException Error registering the driver.
+     */
+    static synchronized void register() throws SQLException {
+        if (!registered) {
+            DriverManager.registerDriver(INSTANCE);
+            registered = true;
+        }
+    }
+
+    /**
+     * Get the number of statements executed since the last reset, and reset
+     * the count.
+     *
+     * @return statements executed.
+     */
+    static int reset() {
+        return executed.getAndSet(0);
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!this.acceptsURL(url)) {
+            return null;
+        }
+        final Connection connection = DriverManager.getConnection("jdbc:" + url.substring(PREFIX.length()), info);
+        return SimulatedServer.proxy(Connection.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Object result = CountingDriver.invoke(connection, method, args);
+                if (result instanceof Statement) {
+                    return countExecutions(method.getReturnType(), result);
+                }
+                return result;
+            }
+        });
+    }
+
+    private static <T> T countExecutions(Class<T> type, final Object statement) {
+        return SimulatedServer.proxy(type, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().startsWith("execute")) {
+                    executed.incrementAndGet();
+                }
+                return CountingDriver.invoke(statement, method, args);
+            }
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url.startsWith(PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
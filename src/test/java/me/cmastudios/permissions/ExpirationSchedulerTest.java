@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Temporary ranks expire on the tick they are due, and players are moved to
+ * the fallback group of their rank.
+ *
+ * @author Connor Monahan
+ */
+public class ExpirationSchedulerTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final UUID OTHER_PLAYER = UUID.fromString("61699b2e-d327-4a01-9f1e-0ea8c3f06bc6");
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+    private ExpirationScheduler expirations;
+    private Player player;
+    private Player otherPlayer;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        YamlConfiguration config = TestServer.groups();
+        TestServer.group(config, "vip", false, Arrays.asList("member"), Arrays.asList("chat.colors"));
+        config.set("groups.vip.info.fallback", "member");
+        plugin = TestServer.createPlugin(folder.getRoot(), config);
+        TestServer.setEnabled(plugin, true);
+        expirations = plugin.getExpirations();
+        player = TestServer.join(PLAYER, "Notch");
+        otherPlayer = TestServer.join(OTHER_PLAYER, "jeb_");
+    }
+
+    @After
+    public void tearDown() {
+        TestServer.setEnabled(plugin, false);
+    }
+
+    @Test
+    public void rankExpiresOnTheTickItIsDue() throws Exception {
+        this.promote(player, "vip", System.currentTimeMillis() + HOUR);
+        // Earlier than the task already scheduled for the player
+        long expiration = System.currentTimeMillis() + 500;
+        expirations.schedule(PLAYER, expiration);
+        this.tick(9);
+        assertEquals("vip", this.group(PLAYER));
+
+        sleepUntil(expiration);
+        TestServer.tick();
+        assertEquals("member", this.group(PLAYER));
+        assertEquals(0, expirations.getPending());
+        PermissionsPlayer saved = plugin.getPlayer(player, null);
+        assertEquals("member", saved.getGroup().getName());
+        assertNull(saved.getExpirationDate());
+    }
+
+    @Test
+    public void earlierExpirationIsRescheduled() throws Exception {
+        this.promote(player, "vip", System.currentTimeMillis() + HOUR);
+        this.promote(otherPlayer, "vip", System.currentTimeMillis() + HOUR);
+        final long later = System.currentTimeMillis() + 1000;
+        long earlier = System.currentTimeMillis() + 250;
+        expirations.schedule(PLAYER, later);
+        expirations.schedule(OTHER_PLAYER, earlier);
+        this.tick(4);
+        assertEquals("vip", this.group(OTHER_PLAYER));
+
+        sleepUntil(earlier);
+        TestServer.tick();
+        assertEquals("member", this.group(OTHER_PLAYER));
+        assertEquals("vip", this.group(PLAYER));
+        assertEquals(1, expirations.getPending());
+
+        assertTrue(TestServer.tickUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return group(PLAYER).equals("member");
+            }
+        }, TIMEOUT));
+        assertTrue(System.currentTimeMillis() >= later);
+    }
+
+    @Test
+    public void logoutAndPermanentRankCancelExpiration() throws Exception {
+        long expiration = System.currentTimeMillis() + 1000;
+        this.promote(player, "vip", expiration);
+        this.promote(otherPlayer, "vip", expiration);
+        assertEquals(2, expirations.getPending());
+
+        plugin.removeAttachment(player);
+        assertEquals(1, expirations.getPending());
+        plugin.saveGroup(OTHER_PLAYER, plugin.getGroup("vip"), null);
+        plugin.updatePermissions(otherPlayer);
+        assertEquals(0, expirations.getPending());
+
+        // The task scheduled for the expiration still runs and finds nothing due
+        sleepUntil(expiration);
+        this.tick(10);
+        assertEquals("vip", this.group(OTHER_PLAYER));
+    }
+
+    @Test
+    public void supersededExpirationIsRemoved() throws Exception {
+        long expiration = System.currentTimeMillis() + 1000;
+        this.promote(player, "vip", expiration);
+        for (int i = 1; i <= 100; i++) {
+            expirations.schedule(PLAYER, System.currentTimeMillis() + HOUR + i);
+        }
+        assertEquals(1, expirations.getPending());
+
+        // The replaced expiration is not applied
+        sleepUntil(expiration);
+        this.tick(10);
+        assertEquals("vip", this.group(PLAYER));
+        assertEquals(1, expirations.getPending());
+    }
+
+    @Test
+    public void rankWithoutFallbackExpiresToDefaultGroup() throws Exception {
+        long expiration = System.currentTimeMillis() + 1000;
+        this.promote(player, "member", expiration);
+        sleepUntil(expiration);
+        assertTrue(TestServer.tickUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return group(PLAYER).equals("guest");
+            }
+        }, TIMEOUT));
+        assertEquals("guest", plugin.getPlayer(player, null).getGroup().getName());
+    }
+
+    private void promote(Player target, String group, long expiration) {
+        plugin.saveGroup(target.getUniqueId(), plugin.getGroup(group), new Timestamp(expiration));
+        plugin.updatePermissions(target);
+        assertEquals(group, this.group(target.getUniqueId()));
+    }
+
+    private String group(UUID id) {
+        return plugin.getPlayerState(id).getGroup().getName();
+    }
+
+    private void tick(int count) {
+        for (int i = 0; i < count; i++) {
+            TestServer.tick();
+        }
+    }
+
+    private static void sleepUntil(long time) throws InterruptedException {
+        while (System.currentTimeMillis() <= time) {
+            Thread.sleep(10);
+        }
+    }
+}
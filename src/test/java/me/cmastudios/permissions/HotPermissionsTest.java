@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The build protection and hot permission checks read the capability bits
+ * computed when a player's permissions were applied, for the nodes the
+ * player's group sets.
+ *
+ * @author Connor Monahan
+ */
+public class HotPermissionsTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+    private Player player;
+
+    @Before
+    public void setUp() {
+        TestServer.reset();
+        player = TestServer.join(PLAYER, "Notch");
+    }
+
+    @After
+    public void tearDown() {
+        TestServer.setEnabled(plugin, false);
+    }
+
+    private void enable(String buildPermission, String... hotPermissions) throws Exception {
+        YamlConfiguration config = TestServer.groups();
+        config.set("groups.guest.info.build", false);
+        config.set("buildperm", buildPermission);
+        config.set("hot-permissions", Arrays.asList(hotPermissions));
+        plugin = TestServer.createPlugin(folder.getRoot(), config);
+        TestServer.setEnabled(plugin, true);
+        plugin.updatePermissions(player);
+    }
+
+    @Test
+    public void groupWithoutBuildIsDenied() throws Exception {
+        this.enable(HotPermissions.BUILD_PERMISSION);
+        assertTrue(plugin.isBuildDenied(player));
+
+        plugin.saveGroup(PLAYER, plugin.getGroup("member"), null);
+        plugin.updatePermissions(player);
+        assertFalse(plugin.isBuildDenied(player));
+    }
+
+    @Test
+    public void deniedUntilPermissionsAreApplied() throws Exception {
+        this.enable(HotPermissions.BUILD_PERMISSION);
+        // Another plugin grants the permission, which is only seen once permissions are applied again
+        player.addAttachment(plugin, HotPermissions.BUILD_PERMISSION, true);
+        assertTrue(player.hasPermission(HotPermissions.BUILD_PERMISSION));
+        assertTrue(plugin.isBuildDenied(player));
+
+        plugin.updatePermissions(player);
+        assertFalse(plugin.isBuildDenied(player));
+    }
+
+    @Test
+    public void otherBuildPermissionIsNotEnforced() throws Exception {
+        this.enable("worldguard.build");
+        assertFalse(player.hasPermission(HotPermissions.BUILD_PERMISSION));
+        assertFalse(plugin.isBuildDenied(player));
+    }
+
+    @Test
+    public void nodeSetByGroupIsCached() throws Exception {
+        this.enable(HotPermissions.BUILD_PERMISSION, "chat.talk");
+        player.addAttachment(plugin, "chat.talk", false);
+        assertFalse(player.hasPermission("chat.talk"));
+        assertTrue(plugin.hasHotPermission(player, "chat.talk"));
+
+        plugin.updatePermissions(player);
+        assertFalse(plugin.hasHotPermission(player, "chat.talk"));
+    }
+
+    @Test
+    public void nodeNotSetByGroupIsNotCached() throws Exception {
+        this.enable(HotPermissions.BUILD_PERMISSION, "essentials.fly");
+        assertFalse(plugin.hasHotPermission(player, "essentials.fly"));
+
+        // Granted by another plugin, or by operator status, without applying permissions again
+        player.addAttachment(plugin, "essentials.fly", true);
+        assertTrue(plugin.hasHotPermission(player, "essentials.fly"));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Records prefetched during pre-login are only handed to the login handler
+ * if they are still current.
+ *
+ * @author Connor Monahan
+ */
+public class LoginCacheTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final UUID OTHER_PLAYER = UUID.fromString("61699b2e-d327-4a01-9f1e-0ea8c3f06bc6");
+
+    private final LoginCache cache = new LoginCache();
+    private final PlayerGroupRecord record = new PlayerGroupRecord(null, null);
+
+    @Test
+    public void completedLoadIsTakenOnce() {
+        cache.complete(PLAYER, cache.begin(PLAYER), record);
+        assertSame(record, cache.take(PLAYER));
+        assertNull(cache.take(PLAYER));
+    }
+
+    @Test
+    public void loadOverlappingInvalidationIsDiscarded() {
+        LoginCache.Load load = cache.begin(PLAYER);
+        // The player's group is saved while the old one is being read
+        cache.invalidate(PLAYER);
+        cache.complete(PLAYER, load, record);
+        assertNull(cache.take(PLAYER));
+    }
+
+    @Test
+    public void invalidatingAnotherPlayerKeepsLoad() {
+        LoginCache.Load load = cache.begin(PLAYER);
+        cache.invalidate(OTHER_PLAYER);
+        cache.complete(PLAYER, load, record);
+        assertSame(record, cache.take(PLAYER));
+    }
+
+    @Test
+    public void supersededLoadIsDiscarded() {
+        LoginCache.Load first = cache.begin(PLAYER);
+        LoginCache.Load second = cache.begin(PLAYER);
+        PlayerGroupRecord newer = new PlayerGroupRecord(null, null);
+        cache.complete(PLAYER, second, newer);
+        cache.complete(PLAYER, first, record);
+        assertSame(newer, cache.take(PLAYER));
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The memory-mapped player store keeps every committed record across reopens,
+ * compactions and compactions that are interrupted or fail.
+ *
+ * @author Connor Monahan
+ */
+public class MappedPlayerGroupStoreTest {
+
+    private static final int PLAYERS = 10;
+    private static final int BATCH_SIZE = 1000;
+    // The batch that grows the log past 1 MiB, which compacts it
+    private static final int COMPACT_BATCHES = 33;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+    private File file;
+    private File snapshot;
+    private FailingStore store;
+    private final Map<String, PlayerGroupRow> expected = new TreeMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        plugin = TestServer.createPlugin(folder.getRoot(), TestServer.groups());
+        file = new File(folder.getRoot(), "players.dat");
+        snapshot = new File(folder.getRoot(), "players.dat.compact");
+        store = new FailingStore(plugin, file);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void reopenKeepsLatestRecords() throws Exception {
+        this.save(player(0), "member", 1000L);
+        this.save(player(1), "guest", null);
+        this.save(player(0), "guest", 2000L);
+        this.reopen();
+        this.assertRecords();
+        assertEquals("guest", store.load(player(0), "Notch").getGroup().getName());
+        assertNull(store.load(player(2), "jeb_"));
+    }
+
+    @Test
+    public void nilUniqueIdIsStoredAsPlayer() throws Exception {
+        this.save(new UUID(0, 0), "member", null);
+        this.save(player(0), "guest", null);
+        this.reopen();
+        this.assertRecords();
+    }
+
+    @Test
+    public void compactionKeepsLatestRecords() throws Exception {
+        this.grow(COMPACT_BATCHES);
+        assertTrue(committedSize() < 1024);
+        assertFalse(snapshot.exists());
+        this.assertRecords();
+        this.save(player(0), "member", null);
+        this.reopen();
+        this.assertRecords();
+    }
+
+    @Test
+    public void incompleteSnapshotIsDiscardedOnOpen() throws Exception {
+        this.save(player(0), "member", 1000L);
+        this.save(player(1), "guest", null);
+        store.close();
+        // A crash while writing the snapshot leaves it without a header
+        Files.write(snapshot.toPath(), new byte[100]);
+        store = new FailingStore(plugin, file);
+        assertFalse(snapshot.exists());
+        this.assertRecords();
+    }
+
+    @Test
+    public void interruptedCopyIsFinishedOnOpen() throws Exception {
+        this.save(player(0), "member", 1000L);
+        this.save(player(1), "guest", null);
+        store.close();
+        // A crash while copying the snapshot leaves the log partly overwritten
+        Files.copy(file.toPath(), snapshot.toPath());
+        try (RandomAccessFile log = new RandomAccessFile(file, "rw")) {
+            log.seek(32);
+            log.write(new byte[64]);
+        }
+        store = new FailingStore(plugin, file);
+        assertFalse(snapshot.exists());
+        this.assertRecords();
+    }
+
+    @Test
+    public void failedRestoreRefusesAccessUntilFinished() throws Exception {
+        store.failing = true;
+        this.grow(COMPACT_BATCHES);
+        assertTrue(snapshot.exists());
+        try {
+            this.save(player(0), "member", null);
+            fail("Saved while the log was partly overwritten");
+        } catch (SQLException ex) {
+            // Refused
+        }
+        try {
+            store.scan("", Integer.MAX_VALUE);
+            fail("Scanned while the log was partly overwritten");
+        } catch (SQLException ex) {
+            // Refused
+        }
+        store.failing = false;
+        this.grow(1);
+        assertFalse(snapshot.exists());
+        this.assertRecords();
+        this.reopen();
+        this.assertRecords();
+    }
+
+    @Test
+    public void failedRestoreIsFinishedOnReopen() throws Exception {
+        store.failing = true;
+        this.grow(COMPACT_BATCHES);
+        try {
+            this.save(player(0), "member", null);
+            fail("Saved while the log was partly overwritten");
+        } catch (SQLException ex) {
+            // Refused
+        }
+        this.reopen();
+        assertFalse(snapshot.exists());
+        this.assertRecords();
+    }
+
+    @Test
+    public void unopenableStoreDisablesPlugin() throws Exception {
+        File dataFolder = folder.newFolder("broken");
+        // A directory in place of the log cannot be mapped
+        assertTrue(new File(dataFolder, "players.dat").mkdir());
+        YamlConfiguration config = TestServer.groups();
+        config.set("storage", "mapped");
+        Permissions broken = TestServer.createPlugin(dataFolder, config);
+        TestServer.setEnabled(broken, true);
+        assertFalse(broken.isEnabled());
+        assertNull(broken.getWriteQueue());
+    }
+
+    private static UUID player(int i) {
+        return new UUID(0x069a79f444e94726L, i);
+    }
+
+    private void save(UUID player, String group, Long expiration) throws SQLException {
+        List<PlayerGroupRow> rows = new ArrayList<>();
+        rows.add(this.row(player, group, expiration));
+        store.saveRows(rows);
+        this.expect(rows);
+    }
+
+    /**
+     * Save batches of rows that keep replacing the records of a few players.
+     */
+    private void grow(int batches) throws SQLException {
+        for (int i = 0; i < batches; i++) {
+            List<PlayerGroupRow> rows = new ArrayList<>(BATCH_SIZE);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                rows.add(this.row(player(j % PLAYERS), j % 3 == 0 ? "guest" : "member", i * 1000L + j));
+            }
+            store.saveRows(rows);
+            this.expect(rows);
+        }
+    }
+
+    private PlayerGroupRow row(UUID player, String group, Long expiration) {
+        return new PlayerGroupRow(player.toString(), group, expiration == null ? null : new Timestamp(expiration));
+    }
+
+    private void expect(List<PlayerGroupRow> rows) {
+        for (PlayerGroupRow row : rows) {
+            expected.put(row.getPlayer(), row);
+        }
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = new FailingStore(plugin, file);
+    }
+
+    private int committedSize() throws IOException {
+        try (RandomAccessFile log = new RandomAccessFile(file, "r")) {
+            log.seek(8);
+            return log.readInt();
+        }
+    }
+
+    private void assertRecords() throws SQLException {
+        List<PlayerGroupRow> rows = store.scan("", Integer.MAX_VALUE);
+        assertEquals(expected.size(), rows.size());
+        for (PlayerGroupRow row : rows) {
+            PlayerGroupRow want = expected.get(row.getPlayer());
+            assertEquals(want.getGroupName(), row.getGroupName());
+            assertEquals(want.getExpiration(), row.getExpiration());
+        }
+    }
+
+    /**
+     * Store whose snapshot copies can be made to fail after the first few
+     * records have been overwritten.
+     */
+    private static final class FailingStore extends MappedPlayerGroupStore {
+
+        private boolean failing;
+
+        private FailingStore(Permissions plugin, File file) throws IOException {
+            super(plugin, file);
+        }
+
+        @Override
+        void copySnapshot(FileChannel in, ByteBuffer target) throws IOException {
+            if (failing) {
+                target.limit(Math.min(target.limit(), target.position() + 64));
+                super.copySnapshot(in, target);
+                throw new IOException("Copying the snapshot failed");
+            }
+            super.copySnapshot(in, target);
+        }
+    }
+}
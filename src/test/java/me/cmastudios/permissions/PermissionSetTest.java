@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Precedence of explicit nodes and wildcards set at different positions, and
+ * equivalence of compiled groups with the map based resolution they replace.
+ *
+ * @author Connor Monahan
+ */
+public class PermissionSetTest {
+
+    private static final List<String> REGISTERED = Arrays.asList("war.build.place", "war.build.break", "war.pvp");
+
+    private static Map<String, Boolean> expand(PermissionSet permissions) {
+        return WildcardExpander.expand(permissions, PermissionTrie.compile(permissions), REGISTERED);
+    }
+
+    @Test
+    public void laterWildcardOverridesInheritedNode() {
+        PermissionSet parent = new PermissionSet.Builder().set("war.build.place", true).set("war.pvp", true).build();
+        PermissionSet child = new PermissionSet.Builder().merge(parent).layer().set("war.build.*", false).build();
+        assertFalse(child.containsKey("war.build.place"));
+        Map<String, Boolean> expanded = expand(child);
+        assertEquals(false, expanded.get("war.build.place"));
+        assertEquals(false, expanded.get("war.build.break"));
+        assertEquals(true, expanded.get("war.pvp"));
+    }
+
+    @Test
+    public void nodeInSameLayerOverridesWildcard() {
+        PermissionSet after = new PermissionSet.Builder().set("war.build.*", false).set("war.build.place", true).build();
+        PermissionSet before = new PermissionSet.Builder().set("war.build.place", true).set("war.build.*", false).build();
+        assertEquals(after, before);
+        Map<String, Boolean> expanded = expand(after);
+        assertEquals(true, expanded.get("war.build.place"));
+        assertEquals(false, expanded.get("war.build.break"));
+    }
+
+    @Test
+    public void laterNodeOverridesInheritedWildcard() {
+        PermissionSet parent = new PermissionSet.Builder().set("war.build.*", false).build();
+        PermissionSet child = new PermissionSet.Builder().merge(parent).layer().set("war.build.place", true).build();
+        Map<String, Boolean> expanded = expand(child);
+        assertEquals(true, expanded.get("war.build.place"));
+        assertEquals(false, expanded.get("war.build.break"));
+    }
+
+    @Test
+    public void laterWildcardOverridesMoreSpecificInheritedWildcard() {
+        PermissionSet parent = new PermissionSet.Builder().set("war.build.*", true).build();
+        PermissionSet child = new PermissionSet.Builder().merge(parent).layer().set("war.*", false).build();
+        Map<String, Boolean> expanded = expand(child);
+        assertEquals(false, expanded.get("war.build.place"));
+        assertEquals(false, expanded.get("war.pvp"));
+    }
+
+    @Test
+    public void laterInheritedGroupOverridesEarlierOne() {
+        PermissionSet first = new PermissionSet.Builder().set("war.build.place", true).build();
+        PermissionSet second = new PermissionSet.Builder().set("war.build.*", false).build();
+        assertEquals(false, expand(new PermissionSet.Builder().merge(first).merge(second).build()).get("war.build.place"));
+        assertEquals(true, expand(new PermissionSet.Builder().merge(second).merge(first).build()).get("war.build.place"));
+    }
+
+    @Test
+    public void overrideIsKeptThroughInheritance() {
+        PermissionSet grandparent = new PermissionSet.Builder().set("war.build.place", true).build();
+        PermissionSet parent = new PermissionSet.Builder().merge(grandparent).layer().set("war.build.*", false).build();
+        PermissionSet child = new PermissionSet.Builder().merge(parent).layer().set("war.pvp", true).build();
+        assertEquals(expand(parent).get("war.build.place"), expand(child).get("war.build.place"));
+        assertEquals(false, expand(child).get("war.build.place"));
+    }
+
+    @Test
+    public void compiledGroupsMatchMapResolution() {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("autoperms", Arrays.asList("group.%s", "-group.%s.pending"));
+        TestServer.group(config, "guest", true, Collections.<String>emptyList(),
+                Arrays.asList("chat.talk", "chat.colors", "-build.break", "group.member"));
+        config.set("groups.guest.info.build", false);
+        config.set("groups.guest.worlds.world_nether", Arrays.asList("-chat.talk", "nether.portal"));
+        // Allows what guest denies and the other way round, in the base and in the nether
+        TestServer.group(config, "member", false, Arrays.asList("guest"),
+                Arrays.asList("build.place", "build.break", "-chat.colors", "-group.member"));
+        config.set("groups.member.worlds.world_nether", Arrays.asList("-build.place", "chat.colors", "chat.talk"));
+        config.set("groups.member.worlds.world", Arrays.asList("-nether.portal"));
+        TestServer.group(config, "moderator", false, Arrays.asList("member"),
+                Arrays.asList("-build.break", "-chat.talk", "group.moderator.pending"));
+        config.set("groups.moderator.worlds.world_nether", Arrays.asList("build.break", "-nether.portal"));
+        // Guest is merged after moderator, so its nodes win over the ones moderator inherits from member
+        TestServer.group(config, "admin", false, Arrays.asList("moderator", "guest"), Arrays.asList("admin.kick"));
+        config.set("groups.admin.worlds.world", Arrays.asList("-admin.kick"));
+        GroupRegistry registry = GroupRegistry.compile(config);
+
+        ConfigurationSection groups = config.getConfigurationSection("groups");
+        for (String name : groups.getKeys(false)) {
+            Group group = registry.getGroup(name);
+            for (String world : Arrays.asList(null, "world", "world_nether", "world_the_end")) {
+                Map<String, Boolean> expected = resolve(groups, config.getStringList("autoperms"), name, world);
+                Map<String, Boolean> compiled = world == null ? group.getPermissionSet(null) : group.getPermissions(world);
+                assertEquals(name + " in " + world, expected, new HashMap<>(compiled));
+                assertEquals(expected.size(), compiled.size());
+                for (Map.Entry<String, Boolean> entry : expected.entrySet()) {
+                    assertEquals(entry.getValue(), compiled.get(entry.getKey()));
+                }
+                assertEquals(null, compiled.get("not.set"));
+            }
+        }
+        assertEquals(true, registry.getGroup("admin").getPermissionSet(null).get("chat.colors"));
+        assertEquals(true, registry.getGroup("moderator").getPermissions("world_nether").get("build.break"));
+        assertEquals(false, registry.getGroup("moderator").getPermissions("world_nether").get("nether.portal"));
+    }
+
+    /**
+     * Resolve a group the way groups were resolved before they were
+     * compiled to permission sets: every position is put into one map in
+     * order, so later positions override earlier ones.
+     */
+    private static Map<String, Boolean> resolve(ConfigurationSection groups, List<String> autoPermissions,
+                                                String name, String world) {
+        ConfigurationSection group = groups.getConfigurationSection(name);
+        Map<String, Boolean> permissions = new HashMap<>();
+        for (String inherited : group.getStringList("inheritance")) {
+            permissions.putAll(resolve(groups, autoPermissions, inherited, world));
+        }
+        for (String namePermission : autoPermissions) {
+            put(permissions, String.format(namePermission, name));
+        }
+        permissions.put("cpermissions.build", group.getBoolean("info.build"));
+        for (String permission : group.getStringList("permissions")) {
+            put(permissions, permission);
+        }
+        if (world != null) {
+            for (String permission : group.getStringList("worlds." + world)) {
+                put(permissions, permission);
+            }
+        }
+        return permissions;
+    }
+
+    private static void put(Map<String, Boolean> permissions, String permission) {
+        if (permission.startsWith("-")) {
+            permissions.put(permission.substring(1), false);
+        } else {
+            permissions.put(permission, true);
+        }
+    }
+}
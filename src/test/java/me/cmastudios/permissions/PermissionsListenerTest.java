@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.server.PluginEnableEvent;
+import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.PluginManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Online players are updated when plugins register permissions after they
+ * joined.
+ *
+ * @author Connor Monahan
+ */
+public class PermissionsListenerTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+    private Player player;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        YamlConfiguration config = TestServer.groups();
+        TestServer.group(config, "member", false, Arrays.asList("guest"), Arrays.asList("war.*"));
+        plugin = TestServer.createPlugin(folder.getRoot(), config);
+        TestServer.setEnabled(plugin, true);
+        player = TestServer.join(PLAYER, "Notch");
+        plugin.saveGroup(PLAYER, plugin.getGroup("member"), null);
+        plugin.updatePermissions(player);
+    }
+
+    @After
+    public void tearDown() {
+        TestServer.setEnabled(plugin, false);
+    }
+
+    @Test
+    public void wildcardsExpandIntoPermissionsOfLaterPlugins() {
+        PluginManager pluginManager = TestServer.get().getPluginManager();
+        assertFalse(player.hasPermission("war.pvp"));
+        pluginManager.addPermission(new Permission("war.pvp"));
+        pluginManager.callEvent(new PluginEnableEvent(plugin));
+        TestServer.tick();
+        assertTrue(player.hasPermission("war.pvp"));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The futures returned by the asynchronous player API report whether a
+ * change has been written to the database.
+ *
+ * @author Connor Monahan
+ */
+public class PermissionsPlayerTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+    private PermissionsPlayer permPlayer;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        plugin = TestServer.createPlugin(folder.getRoot(), TestServer.groups());
+        TestServer.setEnabled(plugin, true);
+        Player player = TestServer.join(PLAYER, "Notch");
+        permPlayer = plugin.getPlayer(player, null);
+        plugin.getWriteQueue().flush();
+    }
+
+    @After
+    public void tearDown() {
+        TestServer.setEnabled(plugin, false);
+    }
+
+    @Test
+    public void savedGroupIsDeliveredToOnSuccess() throws Exception {
+        Object result = this.setGroup();
+        assertEquals("saved", result);
+        assertEquals("member", plugin.getDatabase().load(PLAYER, "Notch").getGroup().getName());
+    }
+
+    @Test
+    public void failedSaveIsDeliveredToOnFailure() throws Exception {
+        try (Connection connection = DriverManager.getConnection(
+                "jdbc:sqlite:" + new File(folder.getRoot(), "userdb.sl3").getPath());
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP TABLE playergroups");
+        }
+        Object result = this.setGroup();
+        assertTrue(String.valueOf(result), result instanceof SQLException);
+        // Still queued, so the write is retried
+        assertEquals("member", plugin.getWriteQueue().getPending(PLAYER).getGroup().getName());
+    }
+
+    /**
+     * Move the player to the member group and wait for the callback on the
+     * main thread.
+     *
+     * @return "saved" on success, or the failure.
+     */
+    private Object setGroup() throws Exception {
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Futures.addCallback(permPlayer.setGroupAsync(plugin.getGroup("member")), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void ignored) {
+                result.set("saved");
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                result.set(ex);
+            }
+        }, plugin.getMainThreadExecutor());
+        assertTrue(TestServer.tickUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return result.get() != null;
+            }
+        }, TIMEOUT));
+        return result.get();
+    }
+}
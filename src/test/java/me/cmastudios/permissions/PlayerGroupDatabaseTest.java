@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Round trips made by the player group table in a SQLite database.
+ *
+ * @author Connor Monahan
+ */
+public class PlayerGroupDatabaseTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final String NAME = "Notch";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private Permissions plugin;
+    private PlayerGroupDatabase database;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "userdb.sl3");
+        plugin = TestServer.createPlugin(folder.getRoot(), TestServer.groups());
+        database = open(plugin, file, null);
+        CountingDriver.reset();
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    /**
+     * Open a SQLite database with the player group table, counting the
+     * statements executed on it with the {@link CountingDriver}.
+     *
+     * @param plugin Plugin to resolve groups with.
+     * @param file Database file.
+     * @param origin Id of the server for the change log, or null to not
+     * write the change log.
+     * @return database.
+     * @throws Exception Error opening the database.
+     */
+    static PlayerGroupDatabase open(Permissions plugin, File file, String origin) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        CountingDriver.register();
+        ConnectionPool pool = new ConnectionPool(CountingDriver.PREFIX + "sqlite:" + file.getPath(), null, null, 1,
+                TimeUnit.MINUTES.toMillis(10), TimeUnit.MINUTES.toMillis(30), TimeUnit.SECONDS.toMillis(30),
+                plugin.getLogger());
+        try (PooledConnection connection = pool.borrow();
+             Statement statement = connection.getConnection().createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `playergroups` (`player` VARCHAR(36) PRIMARY KEY, `group_name` TEXT, `expiration_date` DATETIME NULL)");
+            statement.executeUpdate(SqlDialect.SQLITE.getGroupIndex());
+            if (origin != null) {
+                statement.executeUpdate(SqlDialect.SQLITE.getChangeLog());
+            }
+        }
+        return new PlayerGroupDatabase(plugin, pool, SqlDialect.SQLITE, origin);
+    }
+
+    @Test
+    public void loadRunsOneStatement() throws Exception {
+        database.save(PLAYER, plugin.getGroup("member"), null);
+        CountingDriver.reset();
+        PlayerGroupRecord record = database.load(PLAYER, NAME);
+        assertEquals(1, CountingDriver.reset());
+        assertEquals("member", record.getGroup().getName());
+        assertNull(record.getExpiration());
+    }
+
+    @Test
+    public void loadOfUnknownPlayerRunsOneStatement() throws Exception {
+        assertNull(database.load(PLAYER, NAME));
+        assertEquals(1, CountingDriver.reset());
+    }
+
+    @Test
+    public void saveRunsOneStatement() throws Exception {
+        database.save(PLAYER, plugin.getGroup("member"), null);
+        assertEquals(1, CountingDriver.reset());
+        database.save(PLAYER, plugin.getGroup("guest"), null);
+        assertEquals(1, CountingDriver.reset());
+        assertEquals("guest", database.load(PLAYER, NAME).getGroup().getName());
+    }
+
+    @Test
+    public void legacyRowIsConvertedOnce() throws Exception {
+        this.insertLegacyRow();
+        PlayerGroupRecord record = database.load(PLAYER, NAME);
+        assertEquals(2, CountingDriver.reset());
+        assertEquals("member", record.getGroup().getName());
+        assertEquals(0, this.countRows(NAME));
+        assertEquals(1, this.countRows(PLAYER.toString()));
+        record = database.load(PLAYER, NAME);
+        assertEquals(1, CountingDriver.reset());
+        assertEquals("member", record.getGroup().getName());
+    }
+
+    @Test
+    public void legacyRowIsIgnoredWhenConversionIsDisabled() throws Exception {
+        database.close();
+        YamlConfiguration config = TestServer.groups();
+        config.set("legacy-name-conversion", false);
+        plugin = TestServer.createPlugin(folder.getRoot(), config);
+        database = open(plugin, file, null);
+        this.insertLegacyRow();
+        assertNull(database.load(PLAYER, NAME));
+        assertEquals(1, CountingDriver.reset());
+        assertEquals(1, this.countRows(NAME));
+    }
+
+    private void insertLegacyRow() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+             PreparedStatement stmt = connection.prepareStatement(
+                     "INSERT INTO playergroups (player, group_name, expiration_date) VALUES (?, ?, NULL)")) {
+            stmt.setString(1, NAME);
+            stmt.setString(2, "member");
+            stmt.executeUpdate();
+        }
+    }
+
+    private int countRows(String player) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+             PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) FROM playergroups WHERE player = ?")) {
+            stmt.setString(1, player);
+            try (ResultSet result = stmt.executeQuery()) {
+                result.next();
+                return result.getInt(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Player groups exported to CSV are imported unchanged, and malformed files
+ * are rejected.
+ *
+ * @author Connor Monahan
+ */
+public class PlayerGroupTransferTest {
+
+    private static final String HEADER = "player,group_name,expiration_date";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PlayerGroupDatabase source;
+    private PlayerGroupDatabase target;
+    private File csv;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        Permissions plugin = TestServer.createPlugin(folder.getRoot(), TestServer.groups());
+        source = PlayerGroupDatabaseTest.open(plugin, new File(folder.getRoot(), "source.sl3"), null);
+        target = PlayerGroupDatabaseTest.open(plugin, new File(folder.getRoot(), "target.sl3"), null);
+        csv = new File(folder.getRoot(), "players.csv");
+    }
+
+    @After
+    public void tearDown() {
+        source.close();
+        target.close();
+    }
+
+    @Test
+    public void quotedFieldsRoundTrip() throws Exception {
+        List<PlayerGroupRow> rows = Arrays.asList(
+                new PlayerGroupRow("069a79f4-44e9-4726-a5be-fca90e38aaf5", "member", null),
+                new PlayerGroupRow("61699b2e-d327-4a01-9f1e-0ea8c3f06bc6", "builders, \"senior\"",
+                        Timestamp.valueOf("2030-01-02 03:04:05.678")),
+                new PlayerGroupRow("Notch", null, null));
+        source.saveRows(rows);
+
+        assertEquals(3, new PlayerGroupTransfer(source).exportTo(csv));
+        String exported = new String(Files.readAllBytes(csv.toPath()), StandardCharsets.UTF_8);
+        assertTrue(exported, exported.contains("\"builders, \"\"senior\"\"\""));
+        assertEquals(3, new PlayerGroupTransfer(target).importFrom(csv));
+
+        List<PlayerGroupRow> imported = target.scan("", Integer.MAX_VALUE);
+        assertEquals(source.scan("", Integer.MAX_VALUE).size(), imported.size());
+        for (PlayerGroupRow row : source.scan("", Integer.MAX_VALUE)) {
+            PlayerGroupRow copy = target.loadAll(Arrays.asList(row.getPlayer())).get(0);
+            assertEquals(row.getGroupName(), copy.getGroupName());
+            assertEquals(row.getExpiration(), copy.getExpiration());
+        }
+    }
+
+    @Test
+    public void malformedLinesAreRejected() throws Exception {
+        this.assertRejected("player,group\n");
+        this.assertRejected(HEADER + "\nNotch,member\n");
+        this.assertRejected(HEADER + "\nNotch,member,,\n");
+        this.assertRejected(HEADER + "\nNotch,\"member,\n");
+        this.assertRejected(HEADER + "\n,member,\n");
+        this.assertRejected(HEADER + "\nNotch,member,tomorrow\n");
+        assertEquals(0, target.scan("", Integer.MAX_VALUE).size());
+    }
+
+    private void assertRejected(String contents) throws Exception {
+        Files.write(csv.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        try {
+            new PlayerGroupTransfer(target).importFrom(csv);
+            fail("Imported " + contents);
+        } catch (IOException ex) {
+            // Rejected
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Invalidations only discard loads of the same player, and threads waiting
+ * for a discarded load get the record written after it.
+ *
+ * @author Connor Monahan
+ */
+public class PlayerRecordCacheTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final UUID OTHER = UUID.fromString("853c80ef-3c37-49fd-aa49-938b674adae6");
+    private static final long TIMEOUT = 10;
+
+    private final Metrics metrics = new Metrics();
+    private final PlayerRecordCache cache = new PlayerRecordCache(100, 3600, metrics);
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void invalidatingAnotherPlayerKeepsLoadCached() throws Exception {
+        BlockingLoader loader = new BlockingLoader(record(1));
+        Future<PlayerGroupRecord> load = this.get(PLAYER, loader);
+        loader.awaitStarted();
+        cache.invalidate(OTHER);
+        loader.release();
+        assertSame(loader.record, load.get(TIMEOUT, TimeUnit.SECONDS));
+        assertSame(loader.record, cache.get(PLAYER, loader));
+        assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void loadOverlappingInvalidationIsNotCached() throws Exception {
+        BlockingLoader loader = new BlockingLoader(record(1));
+        Future<PlayerGroupRecord> load = this.get(PLAYER, loader);
+        loader.awaitStarted();
+        cache.invalidate(PLAYER);
+        loader.release();
+        load.get(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(0, cache.size());
+        cache.get(PLAYER, loader);
+        assertEquals(2, loader.loads.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void waitersLoadAgainAfterInvalidation() throws Exception {
+        BlockingLoader stale = new BlockingLoader(record(1));
+        BlockingLoader written = new BlockingLoader(record(2));
+        written.release();
+        Future<PlayerGroupRecord> first = this.get(PLAYER, stale);
+        stale.awaitStarted();
+        Future<PlayerGroupRecord> waiter = this.get(PLAYER, written);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (metrics.get(Metrics.Counter.PLAYER_CACHE_COALESCED) == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, metrics.get(Metrics.Counter.PLAYER_CACHE_COALESCED));
+        // Waiting for another caller's load is not a miss
+        assertEquals(1, metrics.get(Metrics.Counter.PLAYER_CACHE_MISSES));
+        cache.invalidate(PLAYER);
+        stale.release();
+        assertSame(stale.record, first.get(TIMEOUT, TimeUnit.SECONDS));
+        assertSame(written.record, waiter.get(TIMEOUT, TimeUnit.SECONDS));
+        assertSame(written.record, cache.get(PLAYER, stale));
+        assertEquals(1, stale.loads.get());
+        // One miss per database load, including the waiter's load after the invalidation
+        assertEquals(stale.loads.get() + written.loads.get(), metrics.get(Metrics.Counter.PLAYER_CACHE_MISSES));
+        assertEquals(1, metrics.get(Metrics.Counter.PLAYER_CACHE_HITS));
+    }
+
+    private static PlayerGroupRecord record(long expiration) {
+        return new PlayerGroupRecord(null, new Timestamp(expiration));
+    }
+
+    private Future<PlayerGroupRecord> get(final UUID player, final PlayerRecordCache.Loader loader) {
+        return executor.submit(new Callable<PlayerGroupRecord>() {
+            @Override
+            public PlayerGroupRecord call() throws SQLException {
+                return cache.get(player, loader);
+            }
+        });
+    }
+
+    /**
+     * Loader that blocks until released, to hold a load in progress.
+     */
+    private static final class BlockingLoader implements PlayerRecordCache.Loader {
+
+        private final PlayerGroupRecord record;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final AtomicInteger loads = new AtomicInteger();
+
+        private BlockingLoader(PlayerGroupRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public PlayerGroupRecord load() throws SQLException {
+            loads.incrementAndGet();
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException ex) {
+                throw new SQLException(ex);
+            }
+            return record;
+        }
+
+        private void awaitStarted() throws InterruptedException {
+            started.await(TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        private void release() {
+            released.countDown();
+        }
+    }
+}
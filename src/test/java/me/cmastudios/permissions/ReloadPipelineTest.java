@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reloading the configuration applies only the changed permissions and
+ * display names to online players. A configuration that fails to compile
+ * keeps the old registry and leaves online players untouched.
+ *
+ * @author Connor Monahan
+ */
+public class ReloadPipelineTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final UUID OTHER_PLAYER = UUID.fromString("61699b2e-d327-4a01-9f1e-0ea8c3f06bc6");
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Permissions plugin;
+    private Player player;
+
+    @Before
+    public void setUp() throws Exception {
+        TestServer.reset();
+        plugin = TestServer.createPlugin(folder.getRoot(), TestServer.groups());
+        TestServer.setEnabled(plugin, true);
+        player = TestServer.join(PLAYER, "Notch");
+        plugin.saveGroup(PLAYER, plugin.getGroup("member"), null);
+        plugin.updatePermissions(player);
+    }
+
+    @After
+    public void tearDown() {
+        TestServer.setEnabled(plugin, false);
+    }
+
+    @Test
+    public void onlyChangesAreApplied() throws Exception {
+        Player guest = TestServer.join(OTHER_PLAYER, "jeb_");
+        plugin.updatePermissions(guest);
+        PlayerState memberState = plugin.getPlayerState(PLAYER);
+        PlayerState guestState = plugin.getPlayerState(OTHER_PLAYER);
+        // Stale values that only a rewrite of the whole attachment would replace
+        memberState.getAttachment().setPermission("chat.talk", false);
+        guestState.getAttachment().setPermission("chat.talk", false);
+        player.setDisplayName("Notch");
+        guest.setDisplayName("jeb_");
+        Map<String, Boolean> guestAttachment = new HashMap<>(guestState.getAttachment().getPermissions());
+
+        YamlConfiguration config = TestServer.groups();
+        TestServer.group(config, "member", false, Arrays.asList("guest"), Arrays.asList("build.place", "build.break"));
+        config.set("groups.member.info.prefix", "&a");
+        String message = this.reload(config);
+        assertTrue(message, message.contains("Reloaded"));
+
+        Group member = plugin.getGroup("member");
+        assertSame(member, memberState.getGroup());
+        assertSame(memberState, plugin.getPlayerState(PLAYER));
+        Map<String, Boolean> expected = new HashMap<>();
+        expected.put("chat.talk", false);
+        expected.put("build.place", true);
+        expected.put("build.break", true);
+        expected.put("cpermissions.build", true);
+        assertEquals(expected, memberState.getAttachment().getPermissions());
+        assertFalse(player.isPermissionSet("chat.colors"));
+        assertEquals(member.getPrefix() + "Notch" + member.getSuffix(), player.getDisplayName());
+
+        assertSame(plugin.getGroup("guest"), guestState.getGroup());
+        assertEquals(guestAttachment, guestState.getAttachment().getPermissions());
+        assertFalse(guest.hasPermission("chat.talk"));
+        assertEquals("jeb_", guest.getDisplayName());
+    }
+
+    @Test
+    public void unknownInheritedGroupKeepsOldConfiguration() throws Exception {
+        YamlConfiguration config = TestServer.groups();
+        TestServer.group(config, "member", false, Arrays.asList("guest", "missing"), Arrays.asList("build.break"));
+        this.assertReloadFails(config);
+    }
+
+    @Test
+    public void inheritanceLoopKeepsOldConfiguration() throws Exception {
+        YamlConfiguration config = TestServer.groups();
+        TestServer.group(config, "guest", true, Arrays.asList("member"), Arrays.asList("chat.talk"));
+        TestServer.group(config, "member", false, Arrays.asList("guest"), Arrays.asList("build.break"));
+        this.assertReloadFails(config);
+    }
+
+    private void assertReloadFails(YamlConfiguration config) throws Exception {
+        FileConfiguration oldConfig = plugin.getConfig();
+        Group group = plugin.getGroup("member");
+        PlayerState state = plugin.getPlayerState(PLAYER);
+        Map<String, Boolean> permissions = state.getPermissions();
+        Map<String, Boolean> attachment = new HashMap<>(state.getAttachment().getPermissions());
+        assertTrue(player.hasPermission("build.place"));
+
+        String message = this.reload(config);
+        assertTrue(message, message.contains("The old configuration is still in use"));
+        // Let any stray updates run
+        TestServer.tick();
+        TestServer.tick();
+
+        assertSame(oldConfig, plugin.getConfig());
+        assertSame(group, plugin.getGroup("member"));
+        assertSame(state, plugin.getPlayerState(PLAYER));
+        assertSame(group, state.getGroup());
+        assertSame(permissions, state.getPermissions());
+        assertEquals(attachment, state.getAttachment().getPermissions());
+        assertTrue(player.hasPermission("build.place"));
+        assertFalse(player.hasPermission("build.break"));
+
+        // The failed reload must not block the next one
+        message = this.reload(TestServer.groups());
+        assertTrue(message, message.contains("Reloaded"));
+        assertNotSame(group, plugin.getGroup("member"));
+        assertSame(plugin.getGroup("member"), plugin.getPlayerState(PLAYER).getGroup());
+        assertTrue(player.hasPermission("build.place"));
+    }
+
+    /**
+     * Save a configuration and reload it, waiting until the reload has been
+     * applied to every online player.
+     *
+     * @return message sent when the reload finished or failed.
+     */
+    private String reload(YamlConfiguration config) throws Exception {
+        config.save(new File(folder.getRoot(), "config.yml"));
+        final List<String> messages = new ArrayList<>();
+        assertTrue(plugin.reloadConfigAsync(TestServer.sender(messages)));
+        assertTrue(TestServer.tickUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return !messages.isEmpty();
+            }
+        }, TIMEOUT));
+        return messages.get(0);
+    }
+}
@@ -0,0 +1,752 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.command.SimpleCommandMap;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.Permissible;
+import org.bukkit.permissions.PermissibleBase;
+import org.bukkit.permissions.ServerOperator;
+import org.bukkit.plugin.InvalidDescriptionException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginCommandYamlParser;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.SimplePluginManager;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless server for tests, benchmarks and load tests. Players, worlds and
+ * command senders are proxies with just enough behaviour for the plugin;
+ * permissions use Bukkit's real {@link PermissibleBase} and plugin manager.
+ * Asynchronous tasks run on a thread pool.
+ * <p>
+ * The thread that created the server is its main thread, and main thread
+ * tasks only run when it calls {@link #tick}. Load tests can instead
+ * {@link #start} a dedicated main thread that runs 20 ticks per second and
+ * records how long each tick took. Bukkit only accepts one server per JVM, so
+ * only one simulated server can be created.
+ *
+ * @author Connor Monahan
+ */
+final class SimulatedServer {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Logger logger = Logger.getLogger("Simulated");
+    private final Server server;
+    private final PluginManager pluginManager;
+    private final BukkitScheduler scheduler;
+    private final ConsoleCommandSender console;
+    private final Map<UUID, Player> online = new ConcurrentHashMap<>();
+    private final Map<String, World> worlds = new LinkedHashMap<>();
+    private final Map<String, PluginCommand> commands = new ConcurrentHashMap<>();
+    private final Queue<Runnable> mainThreadWork = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private final ExecutorService async;
+    private final AtomicInteger taskIds = new AtomicInteger();
+    private final AtomicLong currentTick = new AtomicLong();
+    private final List<Long> tickNanos = new ArrayList<>();
+    private volatile Thread mainThread;
+    private volatile boolean running;
+
+    /**
+     * Create the server and install it as the Bukkit server.
+     *
+     * @param worldNames Names of the worlds, the first being the one new
+     * players spawn in.
+     */
+    SimulatedServer(String... worldNames) {
+        for (String name : worldNames) {
+            worlds.put(name, this.createWorld(name));
+        }
+        mainThread = Thread.currentThread();
+        async = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Async task " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = proxy(Server.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return handleServer(proxy, method, args);
+            }
+        });
+        scheduler = proxy(BukkitScheduler.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return handleScheduler(proxy, method, args);
+            }
+        });
+        console = proxy(ConsoleCommandSender.class, new SenderHandler(null));
+        pluginManager = new SimplePluginManager(server, new SimpleCommandMap(server));
+        Bukkit.setServer(server);
+    }
+
+    Server getServer() {
+        return server;
+    }
+
+    World getWorld(String name) {
+        return worlds.get(name);
+    }
+
+    List<World> getWorlds() {
+        return new ArrayList<>(worlds.values());
+    }
+
+    ConsoleCommandSender getConsole() {
+        return console;
+    }
+
+    /**
+     * Create the plugin with a data folder containing the given
+     * configuration. Groups are compiled, but the plugin is not enabled.
+     *
+     * @param dataFolder Data folder for the plugin.
+     * @param config Plugin configuration.
+     * @return plugin.
+     * @throws IOException Error writing the configuration or reading the
+     * plugin description.
+     */
+    @SuppressWarnings("deprecation")
+    Permissions createPlugin(File dataFolder, YamlConfiguration config) throws IOException {
+        config.save(new File(dataFolder, "config.yml"));
+        PluginDescriptionFile description;
+        try (InputStream in = Permissions.class.getResourceAsStream("/plugin.yml")) {
+            description = new PluginDescriptionFile(in);
+        } catch (InvalidDescriptionException ex) {
+            throw new IOException(ex);
+        }
+        Permissions plugin = new Permissions(new JavaPluginLoader(server), description, dataFolder,
+                new File(dataFolder, "cPermissions.jar"));
+        plugin.reloadConfig();
+        plugin.reloadGroups();
+        return plugin;
+    }
+
+    /**
+     * Enable or disable a plugin created by {@link #createPlugin}, as the
+     * server does on startup and shutdown. Enabling registers the commands
+     * declared in the plugin's description, so they can be looked up by the
+     * plugin and dispatched with {@link #dispatch}. Must be called from the
+     * main thread.
+     *
+     * @param plugin Plugin to enable or disable.
+     * @param enabled Whether to enable the plugin.
+     */
+    void setEnabled(Permissions plugin, boolean enabled) {
+        if (enabled) {
+            for (Command command : PluginCommandYamlParser.parse(plugin)) {
+                commands.put(command.getName().toLowerCase(), (PluginCommand) command);
+            }
+        }
+        try {
+            Method setEnabled = JavaPlugin.class.getDeclaredMethod("setEnabled", boolean.class);
+            setEnabled.setAccessible(true);
+            setEnabled.invoke(plugin, enabled);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("Failed to " + (enabled ? "enable" : "disable") + " the plugin",
+                    ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Run a command as the console. Must be called from the main thread.
+     *
+     * @param label Command name.
+     * @param args Command arguments.
+     * @return result of the command executor.
+     */
+    boolean dispatch(String label, String... args) {
+        return commands.get(label).execute(console, label, args);
+    }
+
+    /**
+     * Create a command sender that remembers the messages sent to it.
+     *
+     * @param messages List to add the messages to.
+     * @return command sender.
+     */
+    CommandSender sender(List<String> messages) {
+        return proxy(CommandSender.class, new SenderHandler(messages));
+    }
+
+    /**
+     * Create a player who is not online yet.
+     *
+     * @param id Player's unique id.
+     * @param name Player's name.
+     * @param world World the player spawns in.
+     * @return player.
+     */
+    Player createPlayer(UUID id, String name, World world) {
+        return new PlayerHandler(id, name, world).player;
+    }
+
+    /**
+     * Create a player in the first world and put them online.
+     *
+     * @param id Player's unique id.
+     * @param name Player's name.
+     * @return player.
+     */
+    Player join(UUID id, String name) {
+        Player player = this.createPlayer(id, name, worlds.values().iterator().next());
+        this.setOnline(player, true);
+        return player;
+    }
+
+    void setOnline(Player player, boolean isOnline) {
+        if (isOnline) {
+            online.put(player.getUniqueId(), player);
+        } else {
+            online.remove(player.getUniqueId());
+        }
+    }
+
+    void setWorld(Player player, World world) {
+        ((PlayerHandler) Proxy.getInvocationHandler(player)).world = world;
+    }
+
+    /**
+     * Forget the online players, commands and scheduled tasks, for example
+     * those of the previous test.
+     */
+    void reset() {
+        online.clear();
+        commands.clear();
+        mainThreadWork.clear();
+        synchronized (tasks) {
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Start a dedicated main thread.
+     */
+    void start() {
+        running = true;
+        mainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tickLoop();
+            }
+        }, "Server thread");
+        mainThread.start();
+    }
+
+    /**
+     * Stop the main thread after the current tick and shut down the async
+     * pool.
+     *
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    void stop() throws InterruptedException {
+        running = false;
+        mainThread.join();
+        async.shutdown();
+        async.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Hand work to the main thread, as the network layer does with packets.
+     *
+     * @param work Work to run at the start of the next tick.
+     */
+    void runOnMainThread(Runnable work) {
+        mainThreadWork.add(work);
+    }
+
+    /**
+     * Run work on the main thread and wait for it to finish.
+     *
+     * @param work Work to run.
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    void runOnMainThreadAndWait(final Runnable work) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        this.runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        done.await();
+    }
+
+    /**
+     * Get the time taken by every tick of the dedicated main thread. Only
+     * call once the server has stopped.
+     *
+     * @return tick durations in nanoseconds.
+     */
+    List<Long> getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Run one server tick: the work handed to the main thread and every task
+     * that is due. Must be called from the main thread.
+     */
+    void tick() {
+        long tick = currentTick.incrementAndGet();
+        Runnable work;
+        while ((work = mainThreadWork.poll()) != null) {
+            work.run();
+        }
+        while (true) {
+            Task task;
+            synchronized (tasks) {
+                task = tasks.peek();
+                if (task == null || task.tick > tick) {
+                    break;
+                }
+                tasks.poll();
+                if (task.period > 0 && !task.cancelled) {
+                    task.tick = tick + task.period;
+                    tasks.add(task);
+                }
+            }
+            if (!task.cancelled) {
+                task.runnable.run();
+            }
+        }
+    }
+
+    /**
+     * Run ticks until a condition holds, waiting for asynchronous tasks
+     * between ticks. Must be called from the main thread.
+     *
+     * @param condition Condition to wait for.
+     * @param timeout Milliseconds to wait at most.
+     * @return whether the condition holds.
+     * @throws Exception Error checking the condition, or interrupted.
+     */
+    boolean tickUntil(Callable<Boolean> condition, long timeout) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!condition.call()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            this.tick();
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private void tickLoop() {
+        long nextTick = System.nanoTime();
+        while (running) {
+            long start = System.nanoTime();
+            try {
+                this.tick();
+            } catch (RuntimeException ex) {
+                logger.log(Level.SEVERE, "Exception on the main thread", ex);
+            }
+            tickNanos.add(System.nanoTime() - start);
+            nextTick += TICK_NANOS;
+            long sleep = nextTick - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } else {
+                nextTick = System.nanoTime(); // Behind schedule, like a lagging server
+            }
+        }
+    }
+
+    private Object handleServer(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getLogger":
+                return logger;
+            case "getPluginManager":
+                return pluginManager;
+            case "getScheduler":
+                return scheduler;
+            case "getConsoleSender":
+                return console;
+            case "getName":
+            case "getVersion":
+            case "getBukkitVersion":
+                return "simulated";
+            case "isPrimaryThread":
+                return Thread.currentThread() == mainThread;
+            case "getOnlinePlayers":
+                return Collections.unmodifiableCollection(new ArrayList<>(online.values()));
+            case "getPlayer":
+            case "getPlayerExact":
+                return args[0] instanceof UUID ? online.get(args[0]) : this.findOnline((String) args[0]);
+            case "getOfflinePlayer":
+                return this.getOfflinePlayer(args[0]);
+            case "getWorld":
+                return worlds.get(args[0]);
+            case "getWorlds":
+                return this.getWorlds();
+            case "getPluginCommand":
+                return commands.get(args[0]);
+            default:
+                return defaultValue(proxy, method, args);
+        }
+    }
+
+    private Player findOnline(String name) {
+        for (Player player : online.values()) {
+            if (player.getName().equalsIgnoreCase(name)) {
+                return player;
+            }
+        }
+        return null;
+    }
+
+    private OfflinePlayer getOfflinePlayer(Object key) {
+        Player player = key instanceof UUID ? online.get(key) : this.findOnline((String) key);
+        if (player != null) {
+            return player;
+        }
+        final UUID id = key instanceof UUID ? (UUID) key
+                : UUID.nameUUIDFromBytes(("OfflinePlayer:" + key).getBytes(StandardCharsets.UTF_8));
+        final String name = key instanceof UUID ? null : (String) key;
+        return proxy(OfflinePlayer.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getUniqueId":
+                        return id;
+                    case "getName":
+                        return name;
+                    case "getPlayer":
+                        return online.get(id);
+                    case "isOnline":
+                        return online.containsKey(id);
+                    default:
+                        return defaultValue(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    private Object handleScheduler(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "runTask":
+                return this.schedule((Plugin) args[0], (Runnable) args[1], 0, 0);
+            case "runTaskLater":
+                return this.schedule((Plugin) args[0], (Runnable) args[1], (Long) args[2], 0);
+            case "runTaskTimer":
+                return this.schedule((Plugin) args[0], (Runnable) args[1], (Long) args[2], Math.max(1, (Long) args[3]));
+            case "runTaskAsynchronously":
+                return this.runAsync((Plugin) args[0], (Runnable) args[1]);
+            case "cancelTask":
+                this.cancel((Integer) args[0]);
+                return null;
+            case "cancelTasks":
+                synchronized (tasks) {
+                    for (Task task : tasks) {
+                        task.cancelled = true;
+                    }
+                }
+                return null;
+            default:
+                if (method.getDeclaringClass() == Object.class) {
+                    return defaultValue(proxy, method, args);
+                }
+                throw new UnsupportedOperationException("Not simulated: BukkitScheduler." + method.getName());
+        }
+    }
+
+    private BukkitTask schedule(Plugin plugin, Runnable runnable, long delay, long period) {
+        Task task = new Task(taskIds.incrementAndGet(), plugin, runnable, currentTick.get() + Math.max(1, delay), period);
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        return task.handle(true);
+    }
+
+    private BukkitTask runAsync(Plugin plugin, final Runnable runnable) {
+        final Task task = new Task(taskIds.incrementAndGet(), plugin, runnable, 0, 0);
+        async.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!task.cancelled) {
+                    try {
+                        runnable.run();
+                    } catch (RuntimeException ex) {
+                        logger.log(Level.SEVERE, "Exception in async task", ex);
+                    }
+                }
+            }
+        });
+        return task.handle(false);
+    }
+
+    private void cancel(int id) {
+        synchronized (tasks) {
+            for (Task task : tasks) {
+                if (task.id == id) {
+                    task.cancelled = true;
+                }
+            }
+        }
+    }
+
+    private World createWorld(final String name) {
+        final UUID id = UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8));
+        return proxy(World.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getName":
+                        return name;
+                    case "getUID":
+                        return id;
+                    default:
+                        return defaultValue(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    static Object defaultValue(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "Simulated" + method.getDeclaringClass().getSimpleName();
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return '\u0000';
+        }
+        return null;
+    }
+
+    /**
+     * Console-like command sender with every permission. Messages sent to it
+     * are added to a list, or discarded if there is none.
+     */
+    private final class SenderHandler implements InvocationHandler {
+
+        private final List<String> messages;
+
+        private SenderHandler(List<String> messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "sendMessage":
+                    if (messages == null) {
+                        return null;
+                    } else if (args[0] instanceof String[]) {
+                        messages.addAll(Arrays.asList((String[]) args[0]));
+                    } else {
+                        messages.add((String) args[0]);
+                    }
+                    return null;
+                case "getName":
+                    return "CONSOLE";
+                case "isOp":
+                case "hasPermission":
+                case "isPermissionSet":
+                    return true;
+                case "getServer":
+                    return server;
+                default:
+                    return defaultValue(proxy, method, args);
+            }
+        }
+    }
+
+    private final class PlayerHandler implements InvocationHandler {
+
+        private final UUID id;
+        private final String name;
+        private final Player player;
+        private final PermissibleBase permissible;
+        private volatile World world;
+        private volatile String displayName;
+
+        private PlayerHandler(UUID id, String name, World world) {
+            this.id = id;
+            this.name = name;
+            this.world = world;
+            this.displayName = name;
+            this.player = proxy(Player.class, this);
+            this.permissible = new PermissibleBase(player);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getUniqueId":
+                    return id;
+                case "getName":
+                    return name;
+                case "getDisplayName":
+                    return displayName;
+                case "setDisplayName":
+                    displayName = (String) args[0];
+                    return null;
+                case "getWorld":
+                    return world;
+                case "getServer":
+                    return server;
+                case "isOnline":
+                    return online.containsKey(id);
+                case "getPlayer":
+                    return online.containsKey(id) ? player : null;
+                case "isOp":
+                    return false;
+                case "setOp":
+                    return null;
+            }
+            Class<?> declaring = method.getDeclaringClass();
+            if (declaring == Permissible.class || declaring == ServerOperator.class) {
+                try {
+                    return method.invoke(permissible, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+            return defaultValue(proxy, method, args);
+        }
+    }
+
+    private static final class Task implements Comparable<Task> {
+
+        private final int id;
+        private final Plugin owner;
+        private final Runnable runnable;
+        private final long period;
+        private long tick;
+        private volatile boolean cancelled;
+
+        private Task(int id, Plugin owner, Runnable runnable, long tick, long period) {
+            this.id = id;
+            this.owner = owner;
+            this.runnable = runnable;
+            this.tick = tick;
+            this.period = period;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return Long.compare(tick, other.tick);
+        }
+
+        private BukkitTask handle(final boolean sync) {
+            return proxy(BukkitTask.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "getTaskId":
+                            return id;
+                        case "getOwner":
+                            return owner;
+                        case "isSync":
+                            return sync;
+                        case "isCancelled":
+                            return cancelled;
+                        case "cancel":
+                            cancelled = true;
+                            return null;
+                        default:
+                            return defaultValue(proxy, method, args);
+                    }
+                }
+            });
+        }
+    }
+}
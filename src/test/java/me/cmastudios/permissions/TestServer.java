@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+/**
+ * The {@link SimulatedServer} shared by all tests, with a single world, and
+ * the group configurations they start from. Main thread tasks only run when
+ * a test calls {@link #tick}, and the thread that installed the server is
+ * its main thread.
+ *
+ * @author Connor Monahan
+ */
+final class TestServer {
+
+    private static SimulatedServer server;
+
+    private TestServer() {
+    }
+
+    /**
+     * Get the test server, installing it as the Bukkit server the first
+     * time.
+     *
+     * @return server.
+     */
+    static synchronized SimulatedServer simulated() {
+        if (server == null) {
+            server = new SimulatedServer("world", "world_nether", "world_the_end");
+        }
+        return server;
+    }
+
+    static Server get() {
+        return simulated().getServer();
+    }
+
+    /**
+     * Forget the online players, commands and scheduled tasks of the
+     * previous test.
+     */
+    static void reset() {
+        simulated().reset();
+    }
+
+    /**
+     * @see SimulatedServer#createPlugin
+     */
+    static Permissions createPlugin(File dataFolder, YamlConfiguration config) throws IOException {
+        return simulated().createPlugin(dataFolder, config);
+    }
+
+    /**
+     * @see SimulatedServer#setEnabled
+     */
+    static void setEnabled(Permissions plugin, boolean enabled) {
+        simulated().setEnabled(plugin, enabled);
+    }
+
+    /**
+     * @see SimulatedServer#join
+     */
+    static Player join(UUID id, String name) {
+        return simulated().join(id, name);
+    }
+
+    /**
+     * @see SimulatedServer#sender
+     */
+    static CommandSender sender(List<String> messages) {
+        return simulated().sender(messages);
+    }
+
+    /**
+     * @see SimulatedServer#tick
+     */
+    static void tick() {
+        simulated().tick();
+    }
+
+    /**
+     * @see SimulatedServer#tickUntil
+     */
+    static boolean tickUntil(Callable<Boolean> condition, long timeout) throws Exception {
+        return simulated().tickUntil(condition, timeout);
+    }
+
+    /**
+     * Build a configuration with the default group "guest" and the group
+     * "member" inheriting it.
+     *
+     * @return configuration.
+     */
+    static YamlConfiguration groups() {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("autoperms", Collections.emptyList());
+        config.set("stats.dump-interval", 0);
+        group(config, "guest", true, Collections.<String>emptyList(), Arrays.asList("chat.talk"));
+        group(config, "member", false, Arrays.asList("guest"), Arrays.asList("build.place", "-chat.colors"));
+        return config;
+    }
+
+    /**
+     * Add a group to a configuration.
+     *
+     * @param config Configuration to add the group to.
+     * @param name Name of the group.
+     * @param isDefault Whether the group is the default group.
+     * @param inheritance Names of the inherited groups.
+     * @param permissions Permission nodes of the group.
+     */
+    static void group(YamlConfiguration config, String name, boolean isDefault, List<String> inheritance,
+                      List<String> permissions) {
+        String path = "groups." + name + ".";
+        config.set(path + "default", isDefault);
+        config.set(path + "info.prefix", "&7");
+        config.set(path + "info.suffix", "&f");
+        config.set(path + "info.build", true);
+        config.set(path + "inheritance", inheritance);
+        config.set(path + "permissions", permissions);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 Connor Monahan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.cmastudios.permissions;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queued group changes are coalesced per player, stay visible until they are
+ * committed and are never lost or replaced by older ones when a write fails.
+ *
+ * @author Connor Monahan
+ */
+public class WriteBehindQueueTest {
+
+    private static final UUID PLAYER = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+    private static final UUID OTHER_PLAYER = UUID.fromString("61699b2e-d327-4a01-9f1e-0ea8c3f06bc6");
+    private static final long TIMEOUT = 10000;
+
+    private final RecordingStore store = new RecordingStore();
+    // Only flushed by hand
+    private final WriteBehindQueue queue = new WriteBehindQueue(store, TimeUnit.DAYS.toMillis(1),
+            Logger.getLogger("WriteBehindQueueTest"));
+
+    @After
+    public void tearDown() {
+        store.failure = null;
+        queue.close();
+    }
+
+    @Test
+    public void repeatedChangesAreCoalesced() {
+        PlayerGroupRecord first = record();
+        PlayerGroupRecord other = record();
+        PlayerGroupRecord latest = record();
+        queue.enqueue(PLAYER, first);
+        queue.enqueue(OTHER_PLAYER, other);
+        queue.enqueue(PLAYER, latest);
+        assertEquals(2, queue.getDepth());
+        assertSame(latest, queue.getPending(PLAYER));
+
+        queue.flush();
+        assertEquals(1, store.batches.size());
+        Map<UUID, PlayerGroupRecord> batch = store.batches.get(0);
+        assertEquals(Arrays.asList(OTHER_PLAYER, PLAYER), new ArrayList<>(batch.keySet()));
+        assertSame(latest, batch.get(PLAYER));
+        assertEquals(0, queue.getDepth());
+        assertNull(queue.getPending(PLAYER));
+    }
+
+    @Test
+    public void failedFlushKeepsNewerChanges() throws Exception {
+        PlayerGroupRecord written = record();
+        PlayerGroupRecord other = record();
+        PlayerGroupRecord newer = record();
+        queue.enqueue(PLAYER, written);
+        queue.enqueue(OTHER_PLAYER, other);
+        store.failure = new SQLException("Database is down");
+        Thread flush = this.flushBlocked();
+
+        // Records being written are still pending
+        assertSame(written, queue.getPending(PLAYER));
+        assertEquals(0, queue.getDepth());
+        queue.enqueue(PLAYER, newer);
+        store.release.countDown();
+        flush.join(TIMEOUT);
+
+        assertSame(newer, queue.getPending(PLAYER));
+        assertSame(other, queue.getPending(OTHER_PLAYER));
+        store.failure = null;
+        queue.flush();
+        assertSame(newer, store.batches.get(0).get(PLAYER));
+        assertSame(other, store.batches.get(0).get(OTHER_PLAYER));
+        assertNull(queue.getPending(PLAYER));
+    }
+
+    @Test
+    public void runtimeErrorIsRetried() {
+        PlayerGroupRecord record = record();
+        queue.enqueue(PLAYER, record);
+        store.failure = new IllegalStateException("Driver bug");
+        queue.flush();
+        assertSame(record, queue.getPending(PLAYER));
+
+        store.failure = null;
+        queue.flush();
+        assertSame(record, store.batches.get(0).get(PLAYER));
+    }
+
+    @Test
+    public void closeFlushesRemainingChanges() {
+        PlayerGroupRecord record = record();
+        queue.enqueue(PLAYER, record);
+        queue.close();
+        assertEquals(1, store.batches.size());
+        assertSame(record, store.batches.get(0).get(PLAYER));
+    }
+
+    private static PlayerGroupRecord record() {
+        return new PlayerGroupRecord(null, new Timestamp(System.currentTimeMillis()));
+    }
+
+    /**
+     * Start flushing on another thread and wait until the store is writing
+     * the batch. The write finishes once the store's release latch is
+     * counted down.
+     */
+    private Thread flushBlocked() throws InterruptedException {
+        store.entered = new CountDownLatch(1);
+        store.release = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.flush();
+            }
+        });
+        thread.start();
+        assertTrue(store.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        return thread;
+    }
+
+    /**
+     * Store that records the batches written to it, and can be made to fail
+     * or to wait while writing.
+     */
+    private static final class RecordingStore implements PlayerGroupStore {
+
+        private final List<Map<UUID, PlayerGroupRecord>> batches = new ArrayList<>();
+        private volatile Exception failure;
+        private volatile CountDownLatch entered;
+        private volatile CountDownLatch release;
+
+        @Override
+        public void saveAll(Map<UUID, PlayerGroupRecord> records) throws SQLException {
+            if (entered != null) {
+                entered.countDown();
+                try {
+                    release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                entered = null;
+            }
+            if (failure instanceof SQLException) {
+                throw (SQLException) failure;
+            } else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            synchronized (batches) {
+                batches.add(new LinkedHashMap<>(records));
+            }
+        }
+
+        @Override
+        public PlayerGroupRecord load(UUID player, String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void save(UUID player, Group group, Timestamp expirationDate) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void saveRows(List<PlayerGroupRow> rows) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<PlayerGroupRow> scan(String after, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<PlayerGroupRow> loadAll(List<String> players) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> findMembers(String groupName, String after, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void renamePlayers(Map<String, String> keys) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}